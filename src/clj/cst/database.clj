@@ -1,30 +1,40 @@
 (ns cst.database
   (:require [cst.schema :as data]
+            [cst.diff :as diff]
             [cst.path :as path]
+            [cst.reader :as reader]
+            [clojure.edn :as edn]
             [datomic.api :refer [q] :as d])
-  (:import [datomic Peer]
+  (:import [datomic Datom ListenableFuture Peer]
            [datomic.db DbId]
-           [clojure.lang Keyword Symbol IPersistentList IPersistentVector IPersistentMap]
-           [java.util Date UUID Map]
+           [clojure.lang Keyword Symbol IPersistentList IPersistentVector IPersistentMap PersistentList]
+           [java.util ArrayList Date IdentityHashMap UUID Map]
+           [java.util.concurrent Executor]
            [java.net URI]
            [java.math BigInteger BigDecimal]
-           [cst SyntaxElement SyntaxElement$Type]))
+           [cst DelayedVector StructuralHash SyntaxElement SyntaxElement$Type]))
 
 (def dburl "datomic:dev://localhost:4334/source")
 
 (defn load-schema
-  "Loads the cast schema into a database connection"
-  [c]
-  (d/transact c data/schema)
-  (d/transact c data/reader-macros))
+  "Loads the cast schema into a database connection. With :compact true in opts, the attribute
+   of the compact encoding is loaded as well, which tx-data needs for its :compact option."
+  ([c] (load-schema c nil))
+  ([c {:keys [compact]}]
+   (d/transact c data/schema)
+   (let [tx (d/transact c data/reader-macros)]
+     (if compact
+       (d/transact c data/compact-schema)
+       tx))))
 
 (defn database
-  "Creates and initializes a database, returning a connection"
+  "Creates and initializes a database, returning a connection. The opts are those of load-schema."
   ([] (database dburl))
-  ([uri]
+  ([uri] (database uri nil))
+  ([uri opts]
    (let [newdb (d/create-database uri)
          c (d/connect uri)]
-     (when newdb (load-schema c))
+     (when newdb (load-schema c opts))
      c)))
 
 (defn node [] (Peer/tempid :db.part/cst))
@@ -69,54 +79,85 @@
   Object
   (smb [x] x))
 
+(defn- value-data
+  "The attributes and values that hold the value x in an entity. The namespace of a qualified symbol
+   is held in :cst.symbol/ns, beside its name in :cst.value/symbol."
+  [x]
+  (if (and (symbol? x) (namespace x))
+    {(data-property x) (smb x) :cst.symbol/ns (namespace x)}
+    {(data-property x) (smb x)}))
+
+(defn- note-symbol
+  "Adds the entity e, paired with x, to the :symbols of opts when x is a symbol. These are the
+   nodes that the cross references of a file point at."
+  [opts e x]
+  (when (symbol? x)
+    (when-let [^java.util.List symbols (::symbols opts)]
+      (.add symbols [e x]))))
+
 (defprotocol Data
-  (object-data [x] "Returns a single value suitable for a transaction,
-   paired with a seq of any supporting transaction data"))
+  (object-data [x] [x opts] "Returns a single value suitable for a transaction,
+   paired with a seq of any supporting transaction data.
+   The opts may give the :storage of collections: :linked (the default) or :indexed, and
+   :compact true to store collections of scalars in the compact encoding; see scalar-run."))
 
-(declare list-data)
+(declare collection-data)
 
 (extend-protocol Data
   Object
-  (object-data [x] [x []])
+  (object-data
+    ([x] [x []])
+    ([x opts] [x []]))
   SyntaxElement
-  (object-data [^SyntaxElement x]
-    (let [etype (. x id)
-          data (. x data)
-          node-id (node)]
-      (cond
-        (= :cst/file etype) (let [location (or (path/to-uri (:location data))
-                                               (URI. (str "uuid:" (UUID/randomUUID))))]
-                              (list-data (:data data) :file node-id location)) ;; list structure for the file contents
-        (= :cst/conditional etype) (let [[o auxo] (object-data (:form data))
-                                         splice? (:splice data)
-                                         condo {:db/id node-id
-                                                :cst/type etype
-                                                :cst.cond/splice splice?
-                                                :cst.cond/form o}]
-                                     [node-id (concat auxo [condo])])
-        data (let [[d auxd] (object-data data)]
-               [node-id (concat auxd [(assoc {:db/id node-id, :cst/type etype}
-                                        (data-property d) (smb d))])])
-        :default [node-id []])))
+  (object-data
+    ([x] (object-data x nil))
+    ([^SyntaxElement x opts]
+     (let [etype (. x id)
+           data (. x data)
+           node-id (node)]
+       (cond
+         (= :cst/file etype) (let [location (or (path/to-uri (:location data))
+                                                (URI. (str "uuid:" (UUID/randomUUID))))]
+                               (collection-data (:data data) :file node-id location opts)) ;; list structure for the file contents
+         (= :cst/conditional etype) (let [[o auxo] (object-data (:form data) opts)
+                                          splice? (:splice data)
+                                          condo {:db/id node-id
+                                                 :cst/type etype
+                                                 :cst.cond/splice splice?
+                                                 :cst.cond/form o}]
+                                      [node-id (concat auxo [condo])])
+         (= :cst/map etype) (collection-data data :map node-id nil opts)
+         (= :cst/set etype) (collection-data data :set node-id nil opts)
+         data (let [[d auxd] (object-data data opts)]
+                (note-symbol opts node-id d)
+                [node-id (concat auxd [(merge {:db/id node-id, :cst/type etype} (value-data d))])])
+         :default [node-id []]))))
   IPersistentList
-  (object-data [^IPersistentList x] (list-data x :list (node)))
+  (object-data
+    ([x] (object-data x nil))
+    ([^IPersistentList x opts] (collection-data x :list (node) nil opts)))
   IPersistentVector
-  (object-data [^IPersistentVector x] (list-data x :vector (node)))
+  (object-data
+    ([x] (object-data x nil))
+    ([^IPersistentVector x opts] (collection-data x :vector (node) nil opts)))
   IPersistentMap
-  (object-data [^IPersistentMap x] (list-data (seq x) :map (node))))
+  (object-data
+    ([x] (object-data x nil))
+    ([^IPersistentMap x opts] (collection-data (seq x) :map (node) nil opts))))
 
 
 (defn- list-struct
-  [[head & tail] pre-node]
+  [[head & tail] pre-node opts]
   (let [pre-node (or pre-node (node))
-        [d aux] (object-data head)
-        list-elt {:db/id pre-node, (data-property d) (smb d)}]
+        [d aux] (object-data head opts)
+        list-elt (merge {:db/id pre-node} (value-data d))]
+    (note-symbol opts pre-node d)
     ;; if d is an object, then drop it in as a replacement at the end, or add rest to it
     (if-not (seq tail)
       [[list-elt aux]]
       (let [next-node (node)]
         (lazy-seq (cons [(assoc list-elt :cst/rest next-node) aux]
-                        (list-struct tail next-node)))))))
+                        (list-struct tail next-node opts)))))))
 
 (defn list-data
   "Converts a seq into a transaction seq, of a provided type and using a given function for seq elements.
@@ -126,26 +167,630 @@
   The provided function returns a pair: [list-element, auxiliary-data]
   Returns a pair: [list-ID, tx-sequence]."
   ([s t n] (list-data s t n nil))
-  ([s t n l]
-   (let [elt-data (list-struct s n)
-         aux (apply concat (map second elt-data))
-         [{list-id :db/id :as head} & srest] (map first elt-data)
-         head (assoc head :cst/type t)
-         head (if l (assoc head :cst/location l) head)]
-     [list-id (concat aux (cons head srest))])))
+  ([s t n l] (list-data s t n l nil))
+  ([s t n l opts]
+   (if-not (seq s)
+     ;; an empty collection is a head without a value
+     [n [(if l {:db/id n :cst/type t :cst/location l} {:db/id n :cst/type t})]]
+     (let [[[{list-id :db/id :as head} head-aux] & srest] (list-struct s n opts)
+           head (assoc head :cst/type t)
+           head (if l (assoc head :cst/location l) head)]
+       ;; each element follows its own auxiliary data, so a lazy seq is consumed one element at a time
+       [list-id (concat head-aux [head] (mapcat (fn [[elt aux]] (concat aux [elt])) srest))]))))
+
+(def index-gap
+  "The distance between the indexes of neighbouring elements when a collection is stored,
+   which leaves room to insert elements between them without renumbering"
+  1024)
+
+(defn index-between
+  "Returns an index for an element inserted between elements with the indexes before and after,
+   either of which may be nil at the ends of a collection. Returns nil when there is no room."
+  [before after]
+  (let [lo (if before (long before) (- (long after) (* 2 index-gap)))
+        hi (if after (long after) (+ (long before) (* 2 index-gap)))
+        mid (quot (+ lo hi) 2)]
+    (when (< lo mid hi) mid)))
+
+(def ^:private ^BigInteger low-bits (.subtract (.shiftLeft BigInteger/ONE 64) BigInteger/ONE))
+
+(defn- collection-key
+  "A new key for a collection stored with indexes"
+  ^long []
+  (.nextLong (java.util.concurrent.ThreadLocalRandom/current)))
+
+(defn position
+  "The :cst/position of the element at an index of the collection with the key k. Positions sort
+   by key and then by index, so the elements of a collection are one range of the AVET index."
+  ^BigInteger [^long k ^long index]
+  (.or (.shiftLeft (BigInteger/valueOf k) 64)
+       (.and (BigInteger/valueOf (bit-xor index Long/MIN_VALUE)) low-bits)))
+
+(defn- position-key
+  "The key of the collection in a :cst/position"
+  ^long [^BigInteger p]
+  (.longValue (.shiftRight p 64)))
+
+(defn- position-index
+  "The index of the element in a :cst/position"
+  ^long [^BigInteger p]
+  (bit-xor (.longValue p) Long/MIN_VALUE))
+
+(defn- key-positions
+  "The datoms of the positions of the elements of the collection with the key k, in order"
+  [db ^long k]
+  (d/index-range db :cst/position
+                 (position k Long/MIN_VALUE)
+                 (when-not (== k Long/MAX_VALUE) (position (inc k) Long/MIN_VALUE))))
+
+(defn collection-elements
+  "The entities of the elements of a collection stored with indexes, in order"
+  [db coll]
+  (when-let [k (:v (first (d/datoms db :eavt coll :cst/key)))]
+    (map #(.e ^Datom %) (key-positions db k))))
+
+(defn- scalar?
+  "Whether x can be one of the elements of a collection in the compact encoding"
+  [x]
+  (or (instance? Long x) (string? x) (keyword? x) (symbol? x) (instance? Boolean x)
+      (and (instance? Double x) (not (Double/isNaN x)) (not (Double/isInfinite x)))))
+
+(defn scalar-run
+  "Returns the text that holds the elements xs of a collection in the compact encoding, where
+   a collection of numbers, strings, keywords, symbols and booleans is stored as an edn vector in
+   :cst/scalars rather than as an entity for each element. Returns nil when xs is empty, holds other
+   values, or does not read back as the same values."
+  [xs]
+  (when (and (seq xs) (every? scalar? xs))
+    (let [xs (vec xs)
+          s (binding [*print-length* nil *print-level* nil *print-meta* false *print-dup* false]
+              (pr-str xs))]
+      (when (= xs (edn/read-string s)) s))))
+
+(defn- element-data
+  "The transaction data that adds x as an element at the given index of the collection with the
+   key k. An entity is an element itself, and other values are each held in an entity of their own.
+   Returns a pair: [element-ID, tx-sequence]."
+  [k x index opts]
+  (let [[d aux] (object-data x opts)
+        p (position k index)]
+    (if (instance? DbId d)
+      [d (concat aux [[:db/add d :cst/position p]])]
+      (let [element (node)]
+        (note-symbol opts element d)
+        [element (concat aux [(merge {:db/id element :cst/position p} (value-data d))])]))))
+
+(defn indexed-data
+  "Converts a seq into transaction data for a collection of type t, which is given a :cst/key.
+  Each element holds the key and its index in its :cst/position, so the elements are found, in
+  order, from the AVET index, and the collection does not refer to them. Elements that are entities
+  hold their own position, and other values are each held in an entity of their own. Indexes are
+  index-gap apart. An empty collection has no key. Each element follows its own auxiliary data,
+  as for list-data.
+  Returns a pair: [collection-ID, tx-sequence]."
+  ([s t n] (indexed-data s t n nil nil))
+  ([s t n l opts]
+   (let [k (collection-key)
+         head {:db/id n :cst/type t}
+         head (if l (assoc head :cst/location l) head)
+         head (if (seq s) (assoc head :cst/key k) head)]
+     [n (cons head
+              (mapcat (fn [i x] (second (element-data k x (* i index-gap) opts))) (range) s))])))
+
+(defn- collection-data
+  [s t n l opts]
+  (if-let [run (and (:compact opts) (not= :file t) (scalar-run s))]
+    (do (doseq [x s] (note-symbol opts n x))
+        [n [{:db/id n :cst/type t :cst/scalars run}]])
+    (if (= :indexed (:storage opts))
+      (indexed-data s t n l opts)
+      (list-data s t n l opts))))
+
+(def ^:private collection-types #{:file :list :vector :map :set})
+
+(defn- stored-type
+  "The :cst/type of the entity that object-data stores x in, or nil when x is stored as a value"
+  [x]
+  (cond
+    (instance? SyntaxElement x) (let [^SyntaxElement e x
+                                      t (. e id)]
+                                  (case t
+                                    :cst/file :file
+                                    :cst/map :map
+                                    :cst/set :set
+                                    (when (some? (. e data)) t)))
+    (instance? IPersistentList x) :list
+    (instance? IPersistentVector x) :vector
+    (instance? IPersistentMap x) :map))
+
+(defn- stored-children
+  "The values that object-data stores under the entity for x"
+  [x]
+  (if (instance? SyntaxElement x)
+    (let [^SyntaxElement e x
+          data (. e data)]
+      (case (. e id)
+        :cst/file (:data data)
+        (:cst/map :cst/set) data
+        :cst/conditional [(:form data)]
+        [data]))
+    (seq x)))
+
+(defn- hashed-value
+  "What is hashed for the value x: what smb stores, but a whole symbol, as its name alone does not
+   tell symbols in different namespaces apart"
+  [x]
+  (if (symbol? x) (str x) (smb x)))
+
+(defn- value-hash ^long [v]
+  (StructuralHash/of [(data-property v) (hashed-value v)]))
+
+(def ^:private content-seed
+  "Starts the second hash of a content key, so that it is not the same function as the first"
+  :cst/content-hash)
+
+(defn- content-key
+  "A 128 bit hash of what object-data stores for x, as a pair of longs. The first is built from the
+   structural hashes of the forms stored, and the second in the same way but from a different start,
+   so that two subtrees must match in both to have the same key. The keys of nodes are kept in keys."
+  [^Map keys x]
+  (if-let [t (stored-type x)]
+    (or (.get keys x)
+        (let [parts (if (= :cst/conditional t)
+                      (let [data (. ^SyntaxElement x data)]
+                        [[t (boolean (:splice data))] [(content-key keys (:form data))]])
+                      [[t] (map #(content-key keys %) (stored-children x))])
+              [head children] parts
+              k [(StructuralHash/of (into head (map first) children))
+                 (StructuralHash/of (into (into [content-seed] head) (map second) children))]]
+          (.put keys x k)
+          k))
+    (let [a (data-property x) v (hashed-value x)]
+      [(StructuralHash/of [a v]) (StructuralHash/of [content-seed a v])])))
+
+(defn- content-uuid
+  ([[h1 h2]] (UUID. h1 h2))
+  ([[h1 h2] i] (UUID. (StructuralHash/of [h1 i]) (StructuralHash/of [content-seed h2 i]))))
+
+(declare shared-node entity-infos note-stored-symbols)
+
+(defn- shared-value
+  "The attributes and values that hold x in the entity e, in the shared encoding"
+  [w e x]
+  (if (stored-type x)
+    {:cst.value/shared (shared-node w x)}
+    (do (note-symbol w e x)
+        (value-data x))))
+
+(defn- shared-node
+  "Returns the entity of a subtree in the shared encoding, adding its transaction data to the :out
+   of w the first time the subtree is seen. A subtree is identified by the uuid of its content key in
+   :cst/content-hash, and is found in the :db of w if it is already stored, or in the :ids of w if it
+   was written before. Its elements are held in entities of their own, identified by the key of the
+   subtree and their index, so that adding the same subtree twice changes nothing. The :cst/key of a
+   collection is taken from its content hash. When w is
+   :compact, a collection of scalars is written as a run instead; see scalar-run. The symbols of a
+   subtree that is already stored are noted from the entities that hold them."
+  [{:keys [db ^Map ids ^Map keys ^java.util.List out] :as w} x]
+  (let [k (content-key keys x)
+        u (content-uuid k)]
+    (or (.get ids u)
+        (let [stored (when db (d/entid db [:cst/content-hash u]))
+              id (or stored (node))]
+          (.put ids u id)
+          (if stored
+            (when (::symbols w)
+              (note-stored-symbols w (first (entity-infos db stored)) stored))
+            (let [t (stored-type x)
+                  head {:db/id id :cst/content-hash u :cst/type t}
+                  run (when (and (:compact w) (not= :file t) (collection-types t))
+                        (scalar-run (stored-children x)))]
+              (cond
+                run
+                (do (doseq [x (stored-children x)] (note-symbol w id x))
+                    (.add out (assoc head :cst/scalars run)))
+
+                (collection-types t)
+                (let [xs (stored-children x)
+                      ck (bit-xor (.getMostSignificantBits ^UUID u) (.getLeastSignificantBits ^UUID u))]
+                  (.add out (if (seq xs) (assoc head :cst/key ck) head))
+                  (doseq [[i x] (map-indexed vector xs)]
+                    (let [element (node)]
+                      (.add out (merge {:db/id element :cst/content-hash (content-uuid k i)
+                                        :cst/position (position ck (* i index-gap))}
+                                       (shared-value w element x))))))
+
+                (= :cst/conditional t)
+                (let [data (. ^SyntaxElement x data)]
+                  (.add out (assoc head :cst.cond/splice (boolean (:splice data))
+                                        :cst.cond/form (shared-node w (:form data)))))
+
+                :default
+                (.add out (merge head (shared-value w id (. ^SyntaxElement x data)))))))
+          id))))
+
+(defn shared-writer
+  "Creates the state for writing subtrees in the shared encoding. Subtrees already in db, if it is
+   given, are referred to rather than written again."
+  [db]
+  {:db db :ids (java.util.HashMap.) :keys (IdentityHashMap.) :out (ArrayList.)})
+
+(defn- shared-element
+  "Adds x as an element at the given index of the collection with the key k, in the shared encoding.
+   The element is an entity of its own, which refers to x when x is a subtree. Returns the element."
+  [{:keys [^ArrayList out] :as w} k x index]
+  (let [element (node)]
+    (.add out (merge {:db/id element :cst/position (position k index)} (shared-value w element x)))
+    element))
+
+(defn- shared-data
+  "Converts an object into transaction data in the shared encoding. The forms of a file are held in
+   elements of the file, each referring to a shared subtree or holding a value."
+  [obj {:keys [db compact] :as opts}]
+  (let [{:keys [^ArrayList out] :as w} (assoc (shared-writer db) :compact compact ::symbols (::symbols opts))]
+    (if (= :file (stored-type obj))
+      (let [data (. ^SyntaxElement obj data)
+            n (node)
+            k (collection-key)
+            location (or (path/to-uri (:location data)) (URI. (str "uuid:" (UUID/randomUUID))))]
+        (.add out (cond-> {:db/id n :cst/type :file :cst/location location}
+                          (seq (:data data)) (assoc :cst/key k)))
+        (doseq [[i x] (map-indexed vector (:data data))]
+          (shared-element w k x (* i index-gap))))
+      (shared-node w obj))
+    (vec out)))
+
+(def ^:private definers
+  '#{def defn defn- defmacro defmulti defonce defprotocol defrecord deftype definterface defstruct})
+
+(defn- form-items
+  "The forms inside a list or vector, either as read or as rebuilt from the database"
+  [x]
+  (if (instance? SyntaxElement x)
+    (let [^SyntaxElement e x]
+      (when (#{SyntaxElement$Type/LIST SyntaxElement$Type/VECTOR} (.type e))
+        (seq (.data e))))
+    (when (sequential? x) (seq x))))
+
+(defn- without-meta
+  "The form that metadata, such as ^:private, is attached to"
+  [x]
+  (if (and (instance? SyntaxElement x) (= SyntaxElement$Type/META (.type ^SyntaxElement x)))
+    (recur (:object (.data ^SyntaxElement x)))
+    x))
+
+(defn- defined-name
+  "The name defined by a top level form, such as (defn f ...), or nil"
+  [form]
+  (let [[head nm] (map without-meta (form-items form))]
+    (when (and (definers head) (symbol? nm))
+      nm)))
+
+(defn- ns-context
+  "Reads the name, aliases and referred symbols of the ns form of a file, and the names it defines"
+  [forms]
+  (let [[_ ns-name & clauses] (some #(let [items (form-items %)]
+                                       (when (= 'ns (first items)) (map without-meta items)))
+                                    forms)
+        ctx {:ns (some-> ns-name str)
+             :aliases {}
+             :refers {}
+             :excluded #{}
+             :defined (set (keep defined-name forms))}]
+    (reduce (fn [ctx clause]
+              (let [[kind & specs] (form-items clause)]
+                (case kind
+                  (:require :use)
+                  (reduce (fn [ctx spec]
+                            (let [[lib & options] (form-items spec)
+                                  {alias :as refer :refer only :only} (apply hash-map (take (* 2 (quot (count options) 2)) options))]
+                              (if-not (symbol? lib)
+                                ctx
+                                (cond-> ctx
+                                        (symbol? alias) (assoc-in [:aliases (name alias)] (name lib))
+                                        true (update :refers into (for [r (form-items (or refer only))
+                                                                        :when (symbol? r)]
+                                                                    [r (symbol (name lib) (name r))]))))))
+                          ctx specs)
+                  :refer-clojure
+                  (let [{exclude :exclude} (apply hash-map (take (* 2 (quot (count specs) 2)) specs))]
+                    (update ctx :excluded into (filter symbol? (form-items exclude))))
+                  ctx)))
+            ctx clauses)))
+
+(def ^:private core-names (delay (set (keys (ns-publics 'clojure.core)))))
+
+(defn- resolve-symbol
+  "Qualifies a symbol with the namespace it refers to, as far as the ns form of its file shows"
+  [{:keys [ns aliases refers excluded defined]} sym]
+  (str (if-let [qualifier (namespace sym)]
+         (if-let [full (aliases qualifier)] (symbol full (name sym)) sym)
+         (or (refers sym)
+             (when (and ns (defined sym)) (symbol ns (name sym)))
+             (when (and (@core-names sym) (not (excluded sym))) (symbol "clojure.core" (name sym)))
+             sym))))
+
+(defn xref-entries
+  "Maps each symbol used in a file, resolved, to the :nodes that hold it and the top level form
+   that is its :definition. The forms are named by the given entities, and symbols is a seq of
+   pairs of a node and the symbol it holds. A symbol in a collection of scalars is held by the
+   collection."
+  [forms entities symbols]
+  (let [ctx (ns-context forms)
+        m (reduce (fn [m [e sym]] (update-in m [(resolve-symbol ctx sym) :nodes] (fnil conj #{}) e))
+                  {} symbols)]
+    (reduce (fn [m [form e]]
+              (if-let [nm (defined-name form)]
+                (assoc-in m [(resolve-symbol ctx nm) :definition] e)
+                m))
+            m (map vector forms entities))))
+
+(defn- xref-data
+  "The transaction data for the cross references of the file n"
+  [n entries]
+  (for [[sym {:keys [nodes definition]}] entries]
+    (cond-> {:db/id (node) :cst.xref/file n :cst.xref/symbol sym :cst.xref/node (vec nodes)}
+            definition (assoc :cst.xref/definition definition))))
+
+(defn- has-value-attribute? [m]
+  (some #(= "cst.value" (namespace %)) (keys m)))
+
+(defn- file-forms
+  "The entities of the top level forms of the file n in its transaction data: the entity of each
+   form, or for a form held as a value or shared with other files, the element that holds it"
+  [tx n]
+  (let [k (some #(when (and (map? %) (= n (:db/id %))) (:cst/key %)) tx)
+        elements (when k
+                   (keep (fn [x]
+                           (let [[e p] (if (map? x)
+                                         [(:db/id x) (:cst/position x)]
+                                         (when (= :cst/position (nth x 2)) [(nth x 1) (nth x 3)]))]
+                             (when (and p (== (long k) (position-key p))) e)))
+                         tx))]
+    (if (seq elements)
+      elements
+      ;; the linked encoding, where the file is the first cell of its list
+      (let [cells (into {} (comp (filter map?) (map (juxt :db/id identity))) tx)]
+        (loop [cell (cells n) forms []]
+          (if (and cell (has-value-attribute? cell))
+            (recur (cells (:cst/rest cell)) (conj forms (or (:cst.value/object cell) (:db/id cell))))
+            forms))))))
+
+(defn- file-xref-data
+  "The transaction data for the cross references of a file, from the transaction data that stores it
+   and the symbols noted as it was made"
+  [^SyntaxElement file tx symbols]
+  (let [n (some #(when (and (map? %) (:cst/location %)) (:db/id %)) tx)]
+    (xref-data n (xref-entries (:data (.data file)) (file-forms tx n) symbols))))
+
+(defn- feed
+  "Reduces items into acc with f, as part of a larger reduction. Returns acc, or a reduced acc
+   when f ends the reduction."
+  [f acc items]
+  (reduce (fn [acc item]
+            (let [acc (f acc item)]
+              (if (reduced? acc) (reduced acc) acc)))
+          acc items))
+
+(defn- reducible-forms?
+  "Whether the forms of a file are a reducible rather than a collection, as cst-read-all-lazy reads them"
+  [^SyntaxElement file]
+  (let [forms (:data (. file data))]
+    (and (instance? clojure.lang.IReduceInit forms) (not (coll? forms)))))
+
+(defn- reducible-file-data
+  "The transaction data for a file whose forms are a reducible rather than a collection, such as one
+   from cst.reader/cst-read-all-lazy, as a reducible. Each form is read, converted and passed on
+   before the next is read, so no more than one form is held at a time. The file entity comes last,
+   since it is only known once the forms have all been read whether it has any."
+  [^SyntaxElement file {:keys [storage] :as opts}]
+  (let [data (. file data)
+        location (or (path/to-uri (:location data)) (URI. (str "uuid:" (UUID/randomUUID))))]
+    (reify clojure.lang.IReduceInit
+      (reduce [_ f init]
+        (let [n (node)
+              k (collection-key)
+              head {:db/id n :cst/type :file :cst/location location}
+              writer (when (= :shared storage) (assoc (shared-writer (:db opts)) :compact (:compact opts)))
+              i (volatile! 0)
+              ;; in the linked encoding, the cell of the last form read, which waits for the next cell
+              cell (volatile! nil)
+              items (fn [x]
+                      (let [j (long @i)
+                            index (* j (long index-gap))]
+                        (vreset! i (inc j))
+                        (case storage
+                          :shared (let [^ArrayList out (:out writer)]
+                                    (shared-element writer k x index)
+                                    (let [items (vec out)] (.clear out) items))
+                          :indexed (second (element-data k x index opts))
+                          (let [[d aux] (object-data x opts)
+                                id (if @cell (node) n)
+                                previous @cell]
+                            (vreset! cell (cond-> (merge {:db/id id} (value-data d))
+                                                  (= id n) (merge head)))
+                            (concat aux (when previous [(assoc previous :cst/rest id)]))))))
+              acc (reduce (fn [acc x]
+                            (let [acc (feed f acc (items x))]
+                              (if (reduced? acc) (reduced acc) acc)))
+                          init (:data data))]
+          (if (reduced? acc)
+            @acc
+            (unreduced
+              (feed f acc (cond
+                            @cell [@cell]
+                            (zero? (long @i)) [head]
+                            :default [(assoc head :cst/key k)])))))))))
 
 (defn tx-data
-  "Convert an object into transaction data. The final item is always the Object."
-  [obj]
-  (let [[element aux] (object-data obj)]
-    (if (instance? DbId element)
-      aux
-      (concat aux
-              [(if (map? element)
-                 element
-                 {:db/id                  (node)
-                  :cst/type               :native
-                  (data-property element) (smb element)})]))))
+  "Convert an object into transaction data. The final item is always the Object.
+   The opts are described in object-data, and may also give:
+     :storage :shared - stores subtrees once each, keyed by their content; see shared-node.
+                        Such trees are read with read-entity, and not with d/pull.
+     :db - with shared storage, a database whose subtrees are referred to rather than written again
+     :compact true - stores collections of scalars in the compact encoding, with any :storage.
+                     The database needs the compact schema; see load-schema.
+     :xref true - adds the cross references of a file, for find-usages and find-definition
+   A file whose forms are a reducible, from cst.reader/cst-read-all-lazy, gives a reducible of
+   transaction data, which reads the forms as it is reduced; see reducible-file-data. Cross
+   references need every form of a file at once, so they cannot be added to such a file."
+  ([obj] (tx-data obj nil))
+  ([obj opts]
+   (when (and (= :file (stored-type obj)) (reducible-forms? obj) (:xref opts))
+     (throw (ex-info "Cross references need the forms of a file at once, read it with cst-read-all"
+                     {:location (:location (. ^SyntaxElement obj data))})))
+   (let [symbols (when (and (:xref opts) (= :file (stored-type obj))) (ArrayList.))
+         opts (cond-> opts symbols (assoc ::symbols symbols))
+         tx (cond
+              (and (= :file (stored-type obj)) (reducible-forms? obj))
+              (reducible-file-data obj opts)
+
+              (and (= :shared (:storage opts)) (stored-type obj))
+              (shared-data obj opts)
+
+              :default
+              (let [[element aux] (object-data obj opts)]
+                (if (instance? DbId element)
+                  aux
+                  (concat aux
+                          [(if (map? element)
+                             element
+                             (merge {:db/id (node) :cst/type :native} (value-data element)))]))))]
+     (if symbols
+       (let [tx (vec tx)]
+         (into tx (file-xref-data obj tx symbols)))
+       tx))))
+
+(defn- tempids-in
+  "The tempids in an item of transaction data: a map or a list of operation, entity, attribute and value"
+  [m]
+  (filter #(instance? DbId %)
+          (mapcat #(if (and (coll? %) (not (instance? DbId %))) % [%]) (if (map? m) (vals m) (rest m)))))
+
+(defn- defined-first
+  "Orders transaction data so that each item that refers to a tempid comes after the first item
+   that asserts something about it, keeping the order of the data otherwise. A chunk then never
+   refers to an entity that only a later chunk creates."
+  [tx]
+  (let [items (vec tx)
+        entity (fn [m] (if (map? m) (:db/id m) (second m)))
+        refs (fn [m] (filter #(instance? DbId %)
+                             (mapcat #(if (and (coll? %) (not (instance? DbId %))) % [%])
+                                     (if (map? m) (vals (dissoc m :db/id)) (drop 2 m)))))
+        definer (reduce-kv (fn [definer i m]
+                             (let [e (entity m)]
+                               (if (and (instance? DbId e) (not (contains? definer e))) (assoc definer e i) definer)))
+                           {} items)
+        seen (boolean-array (count items))
+        out (ArrayList. (count items))]
+    (dotimes [i (count items)]
+      (when-not (aget seen i)
+        (aset seen i true)
+        ;; each frame is an item and the items it refers to that have not been placed yet
+        (loop [stack (list [i (keep definer (refs (items i)))])]
+          (when-let [[j deps] (first stack)]
+            (if-let [d (first deps)]
+              (let [stack (conj (rest stack) [j (rest deps)])]
+                (if (aget seen (int d))
+                  (recur stack)
+                  (do (aset seen (int d) true)
+                      (recur (conj stack [d (keep definer (refs (items d)))])))))
+              (do (.add out (items j))
+                  (recur (rest stack))))))))
+    (vec out)))
+
+(defn chunk-tx-data
+  "Splits transaction data into chunks of at most n items, to be transacted in order. The data is
+   ordered so that an entity is created in the chunk that first refers to it, or an earlier one;
+   transact-chunked gives the later chunks that use it its entity id."
+  [tx n]
+  (mapv vec (partition-all n (defined-first tx))))
+
+(defn- earlier-tempids
+  "The tempids of each chunk that an earlier chunk also uses, and so creates"
+  [chunks]
+  (first (reduce (fn [[earlier seen] chunk]
+                   (let [ids (set (mapcat tempids-in chunk))]
+                     [(conj earlier (into #{} (filter seen) ids)) (into seen ids)]))
+                 [[] #{}] chunks)))
+
+(defn- replace-tempids
+  "Replaces the tempids in an item of transaction data that are keys of ids with their entity ids"
+  [ids m]
+  (let [id (fn [v] (if (instance? DbId v) (get ids v v) v))
+        value (fn [v] (if (and (coll? v) (not (instance? DbId v))) (into (empty v) (map id) v) (id v)))]
+    (if (map? m)
+      (reduce-kv #(assoc %1 %2 (value %3)) {} m)
+      (into [(first m)] (map value) (rest m)))))
+
+(def ^:private same-thread (reify Executor (execute [_ r] (.run r))))
+
+(defn transact-chunked
+  "Transacts transaction data in chunks, so that no one transaction is too large. Chunks are
+   submitted with transact-async, with a number of them in flight at a time; the transactor applies
+   them in order. The tempids of each chunk are resolved from its report, and a later chunk that
+   uses one of them is given its entity id instead, so it is not submitted until the chunks that
+   created its entities have been applied.
+   Options:
+     :chunk-size - the most maps of transaction data in a chunk (defaults to 1000)
+     :in-flight - the most chunks submitted but not yet applied (defaults to 4)
+   Returns the :db-after of the last chunk, the entity ids of the tempids in :tempids, and statistics:
+   the :size and :ms latency of each chunk in :chunks, the total :seconds and the :maps-per-sec.
+   If a chunk fails no more are submitted, but the chunks already submitted after it are still
+   applied, so what is stored need not be a prefix of the data. The ex-info that is then thrown
+   gives the position of the chunk that failed in :failed, the positions of the chunks that were
+   stored in :committed, and the entity ids of their tempids in :tempids, so that they can be retracted."
+  ([conn tx] (transact-chunked conn tx nil))
+  ([conn tx {:keys [chunk-size in-flight] :or {chunk-size 1000 in-flight 4}}]
+   (let [chunks (chunk-tx-data tx chunk-size)
+         earlier (earlier-tempids chunks)
+         start (System/nanoTime)
+         ready? (fn [i tempids] (every? #(contains? tempids %) (earlier i)))
+         submit (fn [i chunk tempids]
+                  (let [chunk (if (seq (earlier i)) (mapv #(replace-tempids tempids %) chunk) chunk)
+                        submitted (System/nanoTime)
+                        done (promise)
+                        ^ListenableFuture f (d/transact-async conn chunk)]
+                    (.addListener f #(deliver done (System/nanoTime)) same-thread)
+                    {:index i :chunk chunk :future f :submitted submitted :done done}))
+         record (fn [stats {:keys [index chunk submitted done]} {:keys [db-after tempids]}]
+                  (-> stats
+                      (assoc :db-after db-after)
+                      (update :tempids into (for [id (distinct (mapcat tempids-in chunk))]
+                                              [id (d/resolve-tempid db-after tempids id)]))
+                      (update :chunks conj {:index index
+                                            :size (count chunk)
+                                            :ms (/ (- @done submitted) 1e6)})))]
+     (loop [pending clojure.lang.PersistentQueue/EMPTY
+            chunks (map-indexed vector chunks)
+            stats {:chunks [] :tempids {}}]
+       (cond
+         (and (seq chunks) (< (count pending) in-flight) (ready? (ffirst chunks) (:tempids stats)))
+         (let [[i chunk] (first chunks)]
+           (recur (conj pending (submit i chunk (:tempids stats))) (rest chunks) stats))
+
+         (seq pending)
+         (let [p (peek pending)
+               report (try @(:future p) (catch Exception e e))]
+           (if (instance? Exception report)
+             ;; the chunks already submitted are applied whether or not this one was
+             (let [stats (reduce (fn [stats q]
+                                   (let [r (try @(:future q) (catch Exception _))]
+                                     (if r (record stats q r) stats)))
+                                 stats (pop pending))]
+               (throw (ex-info "Chunk failed to transact"
+                               {:failed (:index p)
+                                :committed (mapv :index (:chunks stats))
+                                :tempids (:tempids stats)}
+                               report)))
+             (recur (pop pending) chunks (record stats p report))))
+
+         :default
+         (let [elapsed (- (System/nanoTime) start)
+               maps (reduce + (map :size (:chunks stats)))]
+           (assoc stats
+             :seconds (/ elapsed 1e9)
+             :maps-per-sec (if (pos? elapsed) (/ (* maps 1e9) elapsed) 0.0))))))))
 
 (declare reconstruct)
 
@@ -165,63 +810,849 @@
 (defn value-fn
   "Retrieves the value from a structure, "
   [e]
-  (some (fn [[k v]] (if (= (namespace k) "cst.value")
-                      (value-of k v)))
-        e))
+  (let [v (some (fn [[k v]] (if (= (namespace k) "cst.value")
+                              (value-of k v)))
+                e)]
+    (if-let [ns (:cst.symbol/ns e)]
+      (symbol ns (name v))
+      v)))
+
+(defn- element-value
+  "The value of an indexed element: an entity with a type is the value itself"
+  [e]
+  (if (:cst/type e) e (value-fn e)))
 
 (defn rebuild-list*
   [l]
-  (map value-fn (sort-by :cst/index l)))
+  (map element-value l))
 
 (defn rebuild-list
-  [{next :cst/rest :as e}]
-  (let [v (value-fn e)]
-    (if-not (seq next)
-      [v]
-      (cons v (rebuild-list next)))))
+  [e]
+  (loop [{next :cst/rest :as e} e, values []]
+    (let [values (conj values (value-fn e))]
+      (if-not (seq next)
+        values
+        (recur next values)))))
+
+(defn- has-value? [e]
+  (some #(= "cst.value" (namespace (key %))) e))
+
+(defn rebuild-elements
+  "Returns the values of the elements of a collection, stored either as a list or with indexes"
+  [e]
+  (cond
+    (contains? e :cst/scalars) (edn/read-string (:cst/scalars e))
+    (contains? e ::elements) (rebuild-list* (::elements e))
+    (has-value? e) (rebuild-list e)
+    :default []))
 
 (defmulti reconstruct :cst/type)
 
 (defmethod reconstruct :file
   [f]
-  (let [elements (rebuild-list f)]
+  (let [elements (rebuild-elements f)]
     (SyntaxElement. SyntaxElement$Type/FILE (map reconstruct elements))))
 
 (defmethod reconstruct :vector
   [v]
-  (let [elements (rebuild-list v)]
+  (let [elements (rebuild-elements v)]
     (SyntaxElement. SyntaxElement$Type/VECTOR (apply vector (map reconstruct elements)))))
 
 (defmethod reconstruct :list
   [l]
-  (let [elements (rebuild-list l)]
+  (let [elements (rebuild-elements l)]
     (SyntaxElement. SyntaxElement$Type/LIST (map reconstruct elements))))
 
 (defmethod reconstruct :map
   [m]
-  (let [elements (rebuild-list m)]
+  (let [elements (rebuild-elements m)]
     (SyntaxElement. SyntaxElement$Type/MAP (map reconstruct elements))))
 
-(defmethod reconstruct :conditional
+(defmethod reconstruct :set
+  [s]
+  (let [elements (rebuild-elements s)]
+    (SyntaxElement. SyntaxElement$Type/SET (map reconstruct elements))))
+
+(defmethod reconstruct :cst/conditional
   [c]
   (let [form (reconstruct (:cst.cond/form c))
         splice? (:cst.cond/splice c)]
     (SyntaxElement. SyntaxElement$Type/CONDITIONAL {:splice splice?, :form form})))
 
-(defmethod reconstruct :default [v] v)
+(defmethod reconstruct :default
+  [v]
+  ;; other elements of syntax are stored with their id as the type, and the data they wrap as the value
+  (let [t (:cst/type v)]
+    (if (and (keyword? t) (= "cst" (namespace t)))
+      (SyntaxElement. (SyntaxElement$Type/valueOf (.toUpperCase (name t))) (value-fn v))
+      v)))
 
 (defn get-filenames
   "Retrieves the locations (or paths) for each file stored in the database."
   [db]
   (q '[:find [?l ...] :where [?e :cst/type :file] [?e :cst/location ?l]] db))
 
+(def ^:private value-kinds
+  (into {:cst.value/symbol :symbol
+         :cst.value/object :object
+         :cst.value/shared :shared}
+        (map (fn [t] [(keyword "cst.value" (name t)) :scalar]))
+        data/std-types))
+
+(defn- attribute-kinds
+  "Maps the ids of the attributes that hold syntax in db to the part of a node they hold"
+  [db]
+  (into {}
+        (keep (fn [[a kind]] (when-let [id (d/entid db a)] [id kind])))
+        (merge value-kinds
+               {:cst/type :type
+                :cst/rest :rest
+                :cst/key :key
+                :cst/position :position
+                :cst/scalars :scalars
+                :cst.symbol/ns :ns
+                :cst.cond/form :form
+                :cst.cond/splice :splice})))
+
+(defn- entity-info
+  "Reads the parts of a node from the datoms of its entity. The elements of a collection stored with
+   indexes are read, in order, from their positions."
+  [db kinds e]
+  (let [info (reduce (fn [info ^Datom datom]
+                       (let [v (.v datom)]
+                         (case (kinds (.a datom))
+                           :scalar (assoc info :value v)
+                           :symbol (assoc info :value (symbol v))
+                           :object (assoc info :value v :object true)
+                           :shared (assoc info :value v :object true :shared true)
+                           :type (assoc info :type v)
+                           :rest (assoc info :rest v)
+                           :key (assoc info :key v)
+                           :position (assoc info :index (position-index v))
+                           :scalars (assoc info :scalars (edn/read-string v))
+                           :ns (assoc info :ns v)
+                           :form (assoc info :form v)
+                           :splice (assoc info :splice v)
+                           info)))
+                     {} (d/datoms db :eavt e))
+        info (if-let [ns (:ns info)]
+               (-> info (dissoc :ns) (update :value #(symbol ns (name %))))
+               info)]
+    (if-let [k (:key info)]
+      (assoc info :elements (mapv #(.e ^Datom %) (key-positions db k)))
+      info)))
+
+(defn- entity-refs
+  "The entities that hold the parts of a node"
+  [info]
+  (cond-> (vec (:elements info))
+          (:object info) (conj (:value info))
+          (:rest info) (conj (:rest info))
+          (:form info) (conj (:form info))))
+
+(defn- entity-infos
+  "Reads the parts of every entity of the tree under eid, without recursion. Returns a map of
+   entities to their parts, and the entities in post-order, so that each comes after the parts
+   it refers to. A subtree shared by several parents is read, and is in the order, once."
+  [db eid]
+  (let [kinds (attribute-kinds db)
+        infos (java.util.HashMap.)
+        order (java.util.ArrayList.)]
+    (loop [stack (list eid)]
+      (when-let [x (first stack)]
+        (cond
+          ;; an entity whose parts have all been visited
+          (vector? x) (do (.add order (x 0)) (recur (rest stack)))
+          (.containsKey infos x) (recur (rest stack))
+          :else (let [info (entity-info db kinds x)]
+                  (.put infos x info)
+                  (recur (into (conj (rest stack) [x]) (entity-refs info)))))))
+    [infos order]))
+
+(defn- note-stored-symbols
+  "Notes the symbols held under the stored entity e, whose parts are read into infos, as note-symbol
+   does for new nodes. A subtree shared by several parents is looked at once."
+  [opts ^Map infos e]
+  (when (::symbols opts)
+    (let [seen (java.util.HashSet.)]
+      (loop [stack (list e)]
+        (when-let [x (first stack)]
+          (if-not (.add seen x)
+            (recur (rest stack))
+            (let [info (.get infos x)]
+              (if (:scalars info)
+                (doseq [s (:scalars info)] (note-symbol opts x s))
+                (when-not (:object info) (note-symbol opts x (:value info))))
+              (recur (into (rest stack) (entity-refs info))))))))))
+
+(defn- read-tree
+  "Reconstructs the syntax stored under an entity, as read-entity does. Returns the syntax and the
+   entities it was read from. A shared subtree is built once, and used in each place it appears."
+  [db eid]
+  (let [[^java.util.HashMap infos order] (entity-infos db eid)
+        built (java.util.HashMap.)
+        value (fn [info] (if (:object info) (.get built (:value info)) (:value info)))
+        elements (fn [info]
+                   (cond
+                     (:scalars info) (:scalars info)
+                     (:elements info) (mapv (fn [e] (let [i (.get infos e)] (if (:type i) (.get built e) (value i))))
+                                            (:elements info))
+                     (contains? info :value) (loop [info info, values []]
+                                               (let [values (conj values (value info))]
+                                                 (if-let [r (:rest info)]
+                                                   (recur (.get infos r) values)
+                                                   values)))
+                     :default []))]
+    (doseq [e order
+            :let [info (.get infos e)
+                  t (:type info)]]
+      (.put built e
+            (case t
+              :file (SyntaxElement. SyntaxElement$Type/FILE (elements info))
+              :vector (SyntaxElement. SyntaxElement$Type/VECTOR (elements info))
+              :list (SyntaxElement. SyntaxElement$Type/LIST (PersistentList/create (elements info)))
+              :map (SyntaxElement. SyntaxElement$Type/MAP (elements info))
+              :set (SyntaxElement. SyntaxElement$Type/SET (elements info))
+              :cst/conditional (SyntaxElement. SyntaxElement$Type/CONDITIONAL
+                                               {:splice (:splice info) :form (.get built (:form info))})
+              (if (and (keyword? t) (= "cst" (namespace t)))
+                (SyntaxElement. (SyntaxElement$Type/valueOf (.toUpperCase (name t))) (value info))
+                (value info)))))
+    [(.get built eid) order]))
+
+(defn read-entity
+  "Reconstructs the syntax stored under an entity, such as a file. Each entity of the tree is read
+   once, straight from the EAVT index, and the nodes are built from the leaves up, without recursion,
+   so deep or long trees are read in one pass. Reads the linked, the indexed and the shared encodings."
+  [db eid]
+  (first (read-tree db eid)))
+
+(declare lazy-node)
+
+(defn- lazy-value
+  "The value held by an entity, with a value stored as an entity built by lazy-node"
+  [db kinds info]
+  (if (:object info)
+    (lazy-node db kinds (entity-info db kinds (:value info)))
+    (:value info)))
+
+(defn- lazy-elements
+  "A lazy seq of the elements of a collection, from any encoding. The elements of an indexed
+   collection are found in order with the collection, and each is read when it is first used, as
+   is each cell of a linked list."
+  [db kinds info]
+  (cond
+    (:scalars info) (seq (:scalars info))
+    (:elements info) (map #(let [e (entity-info db kinds %)]
+                             (if (:type e) (lazy-node db kinds e) (lazy-value db kinds e)))
+                          (:elements info))
+    (contains? info :value) ((fn cells [info]
+                               (lazy-seq
+                                 (cons (lazy-value db kinds info)
+                                       (when-let [r (:rest info)]
+                                         (cells (entity-info db kinds r))))))
+                              info)
+    :default ()))
+
+(defn- lazy-node
+  "Builds the node for an entity from its parts, as read-entity does, but with the elements of
+   collections read when they are first used. Where read-entity holds the elements in a vector they
+   are held in a DelayedVector, and where it holds them in a list they are held in a lazy seq, so
+   that the tree is equal to the one read-entity reads, and has the same structural hash."
+  [db kinds info]
+  (let [t (:type info)
+        elements #(DelayedVector. (fn [] (lazy-elements db kinds info)))]
+    (case t
+      :file (SyntaxElement. SyntaxElement$Type/FILE (elements))
+      :vector (SyntaxElement. SyntaxElement$Type/VECTOR (elements))
+      :list (SyntaxElement. SyntaxElement$Type/LIST (lazy-elements db kinds info))
+      :map (SyntaxElement. SyntaxElement$Type/MAP (elements))
+      :set (SyntaxElement. SyntaxElement$Type/SET (elements))
+      :cst/conditional (SyntaxElement. SyntaxElement$Type/CONDITIONAL
+                                       {:splice (:splice info)
+                                        :form (lazy-node db kinds (entity-info db kinds (:form info)))})
+      (if (and (keyword? t) (= "cst" (namespace t)))
+        (SyntaxElement. (SyntaxElement$Type/valueOf (.toUpperCase (name t))) (lazy-value db kinds info))
+        (lazy-value db kinds info)))))
+
+(defn lazy-entity
+  "Reconstructs the syntax stored under an entity, such as a file, reading each collection from the
+   database only when its elements are first used, and keeping them once read. Emitting or walking
+   the tree reads it all; taking one form of a file reads the entities of the file's elements and of
+   that form. The tree is equal to the one read-entity reads."
+  [db eid]
+  (let [kinds (attribute-kinds db)]
+    (lazy-node db kinds (entity-info db kinds eid))))
+
+(defn- pull-tree
+  "Pulls the tree under an entity with d/pull, for reconstruct. A collection stored with indexes
+   does not refer to its elements, so they are pulled on their own, in order, into ::elements."
+  [db eid]
+  ((fn with-elements [x]
+     (if (map? x)
+       (let [m (into {} (map (fn [[a v]] [a (with-elements v)])) x)]
+         (if-let [k (:cst/key m)]
+           (assoc m ::elements (mapv #(with-elements (d/pull db '[*] (.e ^Datom %))) (key-positions db k)))
+           m))
+       x))
+   (d/pull db '[*] eid)))
+
+(defn- file-eid [db uri]
+  (q '[:find ?e . :in $ ?l :where [?e :cst/location ?l] [?e :cst/type :file]] db uri))
+
+(declare cached-cst)
+
 (defn get-cst
-  "Retrieves the Concrete Syntax Tree for a file location. Returns nil if the location is unknown."
+  "Retrieves the Concrete Syntax Tree for a file location. Returns nil if the location is unknown.
+   Options:
+     :via - :datoms (the default) to read the tree with read-entity, :pull to read it with
+            d/pull and reconstruct, or :lazy to read it with lazy-entity
+     :cache - a cache from cst-cache to read the tree through"
+  ([db location] (get-cst db location nil))
+  ([db location {:keys [via cache] :or {via :datoms}}]
+   (when location
+     (if cache
+       (cached-cst cache db location)
+       (when-let [eid (file-eid db (path/to-uri location))]
+         (case via
+           :pull (reconstruct (pull-tree db eid))
+           :lazy (lazy-entity db eid)
+           (read-entity db eid)))))))
+
+(defn cst-cache
+  "Creates a cache of the trees of files read from the databases of a connection, for cached-cst.
+   A tree is cached with the t of the database it was read from, and is used for reads from any
+   database at that t or later, until a transaction changes one of the entities it was read from.
+   The cache reads the transactions since the last read from the log of the connection, so only the
+   files that a transaction touches are evicted, and any number of caches and other readers of the
+   log can share a connection. The least recently used trees are evicted when the entities of all
+   the cached trees number more than :max-size (defaults to 1000000)."
+  ([conn] (cst-cache conn nil))
+  ([conn {:keys [max-size] :or {max-size 1000000}}]
+   {:conn conn
+    :lock (Object.)
+    :max-size max-size
+    ;; trees by location, least recently used first
+    :entries (java.util.LinkedHashMap. 16 0.75 true)
+    ;; the locations of the cached trees that each entity was read into
+    :owners (java.util.HashMap.)
+    ;; the t of the last transaction read from the log
+    :processed (java.util.concurrent.atomic.AtomicLong. (d/basis-t (d/db conn)))
+    :size (java.util.concurrent.atomic.AtomicLong.)
+    :hits (java.util.concurrent.atomic.AtomicLong.)
+    :misses (java.util.concurrent.atomic.AtomicLong.)
+    :evictions (java.util.concurrent.atomic.AtomicLong.)
+    :invalidations (java.util.concurrent.atomic.AtomicLong.)}))
+
+(defn- uncache
+  "Removes the tree of a location from a cache, with the entities it was read from"
+  [{:keys [^Map entries ^Map owners ^java.util.concurrent.atomic.AtomicLong size]} uri]
+  (when-let [{:keys [entities]} (.remove entries uri)]
+    (doseq [e entities]
+      (let [^java.util.Set locations (.get owners e)]
+        (when (and locations (.remove locations uri) (.isEmpty locations))
+          (.remove owners e))))
+    (.addAndGet size (- (count entities)))))
+
+(defn- catch-up
+  "Reads the transactions after the last one the cache has seen, up to t, from the log, and evicts
+   the trees that each transaction touched. The cache is only moved on to transactions that are in
+   the log. Returns true when the cache has then seen every transaction up to t, and false when
+   t is ahead of the log, as it is for a database from d/with."
+  [{:keys [conn ^Map owners
+           ^java.util.concurrent.atomic.AtomicLong processed
+           ^java.util.concurrent.atomic.AtomicLong invalidations] :as cache} t]
+  (let [from (.get processed)]
+    (if (< from (long t))
+      (let [db (d/db conn)
+            position-attr (d/entid db :cst/position)
+            ;; a change to an element is a change to its collection, which does not refer to it
+            touched (fn [^Datom datom]
+                      (if (and position-attr (== (long position-attr) (long (.a datom))))
+                        [(.e datom) (:e (first (d/datoms db :avet :cst/key (position-key (.v datom)))))]
+                        [(.e datom)]))
+            seen (reduce (fn [_ tx]
+                           (doseq [uri (into #{} (comp (mapcat touched) (mapcat #(.get owners %))) (:data tx))]
+                             (.incrementAndGet invalidations)
+                             (uncache cache uri))
+                           (long (:t tx)))
+                         from
+                         (d/tx-range (d/log conn) (inc from) (inc (long t))))]
+        (.set processed seen)
+        (>= (long seen) (long t)))
+      true)))
+
+(defn cached-cst
+  "Retrieves the Concrete Syntax Tree for a file location as get-cst does, using a cache from cst-cache.
+   A tree read from an older database than the one it is cached for, such as one from d/as-of, is
+   read again and not cached. So is a tree read from a database that is ahead of the log, such as
+   one from d/with, which is never served from the cache either."
+  [{:keys [lock ^Map entries ^Map owners max-size
+           ^java.util.concurrent.atomic.AtomicLong processed ^java.util.concurrent.atomic.AtomicLong size
+           ^java.util.concurrent.atomic.AtomicLong hits ^java.util.concurrent.atomic.AtomicLong misses
+           ^java.util.concurrent.atomic.AtomicLong evictions] :as cache}
+   db location]
+  (let [uri (path/to-uri location)
+        t (or (d/as-of-t db) (d/basis-t db))
+        cached (locking lock
+                 (when (catch-up cache t)
+                   (let [entry (.get entries uri)]
+                     (when (and entry (<= (long (:t entry)) t))
+                       entry))))]
+    (if cached
+      (do (.incrementAndGet hits)
+          (:tree cached))
+      (do (.incrementAndGet misses)
+          (when-let [eid (file-eid db uri)]
+            (let [[tree entities] (read-tree db eid)]
+              (locking lock
+                ;; a tree from the newest database seen is current; later changes to it will evict it
+                (when (and (catch-up cache t) (= t (.get processed)) (nil? (.get entries uri)))
+                  (.put entries uri {:tree tree :t t :entities entities})
+                  (doseq [e entities]
+                    (let [^java.util.Set locations (or (.get owners e)
+                                                       (let [s (java.util.HashSet.)] (.put owners e s) s))]
+                      (.add locations uri)))
+                  (.addAndGet size (count entities))
+                  (while (> (.get size) (long max-size))
+                    (.incrementAndGet evictions)
+                    (uncache cache (first (.keySet entries))))))
+              tree))))))
+
+(defn cache-stats
+  "The use of a cache from cst-cache: the :hits and :misses of reads, the trees evicted to keep its
+   size in :evictions, the trees evicted because a transaction changed them in :invalidations, and
+   the number of cached trees in :entries and of the entities they were read from in :size"
+  [{:keys [lock ^Map entries] :as cache}]
+  (locking lock
+    (into {:entries (.size entries)}
+          (map (fn [k] [k (.get ^java.util.concurrent.atomic.AtomicLong (cache k))]))
+          [:hits :misses :evictions :invalidations :size])))
+
+(defn close-cache
+  "Empties a cache. The cache holds nothing of its connection's, so it needs no other release."
+  [{:keys [lock ^Map entries ^Map owners ^java.util.concurrent.atomic.AtomicLong size]}]
+  (locking lock
+    (.clear entries)
+    (.clear owners)
+    (.set size 0)))
+
+(defn element-at
+  "Returns the value of the element at position i of a collection entity stored with indexes,
+   reading only the value of the one that is asked for. Returns nil when there is no such element.
+   The positions of the elements are one range of the AVET index, in order, so this is one seek
+   for the key of the collection and one into the index, and a scan of the i positions before the
+   element; inserts leave gaps of any size between indexes, so the index of the ith element is
+   not known without it. It does not read the other elements, and reads one element's tree rather
+   than the collection's."
+  [db coll i]
+  (when-let [e (nth (collection-elements db coll) i nil)]
+    (read-entity db e)))
+
+(defn- attributes
+  "Reads the attributes of an entity from the EAVT index, as a map of attribute idents to values"
+  [db e]
+  (reduce (fn [m datom] (assoc m (d/ident db (:a datom)) (:v datom))) {} (d/datoms db :eavt e)))
+
+(defn- value-attribute [attrs]
+  (first (filter #(= "cst.value" (namespace (key %))) attrs)))
+
+(defn- children-of
+  "The entities that an entity refers to as values"
+  [attrs]
+  (keep attrs [:cst.value/object :cst.cond/form]))
+
+(defn- index-chain
+  "Returns the transaction data that moves the chain of cells of the list at e onto e as indexed
+   elements, and the entities held by the elements"
+  [db e attrs]
+  (let [k (collection-key)
+        [a v] (value-attribute attrs)
+        ns (:cst.symbol/ns attrs)]
+    (loop [prev e
+           cell (:cst/rest attrs)
+           i 1
+           tx (cond-> [[:db/retract e a v]
+                       [:db/add e :cst/key k]
+                       (cond-> {:db/id (node) :cst/position (position k 0) a v}
+                               ns (assoc :cst.symbol/ns ns))]
+                      ns (conj [:db/retract e :cst.symbol/ns ns]))
+           children (children-of attrs)]
+      (if-not cell
+        [tx children]
+        (let [cell-attrs (attributes db cell)]
+          (recur cell (:cst/rest cell-attrs) (inc i)
+                 (conj tx
+                       [:db/retract prev :cst/rest cell]
+                       [:db/add cell :cst/position (position k (* i index-gap))])
+                 (into children (children-of cell-attrs))))))))
+
+(defn migration-tx
+  "Returns the transaction data that changes the collections under an entity, such as a file,
+   from the linked encoding of list-data to the indexed encoding of indexed-data. The cells of
+   each list are kept as its elements, and given indexes, and the value held by the head of the
+   list moves to a new element. Collections that already have indexes are left as they are."
+  [db root]
+  (loop [stack [root] tx []]
+    (if-let [e (peek stack)]
+      (let [attrs (attributes db e)
+            stack (pop stack)]
+        (if (and (collection-types (:cst/type attrs))
+                 (empty? (d/datoms db :eavt e :cst/key))
+                 (value-attribute attrs))
+          (let [[chain-tx children] (index-chain db e attrs)]
+            (recur (into stack children) (into tx chain-tx)))
+          (recur (into stack (children-of attrs)) tx)))
+      tx)))
+
+(defn migrate-to-indexed
+  "Changes every file stored in the linked encoding to the indexed encoding, a file to a transaction.
+   Returns the number of files that were changed."
+  [conn]
+  (let [db (d/db conn)]
+    (reduce (fn [n location]
+              (let [tx (migration-tx db (:db/id (d/entity db [:cst/location location])))]
+                (if (seq tx)
+                  (do @(d/transact conn tx) (inc n))
+                  n)))
+            0 (get-filenames db))))
+
+(defn- new-hash
+  "A hash of what object-data stores for x. The keys of nodes are kept in keys, so that each node
+   of a tree is hashed once."
+  ^long [^Map keys x]
+  (first (content-key keys x)))
+
+(defn- stored-hashes
+  "The hashes of the entities read by entity-infos, in the form of new-hash, so that an entity
+   has the same hash as the nodes that would be stored the same way"
+  [^Map infos order]
+  (let [hashes (java.util.HashMap.)]
+    (doseq [e order
+            :let [info (.get infos e)
+                  t (:type info)]]
+      (.put hashes e
+            (cond
+              (nil? t) (if (:object info) (.get hashes (:value info)) (value-hash (:value info)))
+              (= :cst/conditional t) (StructuralHash/of [t (boolean (:splice info)) (.get hashes (:form info))])
+              (:scalars info) (StructuralHash/of (into [t] (map value-hash) (:scalars info)))
+              (collection-types t) (StructuralHash/of (into [t] (map #(.get hashes %)) (:elements info)))
+              :default (StructuralHash/of [t (if (:object info)
+                                               (.get hashes (:value info))
+                                               (value-hash (:value info)))]))))
+    hashes))
+
+(defn- spread-indexes
+  "Returns the indexes for the n elements of a collection, where the positions in the map fixed
+   keep the indexes they map to, and the others are spread out between them, index-gap apart
+   at the ends. Returns nil when there is no room between two fixed indexes."
+  [fixed n]
+  (let [n (long n)
+        indexes (long-array n)]
+    (loop [j 0]
+      (cond
+        (== j n) (vec indexes)
+        (fixed j) (do (aset indexes j (long (fixed j))) (recur (inc j)))
+        :default (let [end (long (or (first (filter fixed (range j n))) n))
+                       k (- end j)
+                       lo (when (pos? j) (aget indexes (dec j)))
+                       hi (when (< end n) (long (fixed end)))
+                       step (long (if (and lo hi) (quot (- (long hi) (long lo)) (inc k)) index-gap))
+                       start (long (cond lo (+ (long lo) step) hi (- (long hi) (* k step)) :default 0))]
+                   (when (pos? step)
+                     (dotimes [m k] (aset indexes (+ j m) (+ start (* m step))))
+                     (recur end)))))))
+
+(defn- retract-tree
+  "Retracts the entity e and the entities under it. Components are retracted with their entity,
+   but the forms of conditionals and the elements of collections stored with indexes are not
+   components, and are retracted on their own. Shared subtrees may have other parents, and are
+   left as they are."
+  [^ArrayList out ^Map infos e]
+  (.add out [:db.fn/retractEntity e])
+  (loop [stack (list e)]
+    (when-let [x (first stack)]
+      (let [info (.get infos x)]
+        (when-let [f (:form info)]
+          (.add out [:db.fn/retractEntity f]))
+        (doseq [el (:elements info)]
+          (.add out [:db.fn/retractEntity el]))
+        (recur (into (rest stack) (when-not (:shared info) (entity-refs info))))))))
+
+(declare update-entity)
+
+(defn- replace-value
+  "Changes the value held by the entity e from the one in info to x. A value stored as an entity
+   is referred to by object-attr, and is updated in place when x is stored the same way, unless it
+   is shared. With a :writer in the state, new subtrees are written in the shared encoding."
+  [^ArrayList out {:keys [^Map infos opts writer] :as state} e info x object-attr]
+  (let [old (:value info)]
+    (if (and (:object info) (not (:shared info)) (= (stored-type x) (:type (.get infos old))))
+      (update-entity out state old x)
+      (let [attrs (if (and writer (stored-type x))
+                    (shared-value writer e x)
+                    (let [[d aux] (object-data x opts)]
+                      (.addAll out (vec aux))
+                      (if (instance? DbId d)
+                        {object-attr d}
+                        (do (note-symbol opts e d)
+                            (value-data d)))))]
+        (cond
+          (:shared info) (.add out [:db/retract e :cst.value/shared old])
+          (:object info) (retract-tree out infos old)
+          :default (doseq [[a v] (value-data old) :when (not (contains? attrs a))]
+                     (.add out [:db/retract e a v])))
+        (doseq [[a v] attrs]
+          (.add out [:db/add e a v]))))))
+
+(defn- update-collection
+  "Changes the elements of the collection n to xs. Elements are aligned with cst.diff/align:
+   those that are kept or paired keep their entities and indexes, moved elements keep their
+   entities and are given new indexes, and the rest are retracted or added. When there is no
+   room for the new indexes, the collection is renumbered. A collection that was empty is given a
+   key. Returns the entities of the elements."
+  [^ArrayList out {:keys [^Map infos ^Map hashes new-hashes opts writer] :as state} n info xs]
+  (let [olds (:elements info)
+        xs (vec xs)
+        index-of #(:index (.get infos %))
+        kept (java.util.HashMap.)
+        moved (java.util.HashMap.)]
+    (doseq [[op i j] (diff/align (mapv #(.get hashes %) olds) (mapv #(new-hash new-hashes %) xs))]
+      (case op
+        :keep (do (note-stored-symbols opts infos (olds i))
+                  (.put kept j (olds i)))
+        :move (do (note-stored-symbols opts infos (olds i))
+                  (.put moved j (olds i)))
+        :pair (let [el (olds i)
+                    el-info (.get infos el)
+                    x (xs j)
+                    t (stored-type x)]
+                (if (= t (:type el-info))
+                  (do (if t
+                        (update-entity out state el x)
+                        (replace-value out state el el-info x :cst.value/object))
+                      (.put kept j el))
+                  (retract-tree out infos el)))
+        :delete (retract-tree out infos (olds i))
+        :insert nil))
+    (let [fixed (into {} (map (fn [[j el]] [j (index-of el)])) kept)
+          indexes (or (spread-indexes fixed (count xs))
+                      (mapv #(* (long %) (long index-gap)) (range (count xs))))
+          k (or (:key info)
+                (when (seq xs)
+                  (let [k (collection-key)]
+                    (.add out [:db/add n :cst/key k])
+                    k)))]
+      (mapv (fn [j]
+              (let [index (indexes j)]
+                (if-let [el (or (.get kept j) (.get moved j))]
+                  (do (when-not (= index (index-of el))
+                        (.add out [:db/add el :cst/position (position k index)]))
+                      el)
+                  (if writer
+                    (shared-element writer k (xs j) index)
+                    (let [[element tx] (element-data k (xs j) index opts)]
+                      (.addAll out (vec tx))
+                      element)))))
+            (range (count xs))))))
+
+(defn- rewrite-scalars
+  "Changes the elements of the collection n, stored in the compact encoding, to xs. The run is
+   replaced whole, by a new run when xs can be held in one and the opts ask for it, or else by
+   elements written as update-collection writes new ones."
+  [^ArrayList out {:keys [opts writer]} n info xs]
+  (if-let [run (and (:compact opts) (scalar-run xs))]
+    (do (doseq [x xs] (note-symbol opts n x))
+        (.add out [:db/add n :cst/scalars run]))
+    (let [k (collection-key)]
+      (.add out [:db/retract n :cst/scalars (scalar-run (:scalars info))])
+      (when (seq xs)
+        (.add out [:db/add n :cst/key k]))
+      (doseq [[i x] (map-indexed vector xs)]
+        (if writer
+          (shared-element writer k x (* i index-gap))
+          (.addAll out (vec (second (element-data k x (* i index-gap) opts)))))))))
+
+(defn- update-entity
+  "Changes the entity e, which is stored the same way as x, to store x. Returns the entities of
+   the elements of a collection that changed."
+  [^ArrayList out {:keys [^Map infos ^Map hashes new-hashes opts] :as state} e x]
+  (if (= (.get hashes e) (new-hash new-hashes x))
+    (note-stored-symbols opts infos e)
+    (let [info (.get infos e)
+          t (:type info)]
+      (cond
+        (:scalars info) (rewrite-scalars out state e info (stored-children x))
+        (collection-types t) (update-collection out state e info (stored-children x))
+        (= :cst/conditional t) (let [data (. ^SyntaxElement x data)
+                                     splice (boolean (:splice data))]
+                                 (when-not (= splice (boolean (:splice info)))
+                                   (.add out [:db/add e :cst.cond/splice splice]))
+                                 (replace-value out state e {:value (:form info) :object true}
+                                                (:form data) :cst.cond/form))
+        :default (replace-value out state e info (. ^SyntaxElement x data) :cst.value/object)))))
+
+(defn- file-entity
+  "The entity of the file stored at the location of a file, if there is one"
+  [db ^SyntaxElement file]
+  (when-let [location (path/to-uri (:location (. file data)))]
+    (d/entid db [:cst/location location])))
+
+(defn- stored-xrefs
+  "Reads the cross references of the file e, as a map of symbols to their entity :id, :nodes and :definition"
+  [db e]
+  (into {} (for [datom (d/datoms db :vaet e :cst.xref/file)
+                 :let [x (d/entity db (:e datom))]]
+             [(:cst.xref/symbol x) {:id (:e datom)
+                                    :nodes (set (map :db/id (:cst.xref/node x)))
+                                    :definition (:db/id (:cst.xref/definition x))}])))
+
+(defn- update-xrefs
+  "Adds the changes from the stored cross references of the file n to the entries of xref-entries.
+   References to entities that are retracted go with them."
+  [^ArrayList out n stored entries]
+  (let [retracted (set (keep #(when (= :db.fn/retractEntity (first %)) (second %)) out))]
+    (doseq [[sym {:keys [nodes definition]}] entries]
+      (if-let [{:keys [id] :as old} (stored sym)]
+        (do
+          (doseq [e nodes :when (not ((:nodes old) e))]
+            (.add out [:db/add id :cst.xref/node e]))
+          (doseq [e (:nodes old) :when (not (or (nodes e) (retracted e)))]
+            (.add out [:db/retract id :cst.xref/node e]))
+          (cond
+            (and definition (not= definition (:definition old))) (.add out [:db/add id :cst.xref/definition definition])
+            (and (nil? definition) (:definition old) (not (retracted (:definition old))))
+            (.add out [:db/retract id :cst.xref/definition (:definition old)])))
+        (.addAll out (vec (xref-data n {sym {:nodes nodes :definition definition}})))))
+    (doseq [[sym {:keys [id]}] stored :when (not (contains? entries sym))]
+      (.add out [:db.fn/retractEntity id]))))
+
+(defn update-tx
+  "Returns the transaction data that changes the file stored at the location of a file into that
+   file. The stored file is compared with the new one node by node, by hashes of what is stored
+   for each, and the entities of nodes that did not change are kept, so the transaction only holds
+   the nodes that changed and the indexes of elements that moved. The file must be stored in the
+   indexed or the shared encoding; see migrate-to-indexed. A file that is not stored yet is stored whole.
+   The opts give the :storage of new nodes, :indexed (the default) or :shared, and :compact and :xref,
+   as for tx-data. Collections already stored with elements keep them when :compact is given.
+   The cross references of a file that has them are kept up to date."
+  ([db file] (update-tx db file nil))
+  ([db file {:keys [storage xref compact] :or {storage :indexed}}]
+   (if-let [eid (file-entity db file)]
+     (let [[infos order] (entity-infos db eid)
+           out (ArrayList.)
+           new-hashes (IdentityHashMap.)
+           stored (stored-xrefs db eid)
+           symbols (when (or xref (seq stored)) (ArrayList.))]
+       (when (contains? (.get ^Map infos eid) :value)
+         (throw (ex-info "The stored file is in the linked encoding" {:location (:location (. ^SyntaxElement file data))})))
+       (let [entities (update-entity out {:infos infos
+                                          :hashes (stored-hashes infos order)
+                                          :new-hashes new-hashes
+                                          :opts {:storage :indexed :compact compact ::symbols symbols}
+                                          :writer (when (= :shared storage)
+                                                    (assoc (shared-writer db) :keys new-hashes :out out :compact compact
+                                                                              ::symbols symbols))}
+                                     eid file)]
+         (when symbols
+           (update-xrefs out eid stored
+                         (xref-entries (stored-children file)
+                                       (or entities (:elements (.get ^Map infos eid)))
+                                       symbols))))
+       (vec out))
+     (vec (tx-data file {:storage storage :db db :xref xref :compact compact})))))
+
+(defn- shared-refs
+  "The shared subtrees that the shared subtree e refers to, from itself or its elements"
+  [db e]
+  (concat (for [holder (cons e (collection-elements db e))
+                datom (d/datoms db :eavt holder :cst.value/shared)]
+            (:v datom))
+          (map :v (d/datoms db :eavt e :cst.cond/form))))
+
+(defn- referrers
+  "The number of references to the entity e that keep a shared subtree"
+  ^long [db e]
+  (reduce + (map #(count (seq (d/datoms db :vaet e %))) [:cst.value/shared :cst.cond/form])))
+
+(defn collect-shared-tx
+  "Returns the transaction data that retracts the shared subtrees that nothing refers to any more,
+   as save-cst leaves behind when it replaces a subtree that no other file uses. Subtrees that only
+   such subtrees refer to are retracted with them. With candidates, only those subtrees, and those
+   they refer to, are looked at; otherwise every shared subtree in db is, which reads them all."
+  ([db] (collect-shared-tx db (map :e (d/datoms db :aevt :cst/content-hash))))
+  ([db candidates]
+   (let [removed (java.util.HashMap.)
+         dead (java.util.LinkedHashSet.)]
+     (loop [queue (seq candidates)]
+       (when-let [[e & more] queue]
+         (if (or (.contains dead e)
+                 (empty? (d/datoms db :eavt e :cst/content-hash))
+                 ;; the elements of a shared collection are kept with it
+                 (seq (d/datoms db :eavt e :cst/position))
+                 (pos? (- (referrers db e) (long (.getOrDefault removed e 0)))))
+           (recur more)
+           (let [refs (shared-refs db e)]
+             (.add dead e)
+             (doseq [r refs]
+               (.put removed r (inc (long (.getOrDefault removed r 0)))))
+             (recur (concat refs more))))))
+     ;; the elements of a collection are not its components, so they are retracted with it here
+     (into [] (comp (mapcat #(cons % (collection-elements db %))) (map (fn [e] [:db.fn/retractEntity e]))) dead))))
+
+(defn retract-file-tx
+  "Returns the transaction data that retracts the file stored at a location, with the entities under
+   it and its cross references. The elements of collections stored with indexes are not components,
+   so retracting the file entity alone would leave them. Shared subtrees are left for
+   collect-shared-tx. Returns nil when no file is stored at the location."
   [db location]
-  (when location
-    (when-let [eid (q '[:find ?e . :in $ ?l :where [?e :cst/location ?l] [?e :cst/type :file]]
-                      db
-                      (path/to-uri location))]
-      (let [fdata (d/pull db '[*] eid)]
-        (reconstruct fdata)))))
+  (when-let [eid (file-eid db (path/to-uri location))]
+    (let [[infos] (entity-infos db eid)
+          out (ArrayList.)]
+      (retract-tree out infos eid)
+      (doseq [datom (d/datoms db :vaet eid :cst.xref/file)]
+        (.add out [:db.fn/retractEntity (:e datom)]))
+      (vec (distinct out)))))
+
+(defn save-cst
+  "Stores a file, transacting only the changes from the file already stored at its location, as
+   update-tx does. A stored file in the linked encoding is migrated to the indexed encoding first.
+   Shared subtrees that the file no longer refers to, and no other file does, are then retracted
+   in a transaction of their own, with collect-shared-tx. The opts are those of update-tx.
+   Returns the report of the transaction that stored the file."
+  ([conn file] (save-cst conn file nil))
+  ([conn file opts]
+   (let [db (d/db conn)
+         migration (some->> (file-entity db file) (migration-tx db))
+         db (if (seq migration) (:db-after @(d/transact conn migration)) db)
+         report @(d/transact conn (update-tx db file opts))
+         db-after (:db-after report)
+         ref-attrs #{(d/entid db-after :cst.value/shared) (d/entid db-after :cst.cond/form)}
+         dropped (distinct (for [^Datom datom (:tx-data report)
+                                 :when (and (not (.added datom)) (ref-attrs (.a datom)))]
+                             (.v datom)))
+         collection (collect-shared-tx db-after dropped)]
+     (when (seq collection)
+       @(d/transact conn collection))
+     report)))
+
+(defn find-usages
+  "Finds the uses of a symbol, which is qualified with the namespace it resolves to in the files that
+   use it, from the cross references stored with the :xref option of tx-data. The name in the form
+   that defines the symbol is a use too. Returns the :location of the file and the :node entity
+   that holds each use."
+  [db sym]
+  (map (fn [[location n]] {:location location :node n})
+       (q '[:find ?l ?n :in $ ?s :where
+            [?x :cst.xref/symbol ?s] [?x :cst.xref/node ?n] [?x :cst.xref/file ?file] [?file :cst/location ?l]]
+          db (str sym))))
 
+(defn find-definition
+  "Finds the top level form that defines a qualified symbol, from the stored cross references.
+   Returns the :location of the file and the :form entity, or nil when no stored file defines it."
+  [db sym]
+  (when-let [[location form] (first (q '[:find ?l ?f :in $ ?s :where
+                                         [?x :cst.xref/symbol ?s] [?x :cst.xref/definition ?f]
+                                         [?x :cst.xref/file ?file] [?file :cst/location ?l]]
+                                       db (str sym)))]
+    {:location location :form form}))
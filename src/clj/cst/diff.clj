@@ -0,0 +1,202 @@
+(ns cst.diff
+  "Finds the differences between two versions of a tree of syntax, such as two reads of a FILE,
+   as a script of edits. Subtrees are compared by their structural hashes, so subtrees that did
+   not change are passed over without looking inside them. Read with {:hash true} so that the
+   hashes of lists and vectors are kept, and comparing them is constant time.
+
+   The children of a node are those that cst.Walker visits. A node is named by a path: the vector
+   of child positions that leads to it from the root. Each edit is a map with an :op of:
+     :insert  a new node, at :path in the new tree
+     :delete  an old node, at :old-path in the old tree
+     :move    an unchanged node, moved between siblings from :old-path to :path
+     :update  an old node at :old-path replaced by a :new node at :path, for leaves that changed
+              and for nodes that changed into a different kind of node
+   Children that are not deleted or moved keep their order, and fill the places in their parent
+   that are not taken by inserts and moves. The edits inside them refer to their old and new paths."
+  (:import [cst StructuralHash SyntaxElement SyntaxElement$Type Walker]
+           [java.util ArrayList Collection]))
+
+(def ^:private leaf-types
+  #{SyntaxElement$Type/COMMA SyntaxElement$Type/COMMENT SyntaxElement$Type/M_COMMENT
+    SyntaxElement$Type/CHAR SyntaxElement$Type/ARG})
+
+(defn- kind
+  "The kind of a node. Nodes of the same kind are compared child by child, and other nodes are
+   compared as leaves."
+  [x]
+  (cond
+    (instance? SyntaxElement x) (let [t (.type ^SyntaxElement x)] (if (leaf-types t) :leaf t))
+    (vector? x) :vector
+    (or (seq? x) (list? x)) :list
+    :default :leaf))
+
+(defn- hash-of ^long [x] (StructuralHash/of x))
+
+(defn- increasing-run
+  "Returns the set of positions in xs of a longest increasing run of the numbers in xs"
+  [xs]
+  (let [n (count xs)
+        tails (int-array n)
+        prev (int-array n)
+        len (long (loop [k 0 len 0]
+                    (if (== k n)
+                      len
+                      (let [x (long (xs k))
+                            ;; the shortest run whose last number is not less than x
+                            at (long (loop [lo 0 hi len]
+                                       (if (< lo hi)
+                                         (let [mid (quot (+ lo hi) 2)]
+                                           (if (< (long (xs (aget tails mid))) x) (recur (inc mid) hi) (recur lo mid)))
+                                         lo)))]
+                        (aset prev k (int (if (pos? at) (aget tails (dec at)) -1)))
+                        (aset tails at (int k))
+                        (recur (inc k) (max len (inc at)))))))]
+    (loop [k (long (if (pos? len) (aget tails (dec len)) -1)) run #{}]
+      (if (neg? k) run (recur (long (aget prev k)) (conj run k))))))
+
+(defn align
+  "Matches the children of an old node with the children of a new one, given the hashes of each in
+   vectors. Children that are the same at the start and end are passed over, then the rest are
+   matched by hash. Matches that keep their order stay where they are, and the others are moves.
+   Unmatched children are paired in order between the ones that stay; those left over are deleted
+   or inserted. Returns the steps, each a vector of an op and the positions of the children:
+     [:keep i j] [:move i j] [:pair i j] [:delete i] [:insert j]
+   with the moves first, then the pairs, deletes and inserts between each two children that stay."
+  [oh nh]
+  (let [on (count oh)
+        nn (count nh)
+        prefix (long (loop [i 0]
+                       (if (and (< i on) (< i nn) (= (oh i) (nh i))) (recur (inc i)) i)))
+        suffix (long (loop [i 0]
+                       (if (and (< i (- on prefix)) (< i (- nn prefix)) (= (oh (- on 1 i)) (nh (- nn 1 i))))
+                         (recur (inc i))
+                         i)))
+        old-end (- on suffix)
+        new-end (- nn suffix)
+        old-by-hash (reduce (fn [m i] (update m (oh i) (fnil conj clojure.lang.PersistentQueue/EMPTY) i))
+                            {} (range prefix old-end))
+        matches (first (reduce (fn [[matches m] j]
+                                 (if-let [i (peek (m (nh j)))]
+                                   [(conj matches [i j]) (update m (nh j) pop)]
+                                   [matches m]))
+                               [[] old-by-hash] (range prefix new-end)))
+        staying (increasing-run (mapv first matches))
+        anchors (conj (vec (keep-indexed (fn [k m] (when (staying k) m)) matches)) [old-end new-end])
+        matched-old (set (map first matches))
+        matched-new (set (map second matches))
+        steps (ArrayList.)]
+    (dotimes [i prefix]
+      (.add steps [:keep i i]))
+    (doseq [[k [i j]] (map-indexed vector matches)
+            :when (not (staying k))]
+      (.add steps [:move i j]))
+    (loop [from-old prefix, from-new prefix, [[to-old to-new] & more] anchors]
+      (let [olds (vec (remove matched-old (range from-old to-old)))
+            news (vec (remove matched-new (range from-new to-new)))
+            paired (min (count olds) (count news))]
+        (dotimes [k paired]
+          (.add steps [:pair (olds k) (news k)]))
+        (doseq [i (subvec olds paired)]
+          (.add steps [:delete i]))
+        (doseq [j (subvec news paired)]
+          (.add steps [:insert j]))
+        (when more
+          (.add steps [:keep to-old to-new])
+          (recur (inc (long to-old)) (inc (long to-new)) more))))
+    (dotimes [k suffix]
+      (.add steps [:keep (+ old-end k) (+ new-end k)]))
+    (vec steps)))
+
+(declare diff-node)
+
+(defn- diff-children
+  "Adds the edits that turn the children of old into the children of new, as they are aligned by
+   align. Paired children are compared, and the edits inside them added."
+  [^ArrayList out old new old-path new-path]
+  (let [oc (vec (Walker/children old))
+        nc (vec (Walker/children new))]
+    (doseq [[op i j] (align (mapv hash-of oc) (mapv hash-of nc))]
+      (case op
+        :keep nil
+        :move (.add out {:op :move :old-path (conj old-path i) :path (conj new-path j) :node (nc j)})
+        :pair (diff-node out (oc i) (nc j) (conj old-path i) (conj new-path j))
+        :delete (.add out {:op :delete :old-path (conj old-path i) :node (oc i)})
+        :insert (.add out {:op :insert :path (conj new-path i) :node (nc i)})))))
+
+(defn- diff-node
+  [^ArrayList out old new old-path new-path]
+  (when-not (= (hash-of old) (hash-of new))
+    (let [k (kind old)]
+      (if (and (= k (kind new)) (not= :leaf k))
+        (diff-children out old new old-path new-path)
+        (.add out {:op :update :old-path old-path :path new-path :old old :new new})))))
+
+(defn diff
+  "Returns the edits that turn the tree old into the tree new, as a vector. See the namespace
+   documentation for the form of the edits. Trees that are the same give no edits."
+  [old new]
+  (let [out (ArrayList.)]
+    (diff-node out old new [] [])
+    (vec out)))
+
+(defn- meta-key [m]
+  (cond
+    (or (symbol? m) (string? m)) :tag
+    (keyword? m) :keyword
+    :default :map))
+
+(defn- with-children
+  "Returns a node like node, with new children"
+  [node children]
+  (if (instance? SyntaxElement node)
+    (let [^SyntaxElement e node
+          t (.type e)
+          data (.data e)]
+      (condp = t
+        SyntaxElement$Type/MAP (SyntaxElement. t (ArrayList. ^Collection children))
+        SyntaxElement$Type/SET (SyntaxElement. t (ArrayList. ^Collection children))
+        SyntaxElement$Type/FILE (SyntaxElement. t (if (map? data)
+                                                    {:data (vec children) :location (:location data)}
+                                                    (seq children)))
+        SyntaxElement$Type/META (let [[m o] children]
+                                  (SyntaxElement. t {:meta {(meta-key m) m} :object o}))
+        SyntaxElement$Type/CONDITIONAL (SyntaxElement. t (assoc data :form (first children)))
+        (SyntaxElement. t (first children))))
+    (if (vector? node)
+      (vec children)
+      (apply list children))))
+
+(defn- prefixes
+  "The paths of all the nodes above the ones at the given paths"
+  [paths]
+  (set (mapcat (fn [p] (map #(subvec p 0 %) (range (count p)))) paths)))
+
+(defn patch
+  "Applies edits from diff to the tree they were made from, and returns the new tree.
+   Subtrees without edits are kept as they are."
+  [old edits]
+  (let [by-op (group-by :op edits)
+        updates (into {} (map (juxt :path identity)) (:update by-op))
+        removed (set (map :old-path (concat (:delete by-op) (:move by-op))))
+        placed (reduce (fn [m {:keys [path node]}] (assoc-in m [(pop path) (peek path)] node))
+                       {} (concat (:insert by-op) (:move by-op)))
+        changed-old (prefixes (keep :old-path edits))
+        changed-new (prefixes (keep :path edits))]
+    (letfn [(rebuild [node old-path new-path]
+              (if-let [u (updates new-path)]
+                (:new u)
+                (if-not (or (changed-old old-path) (changed-new new-path))
+                  node
+                  (let [children (vec (Walker/children node))
+                        kept (remove #(removed (conj old-path %)) (range (count children)))
+                        here (placed new-path {})]
+                    (with-children
+                      node
+                      (loop [j 0, kept kept, acc []]
+                        (cond
+                          (contains? here j) (recur (inc j) kept (conj acc (here j)))
+                          (seq kept) (let [i (first kept)]
+                                       (recur (inc j) (rest kept)
+                                              (conj acc (rebuild (children i) (conj old-path i) (conj new-path j)))))
+                          :default acc)))))))]
+      (rebuild old [] []))))
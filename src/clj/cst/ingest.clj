@@ -0,0 +1,158 @@
+(ns cst.ingest
+  (:require [clojure.java.io :as io]
+            [cst.reader :as reader]
+            [cst.database :as cdb]
+            [datomic.api :as d])
+  (:import [java.io File]
+           [java.net URI]
+           [java.util.concurrent ArrayBlockingQueue BlockingQueue ConcurrentLinkedQueue ForkJoinPool TimeUnit]
+           [java.util.jar JarFile JarEntry]))
+
+(def source-extensions #{"clj" "cljc"})
+
+(defn source-name?
+  "Tests if a file name has the extension of a Clojure source file"
+  [^String n]
+  (let [dot (.lastIndexOf n ".")]
+    (and (pos? dot) (contains? source-extensions (subs n (inc dot))))))
+
+(defn- directory-sources
+  "Finds all the source files under a directory"
+  [^File dir]
+  (for [^File f (file-seq dir)
+        :when (and (.isFile f) (source-name? (.getName f)))]
+    {:location (.toURI f)
+     :size (.length f)
+     :read (fn [opts] (reader/cst-read-all-file f nil opts))}))
+
+(defn- jar-sources
+  "Finds all the source files in a jar. The jar must remain open while the sources are read."
+  [^JarFile jar ^File f]
+  (for [^JarEntry e (enumeration-seq (.entries jar))
+        :when (and (not (.isDirectory e)) (source-name? (.getName e)))
+        :let [location (URI. (str "jar:" (.toURI f) "!/" (.getName e)))]]
+    {:location location
+     :size (max 0 (.getSize e))
+     :read (fn [opts]
+             (let [text (with-open [in (.getInputStream jar e)] (slurp in :encoding "UTF-8"))]
+               (reader/cst-read-all-string text location opts)))}))
+
+(defn- parse-task
+  "Creates a function that parses a source and builds its transaction data, then puts the
+   result on the queue. Failures are put on the queue too, so every source produces one result.
+   The put blocks while the queue is full, which holds back the parsers until the transactions catch up.
+   The storage function gives the options for cst.database/tx-data."
+  [{:keys [location size read]} opts storage ^ThreadLocal tables ^BlockingQueue queue]
+  (bound-fn []
+    (let [opts (if tables (assoc opts :intern (.get tables)) opts)
+          result (try
+                   {:location location
+                    :size size
+                    :tx (doall (cdb/tx-data (read opts) (storage)))}
+                   (catch Throwable t
+                     {:location location :error t}))]
+      (.put queue result))))
+
+(defn- rate [n nanos] (if (pos? nanos) (/ (* n 1e9) nanos) 0.0))
+
+(defn- intern-tables
+  "Creates an intern table for each thread that asks for one, remembering all of them in created"
+  [^ConcurrentLinkedQueue created]
+  (proxy [ThreadLocal] []
+    (initialValue []
+      (let [t (reader/intern-table)]
+        (.add created t)
+        t))))
+
+(defn- intern-totals
+  [tables]
+  (let [stats (map reader/intern-stats tables)
+        lookups (reduce + (map :lookups stats))
+        hits (reduce + (map :hits stats))]
+    {:lookups lookups
+     :hits hits
+     :hit-rate (if (pos? lookups) (double (/ hits lookups)) 0.0)}))
+
+(defn- retract-chunks
+  "Retracts what was stored of a file whose chunks failed part way through transact-chunked, so that
+   no part of the file is left. The chunks after the one that failed may have been stored."
+  [conn t]
+  (when-let [ids (seq (distinct (vals (:tempids (ex-data t)))))]
+    @(d/transact conn (map (fn [id] [:db.fn/retractEntity id]) ids))))
+
+(defn ingest-sources
+  "Parses sources in parallel on a fork-join pool and transacts them into a connection.
+   Sources are maps of :location, :size and a :read function that accepts reader opts.
+   Options:
+     :parallelism - number of parser threads (defaults to the number of processors)
+     :queue-size - number of parsed files waiting to be transacted before parsers block
+     :opts - options for the reader
+     :report - called with the statistics after each file is transacted
+     :intern - when true (the default), each parser thread shares its tokens between files
+     :chunk-size - when given, each file is transacted in chunks of this many maps, with
+                   cst.database/transact-chunked, and :in-flight chunks at a time. When a chunk
+                   fails, the chunks of the file that were stored are retracted.
+     :storage - the encoding of collections, as for cst.database/tx-data. With :shared, subtrees
+                already stored when a file is parsed are referred to rather than written again
+     :xref - when true, stores the cross references of each file, for cst.database/find-usages
+     :compact - when true, stores collections of scalars in the compact encoding of cst.database/tx-data.
+                The connection needs the compact schema; see cst.database/load-schema.
+   Returns the statistics for the ingest: files and bytes transacted, and the rates of each per second,
+   with any sources that could not be read or stored in :errors, and the use of the intern tables in :intern."
+  ([conn sources] (ingest-sources conn sources nil))
+  ([conn sources {:keys [parallelism queue-size opts report intern chunk-size in-flight storage xref compact]
+                  :or {parallelism (.availableProcessors (Runtime/getRuntime))
+                       queue-size 16
+                       intern true
+                       in-flight 4}}]
+   (let [sources (vec sources)
+         created (ConcurrentLinkedQueue.)
+         tables (when intern (intern-tables created))
+         queue (ArrayBlockingQueue. (int queue-size))
+         pool (ForkJoinPool. (int parallelism))
+         storage-opts (fn [] (cond-> {:storage storage :xref xref :compact compact}
+                               (= :shared storage) (assoc :db (d/db conn))))
+         start (System/nanoTime)]
+     (try
+       (doseq [s sources]
+         (.execute pool ^Runnable (parse-task s opts storage-opts tables queue)))
+       (loop [n (count sources) stats {:files 0 :bytes 0 :errors []}]
+         (if (zero? n)
+           (let [elapsed (- (System/nanoTime) start)]
+             (assoc stats
+               :intern (intern-totals created)
+               :seconds (/ elapsed 1e9)
+               :files-per-sec (rate (:files stats) elapsed)
+               :bytes-per-sec (rate (:bytes stats) elapsed)))
+           (let [{:keys [location size tx error]} (.take queue)
+                 error (or error (try
+                                   (if chunk-size
+                                     (cdb/transact-chunked conn tx {:chunk-size chunk-size :in-flight in-flight})
+                                     @(d/transact conn tx))
+                                   nil
+                                   (catch Throwable t
+                                     (retract-chunks conn t)
+                                     t)))
+                 stats (if error
+                         (update stats :errors conj {:location location :error error})
+                         (-> stats (update :files inc) (update :bytes + size)))]
+             (when report
+               (let [elapsed (- (System/nanoTime) start)]
+                 (report (assoc stats
+                           :files-per-sec (rate (:files stats) elapsed)
+                           :bytes-per-sec (rate (:bytes stats) elapsed)))))
+             (recur (dec n) stats))))
+       (finally
+         (.shutdownNow pool)
+         (.awaitTermination pool 1 TimeUnit/SECONDS))))))
+
+(defn ingest
+  "Parses every Clojure source file in a directory or a jar, and transacts them into a connection.
+   See ingest-sources for the options and the returned statistics."
+  ([conn path] (ingest conn path nil))
+  ([conn path options]
+   (let [f (io/file path)]
+     (if (.isDirectory f)
+       (ingest-sources conn (directory-sources f) options)
+       (with-open [jar (JarFile. f)]
+         (ingest-sources conn (jar-sources jar f) options))))))
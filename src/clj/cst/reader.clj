@@ -1,9 +1,16 @@
 (ns cst.reader
   (require [clojure.java.io :as io])
-  (import [java.io PushbackReader StringReader Writer]
+  (import [java.io File PushbackReader StringReader Writer]
           [java.util UUID]
           [java.net URI]
-          [cst LispReader SyntaxElement SyntaxElement$Type]))
+          [java.nio CharBuffer]
+          [java.nio.file AtomicMoveNotSupportedException CopyOption Files StandardCopyOption]
+          [java.nio.charset Charset]
+          [java.security MessageDigest]
+          [java.util.concurrent ExecutionException ForkJoinPool Future]
+          [cst BinaryFile BinaryWriter CharBufferReader FormScanner HashCons InternTable LispReader
+           PositionIndex PositionIndex$Builder ReaderSession Rope SplicedVector StructuralHash
+           SyntaxElement SyntaxElement$Type Walker Walker$Visitor]))
 
 (defmethod print-method SyntaxElement [^SyntaxElement o ^Writer w]
   (let [writer-print (fn [^String s]
@@ -13,31 +20,343 @@
 
 (defn new-location [] (URI. (str "uuid:" (UUID/randomUUID))))
 
+(defn intern-table
+  "Creates a table of tokens to share between reads, so names that have already been seen
+   are not allocated again. Pass it to a read in the opts as :intern.
+   A table may only be used by one thread at a time."
+  ([] (InternTable.))
+  ([max-size] (InternTable. (int max-size))))
+
+(defn intern-stats
+  "Returns the size of an intern table, and how often tokens were found in it"
+  [^InternTable t]
+  {:size (.size t)
+   :lookups (.lookups t)
+   :hits (.hits t)
+   :hit-rate (.hitRate t)})
+
+(defn structural-hash
+  "Returns a stable 64 bit hash of the structure of a form, which is the same for forms that emit
+   the same text, in any JVM. Read with {:hash true} in the opts to work out the hashes as forms are
+   read and keep them in the forms, so that asking for the hash of any node is constant time."
+  [form]
+  (StructuralHash/of form))
+
+(defn hash-cons-table
+  "Creates a table of forms to share between reads, so a form that has been read before is
+   replaced by the form read before. Pass it to a read in the opts as :hash-cons.
+   Unlike an intern table, this may be shared by many threads."
+  []
+  (HashCons.))
+
+(defn hash-cons-stats
+  "Returns the number of forms in a hash cons table, and how often forms were found in it"
+  [^HashCons t]
+  {:size (.size t)
+   :lookups (.lookups t)
+   :hits (.hits t)
+   :hit-rate (.hitRate t)})
+
+(defn reader-session
+  "Creates a session for reading many forms from io with the same opts.
+   The options, platform features and eval policy are resolved once, rather than for every form.
+   Read each form with (.read session), which returns the :eof value from opts at the end."
+  [^PushbackReader io opts]
+  (ReaderSession. io opts))
+
+(defn- position-opts
+  "The opts for a session on a char buffer, with a position index builder in :positions when
+   the opts ask for positions"
+  [opts]
+  (if (:positions opts)
+    (assoc opts :positions (PositionIndex$Builder.))
+    (dissoc opts :positions)))
+
+(defn- read-buffer-form
+  "Reads the next form from a session on a char buffer, along with its [start end] span and the
+   position index of its nodes. Spans are relative to the start of the buffer, plus base.
+   Returns nil at EOF. The index is nil unless the session opts hold a position index builder
+   in :positions; see position-opts."
+  [^ReaderSession session base]
+  (let [^CharBufferReader io (.reader session)
+        start (.skipWhitespace io)
+        element (.read session)]
+    (when-not (identical? (.eofValue session) element)
+      [element
+       [(+ base start) (+ base (.position io))]
+       (when-let [^PositionIndex$Builder positions (:positions (.opts session))]
+         (.take positions start))])))
+
+(defn- read-buffer-file
+  "Reads a char buffer into a FILE element that records positions, and its source when the opts
+   ask for :editable, as cst-read-all does"
+  [^CharBufferReader io location opts]
+  (let [session (reader-session io (position-opts (assoc opts :positions true)))]
+    (loop [forms (transient []) spans (transient []) indexes (transient [])]
+      (if-let [[element span index] (read-buffer-form session 0)]
+        (recur (conj! forms element) (conj! spans span) (conj! indexes index))
+        (SyntaxElement. SyntaxElement$Type/FILE
+                        (cond-> {:data (persistent! forms) :location location
+                                 :spans (persistent! spans) :indexes (persistent! indexes)}
+                          (:editable opts) (assoc :source (.source io))))))))
+
+(defn- file-opts
+  "The opts for reading a whole file, where :editable implies :positions"
+  [opts]
+  (cond-> opts (:editable opts) (assoc :positions true)))
+
+(defn- read-file
+  "Reads every form from io into a FILE element"
+  [io location opts]
+  (let [^ReaderSession session (reader-session io opts)
+        eof (.eofValue session)]
+    (loop [element (.read session) context (transient [])]
+      (if (identical? eof element)
+        (SyntaxElement. SyntaxElement$Type/FILE {:data (persistent! context) :location location})
+        (recur (.read session) (conj! context element))))))
+
+(defn write-binary
+  "Writes the forms of a FILE element in the binary CST format, to anything that
+   clojure.java.io/output-stream accepts. Spans and position indexes are written when the file has them."
+  [^SyntaxElement file out]
+  (let [{:keys [data spans indexes]} (.data file)]
+    (with-open [o (io/output-stream out)]
+      (BinaryWriter/write (vec data) spans indexes o))))
+
+(defn read-binary
+  "Memory maps a file in the binary CST format as a FILE element. Each top level form is decoded
+   the first time it is used. source is the text the forms were read from, if it is known."
+  ([f location] (read-binary f location nil))
+  ([f location source]
+   (let [bf (BinaryFile/map (io/file f))]
+     (SyntaxElement. SyntaxElement$Type/FILE
+                     (cond-> {:data (.forms bf) :location location}
+                       (.hasPositions bf) (assoc :spans (.spans bf) :indexes (.indexes bf))
+                       source (assoc :source source))))))
+
+(def ^:private charset-utf8 (Charset/forName "UTF-8"))
+
+(def ^:private cache-key-opts
+  "The opts that change the tree that is read, which the parse cache keeps apart"
+  [:read-cond :features :positions :editable])
+
+(defn- cache-key
+  "A hash of the text of a buffer, the opts that change how it is read, and the namespace and
+   aliases that ::keywords are resolved in"
+  [^CharBufferReader io opts]
+  (let [md (MessageDigest/getInstance "SHA-1")
+        aliases (into (sorted-map) (map (fn [[k v]] [k (ns-name v)])) (ns-aliases *ns*))
+        ^String context (pr-str [(ns-name *ns*) aliases (select-keys opts cache-key-opts)])]
+    (.update md (.getBytes context ^Charset charset-utf8))
+    (.update md (.encode ^Charset charset-utf8 (.source io)))
+    (apply str (map #(format "%02x" %) (.digest md)))))
+
+(defn- cacheable?
+  "Whether a read with these opts can be loaded from the parse cache. The binary format does not
+   keep the structural hashes of :hash, or the sharing of :hash-cons."
+  [opts]
+  (not (or (:hash opts) (:hash-cons opts))))
+
+(defn- move-into-cache
+  "Moves a file written to the cache to its name there, replacing any copy another reader wrote"
+  [^File from ^File to]
+  (let [replace (StandardCopyOption/REPLACE_EXISTING)]
+    (try
+      (Files/move (.toPath from) (.toPath to) (into-array CopyOption [StandardCopyOption/ATOMIC_MOVE replace]))
+      (catch AtomicMoveNotSupportedException _
+        (Files/move (.toPath from) (.toPath to) (into-array CopyOption [replace]))))))
+
+(defn- read-cached
+  "Reads a buffer from a parse cache in dir, when the cache holds the same text read with the same
+   opts. Otherwise the buffer is read, and the forms written to the cache."
+  [^CharBufferReader io location opts dir]
+  (let [f (io/file dir (str (cache-key io opts) ".cst"))]
+    (if (.exists f)
+      (let [file (read-binary f location (when (:editable opts) (.source io)))]
+        (.skip io (.length io))
+        file)
+      (let [file (if (:positions opts) (read-buffer-file io location opts) (read-file io location opts))
+            tmp (do (.mkdirs (io/file dir)) (File/createTempFile "cst" ".tmp" (io/file dir)))]
+        (try
+          (write-binary file tmp)
+          (move-into-cache tmp f)
+          (finally (.delete tmp)))
+        file))))
+
 (defn cst-read-all
-  "Reads an entire string into a sequence of elements"
+  "Reads an entire string into a sequence of elements.
+   When reading from a CharBufferReader with :positions true in the opts, the file also records
+   the [start end] span of each top level form, and an index of the positions of the nodes in
+   each form, for node-at and nodes-in-range. With :editable true it records its positions and
+   its source text as well, so that it can be reparsed after an edit with cst-reparse.
+   Other reads keep none of these.
+   A CharBufferReader may also be read through a parse cache, by giving a directory as :cache
+   in the opts. Text that has been read before, with the same opts and in the same namespace, is
+   then loaded from the cache instead of parsed. Reads with :hash or :hash-cons do not use it."
   ([io] (cst-read-all io (new-location)))
   ([io location] (cst-read-all io location nil))
   ([io location external-opts]
    (let [eof (Object.)
-         opts (merge external-opts {:eof eof})]
-     (loop [element (LispReader/read io opts) context []]
-       (if (= eof element)
-         (SyntaxElement. SyntaxElement$Type/FILE {:data context :location location})
-         (recur (LispReader/read io opts) (conj context element)))))))
+         opts (file-opts (merge (dissoc external-opts :cache) {:eof eof}))]
+     (cond
+       (not (instance? CharBufferReader io)) (read-file io location (dissoc opts :positions))
+       (and (zero? (.position ^CharBufferReader io)) (:cache external-opts) (cacheable? opts))
+       (read-cached io location opts (:cache external-opts))
+       (:positions opts) (read-buffer-file io location opts)
+       :else (read-file io location opts)))))
+
+(defn- read-chunk
+  "Reads up to n forms into a chunk. Returns nil if the reader is already at EOF."
+  [^ReaderSession session n]
+  (let [b (chunk-buffer n)]
+    (loop [i 0]
+      (if (< i n)
+        (let [element (.read session)]
+          (if (identical? (.eofValue session) element)
+            (when (pos? i) (chunk b))
+            (do (chunk-append b element) (recur (inc i)))))
+        (chunk b)))))
+
+(defn cst-read-seq
+  "Returns a lazy seq of the top level forms read from io. Forms are read a chunk at a time,
+   as the seq is consumed, so only the forms being processed need to be held in memory, as long
+   as nothing holds on to the head of the seq.
+   io must stay open until the seq has been consumed."
+  ([io] (cst-read-seq io nil))
+  ([io external-opts] (cst-read-seq io external-opts 32))
+  ([io external-opts chunk-size]
+   (let [session (reader-session io (merge external-opts {:eof (Object.)}))
+         step (fn step []
+                (lazy-seq
+                  (when-let [c (read-chunk session chunk-size)]
+                    (if (< (count c) chunk-size)
+                      (chunk-cons c nil)
+                      (chunk-cons c (step))))))]
+     (step))))
+
+(defn cst-read-reducible
+  "Returns a reducible of the top level forms read from io. Each form is read as the reduction
+   reaches it, and reading stops early if the reduction is terminated with reduced.
+   Forms are read from the current position of io, so this is usually reduced once."
+  ([io] (cst-read-reducible io nil))
+  ([io external-opts]
+   (let [eof (Object.)
+         ^ReaderSession session (reader-session io (merge external-opts {:eof eof}))]
+     (reify clojure.lang.IReduceInit
+       (reduce [_ f init]
+         (loop [acc init]
+           (let [element (.read session)]
+             (if (identical? eof element)
+               acc
+               (let [acc (f acc element)]
+                 (if (reduced? acc) @acc (recur acc)))))))))))
+
+(defn cst-read-all-lazy
+  "Reads a FILE element whose forms are a reducible from cst-read-reducible, rather than a
+   collection. A form is read from io when the reduction reaches it, and the element holds no forms,
+   so emit, emit-to and cst.database/tx-data handle each form as it is read and memory is bounded
+   by the largest form rather than by the file. Since the forms are read from io, the element can
+   only be written or stored once, and io must stay open until then."
+  ([io] (cst-read-all-lazy io (new-location)))
+  ([io location] (cst-read-all-lazy io location nil))
+  ([io location opts]
+   (SyntaxElement. SyntaxElement$Type/FILE {:data (cst-read-reducible io opts) :location location})))
+
+(defn- read-range
+  "Reads the forms between two positions of a char buffer reader, along with their spans and
+   position indexes. Spans are positions of the original reader. Returns nil if the last form
+   does not end at the end of the range."
+  [^CharBufferReader io from to opts]
+  (let [session (reader-session (.range io from to) (position-opts opts))]
+    (loop [forms [] spans [] indexes []]
+      (if-let [[element span index] (read-buffer-form session from)]
+        (recur (conj forms element) (conj spans span) (conj indexes index))
+        (when (= to (second (peek spans)))
+          {:forms forms :spans spans :indexes indexes})))))
+
+(defn cst-read-all-parallel
+  "Reads a CharBufferReader into a FILE element, reading chunks of the text on several threads.
+   The text is first scanned for where its top level forms end, and split into chunks at those
+   points. The result is the same as cst-read-all, with the same spans, position indexes and
+   source when the opts ask for :positions or :editable.
+   Text that cannot be scanned, text that is too short to split, and any chunk that fails to read,
+   are all read by cst-read-all instead, so errors are the same as a sequential read.
+   Bindings such as *ns* are conveyed to the threads. An :intern table in the opts is not
+   used by the threads, since a table can only be used by one thread.
+   Options:
+     :parallelism - the number of threads (defaults to the number of processors)
+     :min-chunk - the fewest characters worth reading on their own thread (defaults to 65536)"
+  ([io] (cst-read-all-parallel io (new-location)))
+  ([io location] (cst-read-all-parallel io location nil))
+  ([io location opts] (cst-read-all-parallel io location opts nil))
+  ([^CharBufferReader io location opts {:keys [parallelism min-chunk]
+                                        :or {parallelism (.availableProcessors (Runtime/getRuntime))
+                                             min-chunk 65536}}]
+   (let [from (.position io)
+         to (.length io)
+         parts (min (long parallelism) (quot (- to from) (long min-chunk)))
+         ends (when (> parts 1) (FormScanner/formEnds io))]
+     (if-not ends
+       (cst-read-all io location opts)
+       (let [cuts (FormScanner/split ends from parts)
+             opts (file-opts opts)
+             chunk-opts (merge (dissoc opts :intern) {:eof (Object.)})
+             pool (ForkJoinPool. (int parts))
+             chunks (try
+                      (let [tasks (mapv (fn [start end]
+                                          (let [^Callable task (bound-fn [] (read-range io start end chunk-opts))]
+                                            (.submit pool task)))
+                                        (cons from cuts) cuts)]
+                        (mapv (fn [^Future f] (.get f)) tasks))
+                      ;; a chunk that failed to read is read again in order, to raise the same error
+                      (catch ExecutionException _ nil)
+                      (finally (.shutdownNow pool)))]
+         (if (or (nil? chunks) (some nil? chunks))
+           (cst-read-all io location opts)
+           (do
+             (.skip io (- to from))
+             (SyntaxElement. SyntaxElement$Type/FILE
+                             (cond-> {:data (into [] (mapcat :forms) chunks) :location location}
+                               (:positions opts) (assoc :spans (into [] (mapcat :spans) chunks)
+                                                        :indexes (into [] (mapcat :indexes) chunks))
+                               (:editable opts) (assoc :source (.source io)))))))))))
 
 (defn cst-read-all-string
   "Read all forms from a string into a seq of CST structures"
   ([^String s] (cst-read-all-string s (new-location) nil))
   ([^String s location] (cst-read-all-string s location nil))
   ([^String s location opts]
-   (with-open [io (PushbackReader. (StringReader. s))]
-     (cst-read-all io location opts))))
+   (cst-read-all (CharBufferReader. s) location opts)))
+
+(defn cst-read-all-file
+  "Read all forms from a file into a seq of CST structures. The file is memory mapped
+   and decoded in one step, and then parsed directly from the character buffer.
+   The location defaults to the path of the file."
+  ([f] (cst-read-all-file f nil nil))
+  ([f location] (cst-read-all-file f location nil))
+  ([f location opts] (cst-read-all-file f location opts "UTF-8"))
+  ([f location opts encoding]
+   (let [^File file (io/file f)]
+     (cst-read-all (CharBufferReader/forFile file (Charset/forName encoding))
+                   (or location (.toURI file))
+                   opts))))
 
 (defn cst-read
   "Reads the first element parsed from the stream into a single cst structure form"
   ([^PushbackReader io] (cst-read io nil))
   ([^PushbackReader io opts] (LispReader/read io opts)))
 
+(defn emit-to
+  "Writes the text of a form, or a whole FILE element, to out as it walks the structure, so no
+   strings are built for the nested forms. out may be a Writer or any other Appendable, such as a
+   StringBuilder, and is left open. Anything else is opened with clojure.java.io/writer, such as a
+   File or a Socket, and is closed once the text has been written."
+  [form out]
+  (if (instance? Appendable out)
+    (SyntaxElement/emit ^Object form ^Writer (SyntaxElement/writer out))
+    (with-open [^Writer w (io/writer out)]
+      (SyntaxElement/emit ^Object form w))))
+
 (defn cst-read-string
   "Read the first element parsed from the a string in a single cst structure form"
   ([^String s] (cst-read-string s nil))
@@ -45,3 +364,165 @@
     (with-open [io (PushbackReader. (StringReader. s))]
      (cst-read io opts))))
 
+(defn- first-span-ending-at
+  "Binary search for the index of the first span that ends at or after offset.
+   Returns the number of spans if there are none."
+  [spans offset]
+  (loop [lo 0 hi (count spans)]
+    (if (< lo hi)
+      (let [mid (quot (+ lo hi) 2)]
+        (if (< (long (second (spans mid))) (long offset))
+          (recur (inc mid) hi)
+          (recur lo mid)))
+      lo)))
+
+(defn- span-ending-at
+  "Returns the index of the span that ends exactly at offset, or nil if there is none."
+  [spans offset]
+  (let [i (first-span-ending-at spans offset)]
+    (when (and (< i (count spans)) (= (long offset) (long (second (spans i)))))
+      i)))
+
+(defn- reparse-window
+  "Reads the forms of text from region-start, copying only the characters up to window-end, until
+   a form that ends at or after edit-end ends where a form of the old spans ended, moved by delta.
+   Returns [forms spans indexes i], where i is the index of that old span, or nil when the forms
+   run to the end of the text. Returns nil when the window is too short to tell, so that a token
+   or form cut off by the end of the window is never taken for one that ends there."
+  [^Rope text region-start window-end edit-end delta old-spans opts]
+  (let [region-start (int region-start)
+        window-end (int window-end)
+        whole (== window-end (.length text))
+        chars (char-array (- window-end region-start))
+        _ (.getChars text region-start window-end chars 0)
+        session (reader-session (CharBufferReader. chars)
+                                (merge opts {:eof (Object.) :positions (PositionIndex$Builder.)}))]
+    (try
+      (loop [forms [] spans [] indexes []]
+        (if-let [[element [_ e :as span] index] (read-buffer-form session region-start)]
+          (when (or whole (< (long e) window-end))
+            (let [forms (conj forms element)
+                  spans (conj spans span)
+                  indexes (conj indexes index)]
+              (if-let [i (when (>= (long e) (long edit-end)) (span-ending-at old-spans (- (long e) (long delta))))]
+                [forms spans indexes i]
+                (recur forms spans indexes))))
+          (when whole [forms spans indexes nil])))
+      (catch Exception e
+        (when whole (throw e))))))
+
+(defn cst-reparse
+  "Reparses a FILE element after the characters from start to end of its source are replaced.
+   Only the top level forms that overlap the edit are read again. Reading continues past the
+   edit until a form ends where a form ended before the edit, and from there the remaining
+   forms are reused. Forms that are not read again are the same objects as in the original file,
+   and keep their position indexes.
+   The source of the new file is a rope, and its forms, spans and indexes are spliced vectors, which
+   share everything outside the edit with the old file. Only the characters of the forms that are
+   read again are copied, so an edit costs time in the size of those forms, not of the file.
+   The file must have been read from a CharBufferReader with :editable true, and the same opts.
+   The new file is editable in turn."
+  ([file start end replacement] (cst-reparse file start end replacement nil))
+  ([^SyntaxElement file start end ^String replacement external-opts]
+   (let [{:keys [data spans indexes source location] :as fdata} (.data file)]
+     (when-not (and spans source)
+       (throw (ex-info "File does not record its source, read it with :editable true" {:location location})))
+     (let [forms (if (vector? data) data (vec data))
+           text (.replace (Rope/of source) (int start) (int end) replacement)
+           len (.length text)
+           delta (- (count replacement) (- end start))
+           edit-end (+ start (count replacement))
+           first-idx (first-span-ending-at spans start)
+           region-start (if (pos? first-idx) (second (spans (dec first-idx))) 0)
+           ;; the window first reaches just past where the form that held the end of the edit
+           ;; ended, and doubles until the forms read in it settle
+           last-idx (first-span-ending-at spans end)
+           guess (if (< last-idx (count spans)) (+ (long (second (spans last-idx))) delta 1) len)
+           [read-forms read-spans read-indexes resync]
+           (loop [window-end (min len (max guess edit-end))]
+             (or (reparse-window text region-start window-end edit-end delta spans external-opts)
+                 (recur (min len (+ window-end (max 1024 (- window-end region-start)))))))
+           rest-from (if resync (inc resync) (count forms))]
+       (SyntaxElement. SyntaxElement$Type/FILE
+                       (assoc fdata
+                              :data (.splice (SplicedVector/of forms) first-idx rest-from read-forms 0)
+                              :spans (.splice (SplicedVector/of spans) first-idx rest-from read-spans delta)
+                              :indexes (.splice (SplicedVector/of indexes) first-idx rest-from read-indexes 0)
+                              :source text))))))
+
+(defn- form-containing
+  "Returns the index of the top level form whose span contains offset, or nil"
+  [spans offset]
+  (let [i (first-span-ending-at spans (inc offset))]
+    (when (and (< i (count spans)) (<= (long (first (spans i))) (long offset)))
+      i)))
+
+(defn- position-of
+  "Describes a node from a position index, with offsets relative to the file"
+  [^PositionIndex index i base]
+  {:node (.node index i)
+   :start (+ base (.start index i))
+   :end (+ base (.end index i))
+   :depth (.depth index i)})
+
+(defn node-at
+  "Finds the innermost node at an offset in a FILE element that was read with :positions true.
+   Returns a map of the :node, its :start and :end offsets, and its :depth below the top level,
+   or nil if the offset is not in a form."
+  [^SyntaxElement file offset]
+  (let [{:keys [spans indexes]} (.data file)]
+    (when-let [f (form-containing spans offset)]
+      (let [base (first (spans f))
+            ^PositionIndex index (indexes f)
+            i (.indexAt index (int (- offset base)))]
+        (when-not (neg? i) (position-of index i base))))))
+
+(defn nodes-in-range
+  "Finds all the nodes that lie entirely between the start and end offsets in a FILE element
+   that was read with :positions true. Returns the same descriptions as node-at, in order."
+  [^SyntaxElement file start end]
+  (let [{:keys [spans indexes]} (.data file)
+        first-form (first-span-ending-at spans (inc start))]
+    (vec
+      (for [f (range first-form (count spans))
+            :let [[fstart] (spans f)]
+            :while (< (long fstart) (long end))
+            :let [^PositionIndex index (indexes f)]
+            i (.indexesIn index (int (- start fstart)) (int (- end fstart)))]
+        (position-of index i fstart)))))
+
+(defn- walk-result
+  "Converts the result of an enter or leave function to the code the Walker expects"
+  [r]
+  (case r
+    :skip Walker/SKIP
+    :stop Walker/STOP
+    Walker/CONTINUE))
+
+(defn walk-cst
+  "Walks the nodes of a form in pre-order, without recursion. enter is called with each node and
+   its depth before its children, and may return :skip to leave the children out, or :stop to end
+   the walk. leave is called after the children, and may return :stop. Either may be nil.
+   Returns true if the walk finished, or false if it was stopped."
+  ([form enter] (walk-cst form enter nil))
+  ([form enter leave]
+   (Walker/walk form (reify Walker$Visitor
+                       (enter [_ node depth] (if enter (walk-result (enter node depth)) Walker/CONTINUE))
+                       (leave [_ node depth] (if leave (walk-result (leave node depth)) Walker/CONTINUE))))))
+
+(defn cst-nodes
+  "Returns a reducible of every node in a form, such as a FILE element, in pre-order.
+   The form itself is the first node. Reducing walks the tree directly, so transduce over
+   the nodes allocates nothing per node beyond what the reducing function does."
+  [form]
+  (reify clojure.lang.IReduceInit
+    (reduce [_ f init]
+      (let [acc (volatile! init)]
+        (Walker/walk form (reify Walker$Visitor
+                            (enter [_ node depth]
+                              (let [r (f @acc node)]
+                                (if (reduced? r)
+                                  (do (vreset! acc @r) Walker/STOP)
+                                  (do (vreset! acc r) Walker/CONTINUE))))
+                            (leave [_ node depth] Walker/CONTINUE)))
+        @acc))))
@@ -11,11 +11,23 @@
                      :db/cardinality        :db.cardinality/one
                      :db/isComponent        true
                      :db.install/_attribute :db.part/db}
+                    {:db/id                 (Peer/tempid :db.part/db)
+                     :db/ident              :cst.value/shared
+                     :db/valueType          :db.type/ref
+                     :db/cardinality        :db.cardinality/one
+                     :db/doc                "Refers to a subtree that may be shared with other parents, so is not a component"
+                     :db.install/_attribute :db.part/db}
                     {:db/id                 (Peer/tempid :db.part/db)
                      :db/ident              :cst.value/symbol
                      :db/valueType          :db.type/string
                      :db/cardinality        :db.cardinality/one
                      :db/fulltext           true
+                     :db.install/_attribute :db.part/db}
+                    {:db/id                 (Peer/tempid :db.part/db)
+                     :db/ident              :cst.symbol/ns
+                     :db/valueType          :db.type/string
+                     :db/cardinality        :db.cardinality/one
+                     :db/doc                "The namespace of a qualified symbol, whose name is in :cst.value/symbol"
                      :db.install/_attribute :db.part/db}]
                    (map (fn [a]
                           (let [nm (name a)
@@ -36,15 +48,25 @@
     :db/cardinality :db.cardinality/one
     :db.install/_attribute :db.part/db}
    {:db/id (Peer/tempid :db.part/db)
-    :db/ident :cst/element
-    :db/valueType :db.type/ref
-    :db/isComponent true
-    :db/cardinality :db.cardinality/many
+    :db/ident :cst/key
+    :db/valueType :db.type/long
+    :db/cardinality :db.cardinality/one
+    :db/unique :db.unique/value
+    :db/doc "Identifies a collection stored with indexes, in the :cst/position of each of its elements"
     :db.install/_attribute :db.part/db}
    {:db/id (Peer/tempid :db.part/db)
-    :db/ident :cst/index
-    :db/valueType :db.type/long
+    :db/ident :cst/position
+    :db/valueType :db.type/bigint
     :db/cardinality :db.cardinality/one
+    :db/index true
+    :db/doc "The key of the collection that holds an element in the high 64 bits, and its index in the low 64"
+    :db.install/_attribute :db.part/db}
+   {:db/id (Peer/tempid :db.part/db)
+    :db/ident :cst/content-hash
+    :db/valueType :db.type/uuid
+    :db/cardinality :db.cardinality/one
+    :db/unique :db.unique/identity
+    :db/doc "A hash of the contents of a shared subtree, so that each subtree is stored once"
     :db.install/_attribute :db.part/db}
    {:db/id (Peer/tempid :db.part/db)
     :db/ident :cst/location
@@ -62,6 +84,30 @@
     :db/valueType :db.type/boolean
     :db/cardinality :db.cardinality/one
     :db.install/_attribute :db.part/db}
+   {:db/id (Peer/tempid :db.part/db)
+    :db/ident :cst.xref/symbol
+    :db/valueType :db.type/string
+    :db/cardinality :db.cardinality/one
+    :db/index true
+    :db/doc "A symbol used in a file, qualified by the namespace it resolves to where the file's ns form shows it"
+    :db.install/_attribute :db.part/db}
+   {:db/id (Peer/tempid :db.part/db)
+    :db/ident :cst.xref/file
+    :db/valueType :db.type/ref
+    :db/cardinality :db.cardinality/one
+    :db.install/_attribute :db.part/db}
+   {:db/id (Peer/tempid :db.part/db)
+    :db/ident :cst.xref/node
+    :db/valueType :db.type/ref
+    :db/cardinality :db.cardinality/many
+    :db/doc "The nodes of the file that hold the symbol"
+    :db.install/_attribute :db.part/db}
+   {:db/id (Peer/tempid :db.part/db)
+    :db/ident :cst.xref/definition
+    :db/valueType :db.type/ref
+    :db/cardinality :db.cardinality/one
+    :db/doc "The top level form of the file that defines the symbol"
+    :db.install/_attribute :db.part/db}
    {:db/id (Peer/tempid :db.part/db)
     :db/ident :cst/rest
     :db/valueType :db.type/ref
@@ -76,6 +122,16 @@
 
 (def schema (concat partitions basic-schema types))
 
+(def compact-schema
+  "The attribute of the compact encoding of collections of scalars. This is only loaded into
+   databases that use the encoding."
+  [{:db/id (Peer/tempid :db.part/db)
+    :db/ident :cst/scalars
+    :db/valueType :db.type/string
+    :db/cardinality :db.cardinality/one
+    :db/doc "The elements of a collection that holds only scalars, written as an edn vector, in place of an entity for each"
+    :db.install/_attribute :db.part/db}])
+
 (def reader-macros
   (conj
     (map (fn [e]
@@ -0,0 +1,145 @@
+package cst;
+
+import clojure.lang.BigInt;
+import clojure.lang.Keyword;
+import clojure.lang.RT;
+import clojure.lang.Ratio;
+import clojure.lang.Symbol;
+import clojure.lang.Var;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.regex.Pattern;
+
+/**
+ * Writes the atoms of a form directly, as RT.print would write them with the default print settings.
+ * RT.print goes through the print-method multimethod for every atom, which is most of the cost of emitting.
+ * When any of the print settings are changed the atoms are left to RT.print.
+ */
+class AtomWriter {
+
+  static final Var PRINT_READABLY = RT.var("clojure.core", "*print-readably*");
+  static final Var PRINT_DUP = RT.var("clojure.core", "*print-dup*");
+  static final Var PRINT_META = RT.var("clojure.core", "*print-meta*");
+  static final Var PRINT_INITIALIZED = RT.var("clojure.core", "print-initialized");
+
+  static boolean defaultSettings() {
+    return RT.booleanCast(PRINT_INITIALIZED.deref()) &&
+        RT.booleanCast(PRINT_READABLY.deref()) &&
+        !RT.booleanCast(PRINT_DUP.deref()) &&
+        !RT.booleanCast(PRINT_META.deref());
+  }
+
+  /**
+   * Writes an atom, if it is one that can be written directly.
+   * @return true if the atom was written, or false if it should be printed with RT.print.
+   */
+  static boolean write(Object o, Writer w) throws IOException {
+    if (o == null) {
+      if (!defaultSettings()) return false;
+      w.write("nil");
+      return true;
+    }
+    Class c = o.getClass();
+    if (c != String.class && c != Long.class && c != Keyword.class && c != Symbol.class &&
+        c != Double.class && c != Boolean.class && c != Character.class && c != BigInt.class &&
+        c != BigDecimal.class && c != Ratio.class && c != Pattern.class) {
+      return false;
+    }
+    if (!defaultSettings()) return false;
+
+    if (c == String.class) {
+      writeString((String) o, w);
+    } else if (c == Long.class || c == Ratio.class || c == Boolean.class || c == Keyword.class) {
+      w.write(o.toString());
+    } else if (c == Symbol.class) {
+      // print-method dispatches on a :type in the metadata, so leave those to print-method
+      if (((Symbol) o).meta() != null) return false;
+      w.write(o.toString());
+    } else if (c == Double.class) {
+      // not a number and infinity print differently between Clojure versions
+      double d = (Double) o;
+      if (Double.isNaN(d) || Double.isInfinite(d)) return false;
+      w.write(Double.toString(d));
+    } else if (c == Character.class) {
+      writeChar((Character) o, w);
+    } else if (c == BigInt.class) {
+      w.write(o.toString());
+      w.write('N');
+    } else if (c == BigDecimal.class) {
+      w.write(o.toString());
+      w.write('M');
+    } else {
+      writePattern((Pattern) o, w);
+    }
+    return true;
+  }
+
+  static void writeString(String s, Writer w) throws IOException {
+    w.write('"');
+    int len = s.length();
+    int run = 0;
+    for (int i = 0; i < len; i++) {
+      String e = escape(s.charAt(i));
+      if (e != null) {
+        if (run < i) w.write(s, run, i - run);
+        w.write(e);
+        run = i + 1;
+      }
+    }
+    if (run < len) w.write(s, run, len - run);
+    w.write('"');
+  }
+
+  static private String escape(char c) {
+    switch (c) {
+      case '\n': return "\\n";
+      case '\t': return "\\t";
+      case '\r': return "\\r";
+      case '"': return "\\\"";
+      case '\\': return "\\\\";
+      case '\f': return "\\f";
+      case '\b': return "\\b";
+      default: return null;
+    }
+  }
+
+  static void writeChar(char c, Writer w) throws IOException {
+    w.write('\\');
+    switch (c) {
+      case '\n': w.write("newline"); break;
+      case '\t': w.write("tab"); break;
+      case ' ': w.write("space"); break;
+      case '\b': w.write("backspace"); break;
+      case '\f': w.write("formfeed"); break;
+      case '\r': w.write("return"); break;
+      default: w.write(c);
+    }
+  }
+
+  /**
+   * Writes a regex the way print-method does. Quotes are escaped, except inside a \Q...\E quoted
+   * section, where the section is closed around the escaped quote.
+   */
+  static void writePattern(Pattern p, Writer w) throws IOException {
+    String s = p.pattern();
+    w.write("#\"");
+    boolean qmode = false;
+    int len = s.length();
+    for (int i = 0; i < len; i++) {
+      char c = s.charAt(i);
+      if (c == '\\' && i + 1 < len) {
+        char c2 = s.charAt(++i);
+        w.write('\\');
+        w.write(c2);
+        qmode = qmode ? (c2 != 'E') : (c2 == 'Q');
+      } else if (c == '"') {
+        w.write(qmode ? "\\E\\\"\\Q" : "\\\"");
+      } else {
+        w.write(c);
+      }
+    }
+    w.write('"');
+  }
+}
@@ -0,0 +1,297 @@
+package cst;
+
+import clojure.lang.APersistentVector;
+import clojure.lang.BigInt;
+import clojure.lang.Cons;
+import clojure.lang.IObj;
+import clojure.lang.ISeq;
+import clojure.lang.IPersistentMap;
+import clojure.lang.IPersistentStack;
+import clojure.lang.IPersistentVector;
+import clojure.lang.Keyword;
+import clojure.lang.LazilyPersistentVector;
+import clojure.lang.PersistentHashSet;
+import clojure.lang.PersistentList;
+import clojure.lang.PersistentVector;
+import clojure.lang.RT;
+import clojure.lang.Ratio;
+import clojure.lang.Symbol;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+import static cst.BinaryWriter.*;
+
+/**
+ * Reads forms written by BinaryWriter. Nothing is decoded until it is asked for: each top level form,
+ * and the strings it uses, are decoded the first time the form is used, and then kept.
+ * When the file is memory mapped, forms that are never used are never read from disk.
+ */
+public class BinaryFile {
+
+  final ByteBuffer buf;
+  final boolean positions;
+  final int count;
+  final int stringCount;
+  final int stringTable;
+  final int stringText;
+
+  private final String[] strings;
+  private final Object[] forms;
+  private final PositionIndex[] indexes;
+  private final boolean[] decoded;
+
+  // the position of the next byte to decode
+  private int pos;
+
+  public BinaryFile(ByteBuffer buf) {
+    this.buf = buf;
+    for (int i = 0; i < MAGIC.length; i++) {
+      if (buf.get(i) != MAGIC[i]) throw new IllegalArgumentException("Not a binary CST file");
+    }
+    int h = MAGIC.length;
+    positions = (buf.getInt(h) & FLAG_POSITIONS) != 0;
+    count = buf.getInt(h + 4);
+    stringCount = buf.getInt(h + 8);
+    stringTable = buf.getInt(h + 12);
+    stringText = stringTable + 4 * (stringCount + 1);
+    strings = new String[stringCount];
+    forms = new Object[count];
+    indexes = new PositionIndex[count];
+    decoded = new boolean[count];
+  }
+
+  /** Memory maps a file written by BinaryWriter. */
+  public static BinaryFile map(File f) throws IOException {
+    FileInputStream in = new FileInputStream(f);
+    try {
+      FileChannel channel = in.getChannel();
+      return new BinaryFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    } finally {
+      in.close();
+    }
+  }
+
+  public int size() { return count; }
+
+  public boolean hasPositions() { return positions; }
+
+  public int start(int i) { return buf.getInt(MAGIC.length + 16 + 4 * count + 8 * i); }
+
+  public int end(int i) { return buf.getInt(MAGIC.length + 16 + 4 * count + 8 * i + 4); }
+
+  /** Returns a top level form, decoding it the first time it is asked for. */
+  public synchronized Object form(int i) {
+    if (!decoded[i]) decode(i);
+    return forms[i];
+  }
+
+  /** Returns the position index of a top level form, or null if the file has no positions. */
+  public synchronized PositionIndex index(int i) {
+    if (!decoded[i]) decode(i);
+    return indexes[i];
+  }
+
+  /** The top level forms, as a vector that decodes each form when it is first used. */
+  public IPersistentVector forms() {
+    return new LazyVector(this, false);
+  }
+
+  /** The position indexes of the forms, as a vector that decodes each form when it is first used. */
+  public IPersistentVector indexes() {
+    return new LazyVector(this, true);
+  }
+
+  /** The [start end] span of each form. */
+  public IPersistentVector spans() {
+    Object[] spans = new Object[count];
+    for (int i = 0; i < count; i++) spans[i] = RT.vector((long) start(i), (long) end(i));
+    return LazilyPersistentVector.createOwning(spans);
+  }
+
+  private String string(int id) {
+    String s = strings[id];
+    if (s == null) {
+      int from = buf.getInt(stringTable + 4 * id);
+      int to = buf.getInt(stringTable + 4 * (id + 1));
+      byte[] bytes = new byte[to - from];
+      for (int i = 0; i < bytes.length; i++) bytes[i] = buf.get(stringText + from + i);
+      strings[id] = s = new String(bytes, UTF8);
+    }
+    return s;
+  }
+
+  private long varLong() {
+    long v = 0;
+    int shift = 0;
+    for (;;) {
+      byte b = buf.get(pos++);
+      v |= (long) (b & 0x7F) << shift;
+      if (b >= 0) return v;
+      shift += 7;
+    }
+  }
+
+  private int varInt() {
+    return (int) varLong();
+  }
+
+  private void decode(int i) {
+    pos = buf.getInt(MAGIC.length + 16 + 4 * i);
+    Object[] nodes = new Object[varInt()];
+    int[] next = {0};
+    forms[i] = node(nodes, next);
+    int n = varInt();
+    if (positions) {
+      int[] starts = new int[n];
+      int[] ends = new int[n];
+      int[] parents = new int[n];
+      Object[] indexed = new Object[n];
+      for (int j = 0; j < n; j++) {
+        starts[j] = varInt();
+        ends[j] = varInt();
+        parents[j] = varInt() - 1;
+        int ordinal = varInt();
+        indexed[j] = (ordinal == 0) ? null : nodes[ordinal - 1];
+      }
+      indexes[i] = new PositionIndex(starts, ends, parents, indexed);
+    }
+    decoded[i] = true;
+  }
+
+  private Object node(Object[] nodes, int[] next) {
+    int ordinal = next[0]++;
+    Object o;
+    byte tag = buf.get(pos++);
+    switch (tag) {
+      case NIL: o = null; break;
+      case TRUE: o = Boolean.TRUE; break;
+      case FALSE: o = Boolean.FALSE; break;
+      case LONG: {
+        long v = varLong();
+        o = (v >>> 1) ^ -(v & 1);
+        break;
+      }
+      case DOUBLE: {
+        long hi = buf.getInt(pos) & 0xFFFFFFFFL;
+        long lo = buf.getInt(pos + 4) & 0xFFFFFFFFL;
+        pos += 8;
+        o = Double.longBitsToDouble((hi << 32) | lo);
+        break;
+      }
+      case STRING: o = string(varInt()); break;
+      case SYMBOL: {
+        int ns = varInt();
+        o = Symbol.intern(ns == 0 ? null : string(ns - 1), string(varInt()));
+        break;
+      }
+      case KEYWORD: {
+        int ns = varInt();
+        o = Keyword.intern(ns == 0 ? null : string(ns - 1), string(varInt()));
+        break;
+      }
+      case CHAR: o = (char) varInt(); break;
+      case BIGINT: o = BigInt.fromBigInteger(new BigInteger(string(varInt()))); break;
+      case BIGDEC: o = new BigDecimal(string(varInt())); break;
+      case RATIO: {
+        BigInteger numerator = new BigInteger(string(varInt()));
+        o = new Ratio(numerator, new BigInteger(string(varInt())));
+        break;
+      }
+      case PATTERN: o = Pattern.compile(string(varInt())); break;
+      case LIST: o = PersistentList.create(Arrays.asList(children(nodes, next))); break;
+      case VECTOR: o = LazilyPersistentVector.createOwning(children(nodes, next)); break;
+      case SEQ: {
+        Object[] c = children(nodes, next);
+        ISeq seq = null;
+        for (int i = c.length - 1; i >= 0; i--) seq = new Cons(c[i], seq);
+        o = seq;
+        break;
+      }
+      case META_LIST: {
+        IPersistentMap meta = (IPersistentMap) node(nodes, next);
+        o = ((IObj) PersistentList.create(Arrays.asList(children(nodes, next)))).withMeta(meta);
+        break;
+      }
+      case META_VECTOR: {
+        IPersistentMap meta = (IPersistentMap) node(nodes, next);
+        o = ((IObj) LazilyPersistentVector.createOwning(children(nodes, next))).withMeta(meta);
+        break;
+      }
+      case META_SEQ: {
+        IPersistentMap meta = (IPersistentMap) node(nodes, next);
+        Object[] c = children(nodes, next);
+        ISeq seq = null;
+        for (int i = c.length - 1; i >= 0; i--) seq = new Cons(c[i], seq);
+        o = (seq == null) ? ((IObj) PersistentList.EMPTY).withMeta(meta) : ((IObj) seq).withMeta(meta);
+        break;
+      }
+      case ARRAY_LIST: o = new ArrayList(Arrays.asList(children(nodes, next))); break;
+      case MAP: o = RT.map(children(nodes, next, 2 * varInt())); break;
+      case SET: o = PersistentHashSet.create(children(nodes, next)); break;
+      case ELEMENT: {
+        SyntaxElement.Type type = SyntaxElement.Type.values()[buf.get(pos++)];
+        Object data = node(nodes, next);
+        o = (type == SyntaxElement.Type.COMMA) ? SyntaxElement.COMMA_SYNTAX : new SyntaxElement(type, data);
+        break;
+      }
+      case OTHER: o = RT.readString(string(varInt())); break;
+      default: throw new IllegalStateException("Unknown tag in binary CST: " + tag);
+    }
+    nodes[ordinal] = o;
+    return o;
+  }
+
+  private Object[] children(Object[] nodes, int[] next) {
+    return children(nodes, next, varInt());
+  }
+
+  private Object[] children(Object[] nodes, int[] next, int n) {
+    Object[] c = new Object[n];
+    for (int i = 0; i < n; i++) c[i] = node(nodes, next);
+    return c;
+  }
+
+  /**
+   * A vector of the forms or indexes of a file, which are decoded as they are used.
+   * Changing the vector creates an ordinary vector, with every form decoded.
+   */
+  static final class LazyVector extends APersistentVector {
+    private static final long serialVersionUID = 1L;
+
+    final BinaryFile file;
+    final boolean indexes;
+
+    LazyVector(BinaryFile file, boolean indexes) {
+      this.file = file;
+      this.indexes = indexes;
+    }
+
+    public Object nth(int i) {
+      if (i < 0 || i >= file.count) throw new IndexOutOfBoundsException();
+      return indexes ? file.index(i) : file.form(i);
+    }
+
+    public int count() { return file.count; }
+
+    private IPersistentVector materialize() {
+      return LazilyPersistentVector.create(this);
+    }
+
+    public IPersistentVector cons(Object o) { return materialize().cons(o); }
+
+    public IPersistentVector assocN(int i, Object val) { return materialize().assocN(i, val); }
+
+    public IPersistentStack pop() { return materialize().pop(); }
+
+    public clojure.lang.IPersistentCollection empty() { return PersistentVector.EMPTY; }
+  }
+}
@@ -0,0 +1,305 @@
+package cst;
+
+import clojure.lang.BigInt;
+import clojure.lang.IPersistentList;
+import clojure.lang.ISeq;
+import clojure.lang.IPersistentMap;
+import clojure.lang.IPersistentSet;
+import clojure.lang.IPersistentVector;
+import clojure.lang.Keyword;
+import clojure.lang.RT;
+import clojure.lang.Ratio;
+import clojure.lang.Symbol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Writes the forms of a FILE element in a compact binary format, which BinaryFile reads back.
+ * The format starts with a header and tables of offsets, so that each top level form can be found
+ * and decoded on its own. Every string, symbol name and keyword name is written once, in a table
+ * at the end, and referred to by number.
+ *
+ * Layout, with ints written big endian:
+ *   magic "CST" and a version byte
+ *   int: flags, int: number of forms, int: number of strings, int: offset of the string table
+ *   int[forms]: offset of each form
+ *   int[2 * forms]: start and end of each form in the source, when the file has positions
+ *   each form: varint node count, the nodes in pre-order, then the position index of the form
+ *   string table: int[strings + 1] offsets relative to the end of this array, then UTF-8 bytes
+ * Position indexes refer to nodes by their number in the pre-order of the form. A node that was
+ * read but is not in the form, such as the tag of a tagged literal, is read back as nil.
+ * The metadata of a list, vector or seq, such as its :line, is a node before its elements.
+ */
+public class BinaryWriter {
+
+  static final Charset UTF8 = Charset.forName("UTF-8");
+  static final byte[] MAGIC = {'C', 'S', 'T', 1};
+  static final int FLAG_POSITIONS = 1;
+
+  // tags for the kinds of node
+  static final byte NIL = 0;
+  static final byte TRUE = 1;
+  static final byte FALSE = 2;
+  static final byte LONG = 3;
+  static final byte DOUBLE = 4;
+  static final byte STRING = 5;
+  static final byte SYMBOL = 6;
+  static final byte KEYWORD = 7;
+  static final byte CHAR = 8;
+  static final byte BIGINT = 9;
+  static final byte BIGDEC = 10;
+  static final byte RATIO = 11;
+  static final byte PATTERN = 12;
+  static final byte LIST = 13;
+  static final byte VECTOR = 14;
+  static final byte ARRAY_LIST = 15;
+  static final byte MAP = 16;
+  static final byte SET = 17;
+  static final byte ELEMENT = 18;
+  static final byte SEQ = 19;
+  // anything else is written as it prints, and read back with the Clojure reader
+  static final byte OTHER = 20;
+  // lists, vectors and seqs with metadata: the metadata, then the elements
+  static final byte META_LIST = 21;
+  static final byte META_VECTOR = 22;
+  static final byte META_SEQ = 23;
+
+  /** A growable array of bytes. */
+  static final class Bytes {
+    byte[] b = new byte[256];
+    int length = 0;
+
+    void ensure(int n) {
+      if (length + n > b.length) b = Arrays.copyOf(b, Math.max(b.length * 2, length + n));
+    }
+
+    void writeByte(int v) {
+      ensure(1);
+      b[length++] = (byte) v;
+    }
+
+    void writeInt(int v) {
+      ensure(4);
+      b[length++] = (byte) (v >>> 24);
+      b[length++] = (byte) (v >>> 16);
+      b[length++] = (byte) (v >>> 8);
+      b[length++] = (byte) v;
+    }
+
+    void writeVarLong(long v) {
+      ensure(10);
+      while ((v & ~0x7FL) != 0) {
+        b[length++] = (byte) ((v & 0x7F) | 0x80);
+        v >>>= 7;
+      }
+      b[length++] = (byte) v;
+    }
+
+    void writeVarInt(int v) {
+      writeVarLong(v & 0xFFFFFFFFL);
+    }
+
+    void write(byte[] bytes) {
+      ensure(bytes.length);
+      System.arraycopy(bytes, 0, b, length, bytes.length);
+      length += bytes.length;
+    }
+  }
+
+  final Map<String, Integer> stringIds = new HashMap<String, Integer>();
+  final List<String> strings = new java.util.ArrayList<String>();
+
+  // the number of each node in the form being written, in pre-order, so position indexes can refer to them
+  IdentityHashMap<Object, Integer> ordinals;
+  int nodeCount;
+
+  int string(String s) {
+    Integer id = stringIds.get(s);
+    if (id == null) {
+      id = strings.size();
+      strings.add(s);
+      stringIds.put(s, id);
+    }
+    return id;
+  }
+
+  void node(Object o, Bytes out) {
+    if (!ordinals.containsKey(o)) ordinals.put(o, nodeCount);
+    nodeCount++;
+    if (o == null) {
+      out.writeByte(NIL);
+    } else if (o instanceof Boolean) {
+      out.writeByte((Boolean) o ? TRUE : FALSE);
+    } else if (o instanceof Long) {
+      long v = (Long) o;
+      out.writeByte(LONG);
+      out.writeVarLong((v << 1) ^ (v >> 63));
+    } else if (o instanceof Double) {
+      long v = Double.doubleToRawLongBits((Double) o);
+      out.writeByte(DOUBLE);
+      out.writeInt((int) (v >>> 32));
+      out.writeInt((int) v);
+    } else if (o instanceof String) {
+      out.writeByte(STRING);
+      out.writeVarInt(string((String) o));
+    } else if (o instanceof Symbol && ((Symbol) o).meta() == null) {
+      Symbol s = (Symbol) o;
+      out.writeByte(SYMBOL);
+      out.writeVarInt(s.getNamespace() == null ? 0 : string(s.getNamespace()) + 1);
+      out.writeVarInt(string(s.getName()));
+    } else if (o instanceof Keyword) {
+      Keyword k = (Keyword) o;
+      out.writeByte(KEYWORD);
+      out.writeVarInt(k.getNamespace() == null ? 0 : string(k.getNamespace()) + 1);
+      out.writeVarInt(string(k.getName()));
+    } else if (o instanceof Character) {
+      out.writeByte(CHAR);
+      out.writeVarInt((Character) o);
+    } else if (o instanceof BigInt) {
+      out.writeByte(BIGINT);
+      out.writeVarInt(string(o.toString()));
+    } else if (o instanceof BigDecimal) {
+      out.writeByte(BIGDEC);
+      out.writeVarInt(string(o.toString()));
+    } else if (o instanceof Ratio) {
+      out.writeByte(RATIO);
+      out.writeVarInt(string(((Ratio) o).numerator.toString()));
+      out.writeVarInt(string(((Ratio) o).denominator.toString()));
+    } else if (o instanceof Pattern) {
+      out.writeByte(PATTERN);
+      out.writeVarInt(string(((Pattern) o).pattern()));
+    } else if (o instanceof SyntaxElement) {
+      SyntaxElement e = (SyntaxElement) o;
+      out.writeByte(ELEMENT);
+      out.writeByte(e.type.ordinal());
+      node(e.data, out);
+    } else if (o instanceof IPersistentList && plain(o)) {
+      collection(LIST, (List) o, out);
+    } else if (o instanceof IPersistentVector && plain(o)) {
+      collection(VECTOR, (List) o, out);
+    } else if (o instanceof ISeq && RT.meta(o) == null) {
+      // such as the (var v) list inside a VAR element
+      collection(SEQ, (List) o, out);
+    } else if (o instanceof IPersistentList || o instanceof IPersistentVector || o instanceof ISeq) {
+      out.writeByte(o instanceof IPersistentList ? META_LIST : o instanceof IPersistentVector ? META_VECTOR : META_SEQ);
+      node(RT.meta(o).without(StructuralHash.HASH_KEY), out);
+      out.writeVarInt(((List) o).size());
+      for (Object x: (List) o) node(x, out);
+    } else if (o.getClass() == java.util.ArrayList.class) {
+      collection(ARRAY_LIST, (List) o, out);
+    } else if (o instanceof IPersistentMap && RT.meta(o) == null) {
+      out.writeByte(MAP);
+      out.writeVarInt(((IPersistentMap) o).count());
+      for (Object x: (Iterable) o) {
+        Map.Entry entry = (Map.Entry) x;
+        node(entry.getKey(), out);
+        node(entry.getValue(), out);
+      }
+    } else if (o instanceof IPersistentSet && RT.meta(o) == null) {
+      out.writeByte(SET);
+      out.writeVarInt(((IPersistentSet) o).count());
+      for (Object x: (Iterable) o) node(x, out);
+    } else {
+      out.writeByte(OTHER);
+      out.writeVarInt(string(RT.printString(o)));
+    }
+  }
+
+  /**
+   * Tests if a collection has no metadata to keep. Structural hashes are not written,
+   * as they are worked out again when they are needed.
+   */
+  static boolean plain(Object o) {
+    IPersistentMap meta = RT.meta(o);
+    return meta == null || (meta.count() == 1 && meta.containsKey(StructuralHash.HASH_KEY));
+  }
+
+  void collection(byte tag, List c, Bytes out) {
+    out.writeByte(tag);
+    out.writeVarInt(c.size());
+    for (Object x: c) node(x, out);
+  }
+
+  /** Writes a form, followed by its position index. */
+  void form(Object form, PositionIndex index, Bytes out) {
+    ordinals = new IdentityHashMap<Object, Integer>();
+    nodeCount = 0;
+    Bytes nodes = new Bytes();
+    node(form, nodes);
+    out.writeVarInt(nodeCount);
+    out.ensure(nodes.length);
+    System.arraycopy(nodes.b, 0, out.b, out.length, nodes.length);
+    out.length += nodes.length;
+    if (index == null) {
+      out.writeVarInt(0);
+    } else {
+      out.writeVarInt(index.size());
+      for (int i = 0; i < index.size(); i++) {
+        Integer ordinal = ordinals.get(index.node(i));
+        out.writeVarInt(index.start(i));
+        out.writeVarInt(index.end(i));
+        out.writeVarInt(index.parent(i) + 1);
+        out.writeVarInt(ordinal == null ? 0 : ordinal + 1);
+      }
+    }
+    ordinals = null;
+  }
+
+  /**
+   * Writes forms, along with their spans and position indexes when they are known.
+   * @param forms The top level forms.
+   * @param spans The [start end] span of each form, or null.
+   * @param indexes The position index of each form, or null.
+   */
+  public static void write(List forms, List spans, List indexes, OutputStream stream) throws IOException {
+    BinaryWriter w = new BinaryWriter();
+    int count = forms.size();
+    boolean positions = spans != null && indexes != null;
+
+    Bytes body = new Bytes();
+    int[] offsets = new int[count];
+    int i = 0;
+    for (Object form: forms) {
+      offsets[i] = body.length;
+      w.form(form, positions ? (PositionIndex) indexes.get(i) : null, body);
+      i++;
+    }
+
+    Bytes table = new Bytes();
+    Bytes text = new Bytes();
+    for (String s: w.strings) {
+      table.writeInt(text.length);
+      text.write(s.getBytes(UTF8));
+    }
+    table.writeInt(text.length);
+
+    int header = MAGIC.length + 16 + 4 * count + (positions ? 8 * count : 0);
+    Bytes out = new Bytes();
+    out.write(MAGIC);
+    out.writeInt(positions ? FLAG_POSITIONS : 0);
+    out.writeInt(count);
+    out.writeInt(w.strings.size());
+    out.writeInt(header + body.length);
+    for (int offset: offsets) out.writeInt(header + offset);
+    if (positions) {
+      for (Object span: spans) {
+        List s = (List) span;
+        out.writeInt(((Number) s.get(0)).intValue());
+        out.writeInt(((Number) s.get(1)).intValue());
+      }
+    }
+    stream.write(out.b, 0, out.length);
+    stream.write(body.b, 0, body.length);
+    stream.write(table.b, 0, table.length);
+    stream.write(text.b, 0, text.length);
+  }
+}
@@ -0,0 +1,153 @@
+package cst;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PushbackReader;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * A PushbackReader over characters that are already in memory.
+ * Rather than buffering and locking, this keeps a cursor into a char array, so a read is an
+ * array access and an unread is a decrement of the cursor.
+ * LispReader treats this exactly as any other PushbackReader, so the parsed structure is the same.
+ */
+public class CharBufferReader extends PushbackReader {
+
+  static final Charset UTF8 = Charset.forName("UTF-8");
+
+  final char[] chars;
+  final int start;
+  final int end;
+  int pos;
+
+  public CharBufferReader(char[] chars, int start, int end) {
+    super(new java.io.StringReader(""), 1);
+    if (start < 0 || end > chars.length || start > end) {
+      throw new IndexOutOfBoundsException("Invalid range [" + start + ", " + end + ") for length " + chars.length);
+    }
+    this.chars = chars;
+    this.start = start;
+    this.end = end;
+    this.pos = start;
+  }
+
+  public CharBufferReader(char[] chars) {
+    this(chars, 0, chars.length);
+  }
+
+  public CharBufferReader(String s) {
+    this(s.toCharArray());
+  }
+
+  /**
+   * Reads the remaining characters in a buffer. Array backed buffers are used in place.
+   */
+  public CharBufferReader(CharBuffer buffer) {
+    this(arrayOf(buffer), offsetOf(buffer), offsetOf(buffer) + buffer.remaining());
+  }
+
+  static private char[] arrayOf(CharBuffer buffer) {
+    if (buffer.hasArray()) return buffer.array();
+    char[] a = new char[buffer.remaining()];
+    buffer.duplicate().get(a);
+    return a;
+  }
+
+  static private int offsetOf(CharBuffer buffer) {
+    return buffer.hasArray() ? buffer.arrayOffset() + buffer.position() : 0;
+  }
+
+  /**
+   * Memory maps a file and decodes it into a character buffer.
+   */
+  static public CharBuffer mapFile(File f, Charset cs) throws IOException {
+    FileInputStream in = new FileInputStream(f);
+    try {
+      FileChannel channel = in.getChannel();
+      MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      return cs.decode(bytes);
+    } finally {
+      in.close();
+    }
+  }
+
+  static public CharBufferReader forFile(File f, Charset cs) throws IOException {
+    return new CharBufferReader(mapFile(f, cs));
+  }
+
+  static public CharBufferReader forFile(File f) throws IOException {
+    return forFile(f, UTF8);
+  }
+
+  /** The current offset of the cursor, relative to the start of the readable range. */
+  public int position() { return pos - start; }
+
+  /** The number of characters in the readable range. */
+  public int length() { return end - start; }
+
+  /** The readable range, as a sequence of characters. This shares the underlying array. */
+  public CharBuffer source() { return CharBuffer.wrap(chars, start, end - start).slice(); }
+
+  /**
+   * Creates a reader over part of the readable range, sharing the underlying array.
+   * The new reader has its own cursor, so several ranges can be read at the same time.
+   * @param from The position where the new reader starts.
+   * @param to The position where the new reader ends.
+   */
+  public CharBufferReader range(int from, int to) {
+    return new CharBufferReader(chars, start + from, start + to);
+  }
+
+  /**
+   * Moves the cursor past any whitespace, using the same test for whitespace as LispReader.
+   * @return The new position of the cursor.
+   */
+  public int skipWhitespace() {
+    while (pos < end && LispReader.isWhitespace(chars[pos])) pos++;
+    return pos - start;
+  }
+
+  public int read() {
+    return (pos < end) ? chars[pos++] : -1;
+  }
+
+  public int read(char[] cbuf, int off, int len) {
+    if (len == 0) return 0;
+    if (pos >= end) return -1;
+    int n = Math.min(len, end - pos);
+    System.arraycopy(chars, pos, cbuf, off, n);
+    pos += n;
+    return n;
+  }
+
+  public void unread(int c) throws IOException {
+    if (pos <= start) throw new IOException("Pushback buffer overflow");
+    pos--;
+  }
+
+  public void unread(char[] cbuf, int off, int len) throws IOException {
+    if (len > pos - start) throw new IOException("Pushback buffer overflow");
+    pos -= len;
+  }
+
+  public void unread(char[] cbuf) throws IOException {
+    unread(cbuf, 0, cbuf.length);
+  }
+
+  public long skip(long n) {
+    if (n <= 0) return 0;
+    int s = (int) Math.min(n, end - pos);
+    pos += s;
+    return s;
+  }
+
+  public boolean ready() { return true; }
+
+  public boolean markSupported() { return false; }
+
+  public void close() { }
+}
@@ -0,0 +1,57 @@
+package cst;
+
+import clojure.lang.APersistentVector;
+import clojure.lang.IFn;
+import clojure.lang.IPending;
+import clojure.lang.IPersistentCollection;
+import clojure.lang.IPersistentStack;
+import clojure.lang.IPersistentVector;
+import clojure.lang.LazilyPersistentVector;
+import clojure.lang.PersistentVector;
+
+/**
+ * A vector whose elements are made by a function the first time any of them is used, and kept.
+ * It is a vector in every other way, so it is equal to, and hashes the same as, the vector the
+ * function returns. Changing it changes a copy of the vector that was made.
+ */
+public final class DelayedVector extends APersistentVector implements IPending {
+  private static final long serialVersionUID = 1L;
+
+  private IFn make;
+  private volatile IPersistentVector v;
+
+  public DelayedVector(IFn make) {
+    this.make = make;
+  }
+
+  /** The vector of elements, made on the first call. */
+  public IPersistentVector realize() {
+    IPersistentVector r = v;
+    if (r == null) {
+      synchronized (this) {
+        r = v;
+        if (r == null) {
+          Object made = make.invoke();
+          r = (made instanceof IPersistentVector) ? (IPersistentVector) made : LazilyPersistentVector.create(made);
+          v = r;
+          make = null;
+        }
+      }
+    }
+    return r;
+  }
+
+  public boolean isRealized() { return v != null; }
+
+  public Object nth(int i) { return realize().nth(i); }
+
+  public int count() { return realize().count(); }
+
+  public IPersistentVector cons(Object o) { return realize().cons(o); }
+
+  public IPersistentVector assocN(int i, Object val) { return realize().assocN(i, val); }
+
+  public IPersistentStack pop() { return realize().pop(); }
+
+  public IPersistentCollection empty() { return PersistentVector.EMPTY; }
+}
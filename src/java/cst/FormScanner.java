@@ -0,0 +1,194 @@
+package cst;
+
+import java.util.Arrays;
+
+/**
+ * Finds where the top level forms in a buffer end, without reading them.
+ * This follows only the characters that decide where a form ends: delimiters, strings, regexes,
+ * comments, character literals, and the reader macros that wrap the forms after them.
+ * The ends let a large file be split into chunks that are each read on their own.
+ */
+public class FormScanner {
+
+  final char[] c;
+  final int end;
+  int pos;
+
+  private FormScanner(char[] c, int pos, int end) {
+    this.c = c;
+    this.pos = pos;
+    this.end = end;
+  }
+
+  /**
+   * Scans the unread characters of a reader, leaving the reader where it is.
+   * @return The offset where each top level form ends, as positions of the reader, or null if the
+   *         characters could not be scanned, such as an unbalanced delimiter or an unreadable form.
+   *         In that case the text should be read in the usual way, which reports the error.
+   */
+  public static int[] formEnds(CharBufferReader r) {
+    int[] ends = new FormScanner(r.chars, r.pos, r.end).scan();
+    if (ends != null) {
+      for (int i = 0; i < ends.length; i++) ends[i] -= r.start;
+    }
+    return ends;
+  }
+
+  /**
+   * Chooses where to split the forms into chunks of about the same length.
+   * @param ends The ends of the forms, from formEnds.
+   * @param from The position where the first chunk starts.
+   * @param parts The most chunks to create.
+   * @return The end of each chunk. Every chunk ends where a form ends, and the last ends with the last form.
+   */
+  public static int[] split(int[] ends, int from, int parts) {
+    if (ends.length == 0) return ends;
+    int last = ends[ends.length - 1];
+    int[] cuts = new int[parts];
+    int n = 0;
+    int i = 0;
+    for (int p = 1; p < parts; p++) {
+      int target = from + (int)((long)(last - from) * p / parts);
+      while (i < ends.length && ends[i] < target) i++;
+      if (i == ends.length) break;
+      if (n == 0 || ends[i] > cuts[n - 1]) cuts[n++] = ends[i];
+    }
+    if (n == 0 || cuts[n - 1] < last) cuts[n++] = last;
+    return Arrays.copyOf(cuts, n);
+  }
+
+  private int[] scan() {
+    int[] ends = new int[64];
+    int n = 0;
+    int depth = 0;
+    // the number of forms still needed to complete the current top level form
+    int slots = 1;
+    while (pos < end) {
+      char ch = c[pos];
+      if (LispReader.isWhitespace(ch)) {
+        pos++;
+        continue;
+      }
+      int wraps = 0;
+      boolean complete = true;
+      switch (ch) {
+        case '"':
+          if (!skipString(pos + 1)) return null;
+          break;
+        case ';':
+          skipLine(pos + 1);
+          break;
+        case ',':
+          pos++;
+          break;
+        case '\\':
+          if (pos + 1 >= end) return null;
+          skipToken(pos + 2, false);
+          break;
+        case '(': case '[': case '{':
+          depth++;
+          pos++;
+          complete = false;
+          break;
+        case ')': case ']': case '}':
+          if (depth == 0) return null;
+          depth--;
+          pos++;
+          complete = (depth == 0);
+          break;
+        case '\'': case '@': case '`':
+          pos++;
+          wraps = 1;
+          break;
+        case '~':
+          pos += (pos + 1 < end && c[pos + 1] == '@') ? 2 : 1;
+          wraps = 1;
+          break;
+        case '^':
+          pos++;
+          wraps = 2;
+          break;
+        case '#':
+          if (pos + 1 >= end) return null;
+          switch (c[pos + 1]) {
+            case '^':
+              pos += 2;
+              wraps = 2;
+              break;
+            case '\'': case '=': case '_':
+              pos += 2;
+              wraps = 1;
+              break;
+            case '"':
+              if (!skipString(pos + 2)) return null;
+              break;
+            case '(': case '{':
+              depth++;
+              pos += 2;
+              complete = false;
+              break;
+            case '!':
+              skipLine(pos + 2);
+              break;
+            case '?':
+              pos += (pos + 2 < end && c[pos + 2] == '@') ? 3 : 2;
+              wraps = 1;
+              break;
+            case '<':
+              return null;
+            default:
+              // a tagged literal is a tag symbol followed by a form
+              pos++;
+              wraps = 2;
+          }
+          break;
+        default:
+          boolean number = Character.isDigit(ch) ||
+              ((ch == '+' || ch == '-') && pos + 1 < end && Character.isDigit(c[pos + 1]));
+          skipToken(pos + 1, number);
+      }
+      if (depth > 0) continue;
+      if (wraps > 0) {
+        slots += wraps - 1;
+      } else if (complete && --slots == 0) {
+        if (n == ends.length) ends = Arrays.copyOf(ends, n * 2);
+        ends[n++] = pos;
+        slots = 1;
+      }
+    }
+    if (depth != 0 || slots != 1) return null;
+    return Arrays.copyOf(ends, n);
+  }
+
+  /** Moves past the end of a string or regex that starts at i. */
+  private boolean skipString(int i) {
+    while (i < end) {
+      char ch = c[i++];
+      if (ch == '"') {
+        pos = i;
+        return true;
+      }
+      if (ch == '\\') i++;
+    }
+    return false;
+  }
+
+  /** Moves past the end of a line, as a comment is read. */
+  private void skipLine(int i) {
+    while (i < end) {
+      char ch = c[i++];
+      if (ch == '\n' || ch == '\r') break;
+    }
+    pos = i;
+  }
+
+  /** Moves to the end of a token. Numbers end at any macro character, and other tokens at terminating macros. */
+  private void skipToken(int i, boolean number) {
+    while (i < end) {
+      char ch = c[i];
+      if (LispReader.isWhitespace(ch) || (number ? LispReader.isMacro(ch) : LispReader.isTerminatingMacro(ch))) break;
+      i++;
+    }
+    pos = Math.min(i, end);
+  }
+}
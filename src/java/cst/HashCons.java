@@ -0,0 +1,129 @@
+package cst;
+
+import clojure.lang.BigInt;
+import clojure.lang.IObj;
+import clojure.lang.IPersistentList;
+import clojure.lang.IPersistentMap;
+import clojure.lang.IPersistentVector;
+import clojure.lang.Ratio;
+import clojure.lang.Symbol;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.math.BigDecimal;
+
+/**
+ * A table of the forms that have been read, so that a form that is the same as one already read is
+ * replaced by the earlier one. Give the reader a table with the :hash-cons option, and every list,
+ * vector, element of syntax, symbol, string and number it reads is shared with the same ones read before.
+ * Forms are the same when SyntaxElement.same says so.
+ * Forms are held weakly, so the table does not keep forms alive once nothing else refers to them.
+ * A table may be shared by threads that are reading at the same time.
+ */
+public class HashCons {
+
+  static final class Entry extends WeakReference<Object> {
+    final int hash;
+    Entry next;
+
+    Entry(Object form, int hash, Entry next, ReferenceQueue<Object> queue) {
+      super(form, queue);
+      this.hash = hash;
+      this.next = next;
+    }
+  }
+
+  private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+  private Entry[] table = new Entry[1024];
+  private int size = 0;
+
+  private long lookups = 0;
+  private long hits = 0;
+
+  /**
+   * Tests if a form is immutable, and so can be shared. Keywords and booleans are already shared.
+   * Regexes are not, as they are only the same when they are the same object. Forms with metadata,
+   * such as the :line of a list, are not either, as SyntaxElement.same does not compare metadata,
+   * except for a structural hash, which is the same for forms that are the same.
+   */
+  static boolean shareable(Object o) {
+    if (o instanceof IObj) {
+      IPersistentMap meta = ((IObj) o).meta();
+      if (meta != null && !(meta.count() == 1 && meta.containsKey(StructuralHash.HASH_KEY))) return false;
+    }
+    if (o instanceof Symbol) return true;
+    return o instanceof SyntaxElement || o instanceof IPersistentList || o instanceof IPersistentVector ||
+        o instanceof String || o instanceof Long || o instanceof Double || o instanceof BigInt ||
+        o instanceof BigDecimal || o instanceof Ratio || o instanceof Character;
+  }
+
+  /**
+   * Returns the form already in the table that is the same as o, or adds o to the table.
+   * Forms that cannot be shared are returned as they are.
+   * The forms inside o should have been interned first, so they can be compared by identity.
+   */
+  public synchronized Object intern(Object o) {
+    if (!shareable(o)) return o;
+    expunge();
+    lookups++;
+    int h = o.hashCode();
+    int i = h & (table.length - 1);
+    for (Entry e = table[i]; e != null; e = e.next) {
+      if (e.hash == h) {
+        Object form = e.get();
+        if (form != null && SyntaxElement.same(form, o)) {
+          hits++;
+          return form;
+        }
+      }
+    }
+    table[i] = new Entry(o, h, table[i], queue);
+    if (++size > table.length * 3 / 4) grow();
+    return o;
+  }
+
+  /** Removes the entries for forms that have been collected. */
+  private void expunge() {
+    for (Object r; (r = queue.poll()) != null; ) {
+      Entry dead = (Entry) r;
+      int i = dead.hash & (table.length - 1);
+      Entry prev = null;
+      for (Entry e = table[i]; e != null; prev = e, e = e.next) {
+        if (e == dead) {
+          if (prev == null) table[i] = e.next;
+          else prev.next = e.next;
+          size--;
+          break;
+        }
+      }
+    }
+  }
+
+  private void grow() {
+    Entry[] old = table;
+    table = new Entry[old.length * 2];
+    int mask = table.length - 1;
+    for (Entry head: old) {
+      for (Entry e = head; e != null; ) {
+        Entry next = e.next;
+        int i = e.hash & mask;
+        e.next = table[i];
+        table[i] = e;
+        e = next;
+      }
+    }
+  }
+
+  /** The number of forms in the table, including any that have been collected but not yet removed. */
+  public synchronized int size() { return size; }
+
+  public synchronized long lookups() { return lookups; }
+
+  public synchronized long hits() { return hits; }
+
+  public synchronized double hitRate() { return lookups == 0 ? 0.0 : (double) hits / lookups; }
+
+  public String toString() {
+    return "<HashCons: " + size() + " forms, " + hits() + "/" + lookups() + " hits>";
+  }
+}
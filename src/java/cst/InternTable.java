@@ -0,0 +1,153 @@
+package cst;
+
+import clojure.lang.Keyword;
+import clojure.lang.Symbol;
+
+/**
+ * A table of the tokens seen while reading, keyed on their characters.
+ * When a token has been seen before, the reader gets the same String, Symbol or Keyword back
+ * without allocating anything. Give the reader a table with the :intern option, and share it
+ * between reads that are likely to see the same names, such as the files of an ingest.
+ * A table is not thread safe, so each thread that reads should have its own.
+ */
+public class InternTable {
+
+  static final int DEFAULT_CAPACITY = 1024;
+  static final int DEFAULT_MAX_SIZE = 1 << 20;
+
+  // longer tokens are rarely repeated, so they are not worth keeping
+  static final int MAX_TOKEN_LENGTH = 64;
+
+  private int[] hashes;
+  private String[] strings;
+  private Symbol[] symbols;
+  private Keyword[] keywords;
+  private int size = 0;
+  private final int maxSize;
+
+  private long lookups = 0;
+  private long hits = 0;
+
+  public InternTable() {
+    this(DEFAULT_MAX_SIZE);
+  }
+
+  /**
+   * @param maxSize The most tokens to keep. Once full, new tokens are still returned, but not kept.
+   */
+  public InternTable(int maxSize) {
+    this.maxSize = maxSize;
+    allocate(DEFAULT_CAPACITY);
+  }
+
+  private void allocate(int capacity) {
+    hashes = new int[capacity];
+    strings = new String[capacity];
+    symbols = new Symbol[capacity];
+    keywords = new Keyword[capacity];
+  }
+
+  static private int hash(char[] c, int off, int len) {
+    int h = 0;
+    for (int i = off; i < off + len; i++) h = 31 * h + c[i];
+    return h;
+  }
+
+  static private boolean matches(String s, char[] c, int off, int len) {
+    if (s.length() != len) return false;
+    for (int i = 0; i < len; i++) {
+      if (s.charAt(i) != c[off + i]) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Finds the slot for a token. This is either the slot holding the token, or the empty slot it belongs in.
+   */
+  private int slot(char[] c, int off, int len, int h) {
+    int mask = strings.length - 1;
+    int i = h & mask;
+    while (strings[i] != null) {
+      if (hashes[i] == h && matches(strings[i], c, off, len)) return i;
+      i = (i + 1) & mask;
+    }
+    return i;
+  }
+
+  private void grow() {
+    int[] oldHashes = hashes;
+    String[] oldStrings = strings;
+    Symbol[] oldSymbols = symbols;
+    Keyword[] oldKeywords = keywords;
+    allocate(oldStrings.length * 2);
+    int mask = strings.length - 1;
+    for (int j = 0; j < oldStrings.length; j++) {
+      if (oldStrings[j] == null) continue;
+      int i = oldHashes[j] & mask;
+      while (strings[i] != null) i = (i + 1) & mask;
+      hashes[i] = oldHashes[j];
+      strings[i] = oldStrings[j];
+      symbols[i] = oldSymbols[j];
+      keywords[i] = oldKeywords[j];
+    }
+  }
+
+  /**
+   * Looks up the slot for a token, and adds the token if it was not already present.
+   * @return The slot of the token, or -1 if the token is not kept.
+   */
+  private int lookup(char[] c, int off, int len) {
+    if (len > MAX_TOKEN_LENGTH) return -1;
+    lookups++;
+    int h = hash(c, off, len);
+    int i = slot(c, off, len, h);
+    if (strings[i] != null) {
+      hits++;
+      return i;
+    }
+    if (size >= maxSize) return -1;
+    if (2 * (size + 1) > strings.length) {
+      grow();
+      i = slot(c, off, len, h);
+    }
+    hashes[i] = h;
+    strings[i] = new String(c, off, len);
+    size++;
+    return i;
+  }
+
+  public String string(char[] c, int off, int len) {
+    int i = lookup(c, off, len);
+    return i < 0 ? new String(c, off, len) : strings[i];
+  }
+
+  /** Returns the symbol for a token, as Symbol.intern would create it. */
+  public Symbol symbol(char[] c, int off, int len) {
+    int i = lookup(c, off, len);
+    if (i < 0) return Symbol.intern(new String(c, off, len));
+    Symbol s = symbols[i];
+    if (s == null) symbols[i] = s = Symbol.intern(strings[i]);
+    return s;
+  }
+
+  /** Returns the keyword for a token, without the leading colon. */
+  public Keyword keyword(char[] c, int off, int len) {
+    int i = lookup(c, off, len);
+    if (i < 0) return Keyword.intern(Symbol.intern(new String(c, off, len)));
+    Keyword k = keywords[i];
+    if (k == null) keywords[i] = k = Keyword.intern(Symbol.intern(strings[i]));
+    return k;
+  }
+
+  public int size() { return size; }
+
+  public long lookups() { return lookups; }
+
+  public long hits() { return hits; }
+
+  public double hitRate() { return lookups == 0 ? 0.0 : (double) hits / lookups; }
+
+  public String toString() {
+    return "<InternTable: " + size + " tokens, " + hits + "/" + lookups + " hits>";
+  }
+}
@@ -166,6 +166,10 @@ public class LispReader {
   static public final Keyword OPT_EOF = Keyword.intern(null, "eof");
   static public final Keyword OPT_FEATURES = Keyword.intern(null, "features");
   static public final Keyword OPT_READ_COND = Keyword.intern(null, "read-cond");
+  static public final Keyword OPT_INTERN = Keyword.intern(null, "intern");
+  static public final Keyword OPT_POSITIONS = Keyword.intern(null, "positions");
+  static public final Keyword OPT_HASH_CONS = Keyword.intern(null, "hash-cons");
+  static public final Keyword OPT_HASH = Keyword.intern(null, "hash");
 
   // EOF special value to throw on eof
   static public final Keyword EOFTHROW = Keyword.intern(null, "eofthrow");
@@ -196,8 +200,17 @@ public class LispReader {
   }
 
   static public Object read(PushbackReader r, boolean eofIsError, Object eofValue, boolean isRecursive, Object opts) {
+    checkReadEval();
     // start with pendingForms null as reader conditional splicing is not allowed at top level
-    return read(r, eofIsError, eofValue, null, null, isRecursive, opts, null);
+    return read(r, eofIsError, eofValue, null, null, isRecursive, installPlatformFeature(opts), null);
+  }
+
+  /**
+   * Reads a form with options that already include the platform feature.
+   * This is for a ReaderSession, which checks the eval policy and installs the feature once for many reads.
+   */
+  static Object readInstalled(PushbackReader r, boolean eofIsError, Object eofValue, Object opts, Object pendingForms) {
+    return read(r, eofIsError, eofValue, null, null, false, opts, pendingForms);
   }
 
   static private Object read(PushbackReader r, boolean eofIsError, Object eofValue, boolean isRecursive, Object opts, Object pendingForms) {
@@ -212,7 +225,13 @@ public class LispReader {
     }
   }
 
-  static private Object installPlatformFeature(Object opts) {
+  static void checkReadEval() {
+    if (RT.READEVAL.deref() == UNKNOWN) {
+      throw Util.runtimeException("Reading disallowed - *read-eval* bound to :unknown");
+    }
+  }
+
+  static Object installPlatformFeature(Object opts) {
     if (opts == null) {
       return RT.mapUniqueKeys(clojure.lang.LispReader.OPT_FEATURES, PLATFORM_FEATURES);
     } else {
@@ -228,12 +247,7 @@ public class LispReader {
 
   static private Object read(PushbackReader r, boolean eofIsError, Object eofValue, Character returnOn,
                              Object returnOnValue, boolean isRecursive, Object opts, Object pendingForms) {
-    if (RT.READEVAL.deref() == UNKNOWN) {
-      throw Util.runtimeException("Reading disallowed - *read-eval* bound to :unknown");
-    }
-
-    opts = installPlatformFeature(opts);
-
+    // the eval policy and platform feature are set up by the public entry points, and not for every nested form
     try {
       for(;;) {
 
@@ -254,31 +268,20 @@ public class LispReader {
           return returnOnValue;
         }
 
-        if (Character.isDigit(ch)) {
-          Object n = readNumber(r, (char)ch);
-          return n;
-        }
+        PositionIndex.Builder positions = positions(r, opts);
+        int mark = (positions != null) ? positions.open(((CharBufferReader)r).position() - 1) : -1;
 
-        IFn macroFn = getMacro(ch);
-        if (macroFn != null) {
-          Object ret = macroFn.invoke(r, (char)ch, opts, pendingForms);
-          // no op macros return the reader
-          if (ret == r) continue;
-          return ret;
+        Object ret = readForm(r, ch, opts, pendingForms);
+        // no op macros return the reader
+        if (ret == r) {
+          if (mark >= 0) positions.cancel(mark);
+          continue;
         }
-
-        if (ch == '+' || ch == '-') {
-          int ch2 = read1(r);
-          if (Character.isDigit(ch2)) {
-            unread(r, ch2);
-            Object n = readNumber(r, (char)ch);
-            return n;
-          }
-          unread(r, ch2);
-        }
-
-        String token = readToken(r, (char) ch);
-        return interpretToken(token);
+        if (hashing(opts)) ret = StructuralHash.attach(ret);
+        HashCons shared = hashCons(opts);
+        if (shared != null) ret = shared.intern(ret);
+        if (mark >= 0) positions.close(mark, ((CharBufferReader)r).position(), ret);
+        return ret;
       }
     } catch(Exception e) {
       if (isRecursive || !(r instanceof LineNumberingPushbackReader)) {
@@ -289,23 +292,92 @@ public class LispReader {
     }
   }
 
-  static private String readToken(PushbackReader r, char initch) {
-    StringBuilder sb = new StringBuilder();
-    sb.append(initch);
+  /**
+   * A reusable buffer for the characters of a single token. Tokens are never read recursively,
+   * so one buffer per thread is enough, and reading a token does not allocate.
+   */
+  static final class TokenBuffer {
+    static private final ThreadLocal<TokenBuffer> BUFFERS = new ThreadLocal<TokenBuffer>() {
+      protected TokenBuffer initialValue() { return new TokenBuffer(); }
+    };
+
+    char[] chars = new char[64];
+    int length = 0;
+
+    static TokenBuffer get() { return BUFFERS.get(); }
+
+    void append(char c) {
+      if (length == chars.length) {
+        char[] larger = new char[chars.length * 2];
+        System.arraycopy(chars, 0, larger, 0, length);
+        chars = larger;
+      }
+      chars[length++] = c;
+    }
+
+    public String toString() { return new String(chars, 0, length); }
+  }
+
+  /**
+   * Reads the form that starts with ch, which has already been read.
+   */
+  static private Object readForm(PushbackReader r, int ch, Object opts, Object pendingForms) {
+    if (Character.isDigit(ch)) {
+      return readNumber(r, (char)ch);
+    }
+
+    IFn macroFn = getMacro(ch);
+    if (macroFn != null) {
+      return macroFn.invoke(r, (char)ch, opts, pendingForms);
+    }
+
+    if (ch == '+' || ch == '-') {
+      int ch2 = read1(r);
+      if (Character.isDigit(ch2)) {
+        unread(r, ch2);
+        return readNumber(r, (char)ch);
+      }
+      unread(r, ch2);
+    }
+
+    TokenBuffer token = readToken(r, (char) ch, TokenBuffer.get());
+    return interpretToken(token.chars, token.length, internTable(opts));
+  }
+
+  /**
+   * Returns the builder that collects the positions of the forms, when one is provided in the opts.
+   * Positions are only known when reading from a CharBufferReader.
+   */
+  static PositionIndex.Builder positions(PushbackReader r, Object opts) {
+    if (r instanceof CharBufferReader && opts instanceof IPersistentMap) {
+      Object positions = ((IPersistentMap)opts).valAt(OPT_POSITIONS);
+      if (positions instanceof PositionIndex.Builder) return (PositionIndex.Builder) positions;
+    }
+    return null;
+  }
+
+  static private TokenBuffer readToken(PushbackReader r, char initch, TokenBuffer tb) {
+    tb.length = 0;
+    tb.append(initch);
 
     for (;;) {
       int ch = read1(r);
       if (ch == -1 || isWhitespace(ch) || isTerminatingMacro(ch)) {
         unread(r, ch);
-        return sb.toString();
+        return tb;
       }
-      sb.append((char)ch);
+      tb.append((char)ch);
     }
   }
 
+  static private String readToken(PushbackReader r, char initch) {
+    return readToken(r, initch, TokenBuffer.get()).toString();
+  }
+
   static private Object readNumber(PushbackReader r, char initch) {
-    StringBuilder sb = new StringBuilder();
-    sb.append(initch);
+    TokenBuffer tb = TokenBuffer.get();
+    tb.length = 0;
+    tb.append(initch);
 
     for (;;) {
       int ch = read1(r);
@@ -313,12 +385,15 @@ public class LispReader {
         unread(r, ch);
         break;
       }
-      sb.append((char) ch);
+      tb.append((char) ch);
     }
 
-    String s = sb.toString();
-    Object n = matchNumber(s);
-    if (n == null) throw new NumberFormatException("Invalid number: " + s);
+    Object n = scanNumber(tb.chars, tb.length);
+    if (n == FALLBACK) {
+      String s = tb.toString();
+      n = matchNumber(s);
+      if (n == null) throw new NumberFormatException("Invalid number: " + s);
+    }
     return n;
   }
 
@@ -373,8 +448,192 @@ public class LispReader {
     throw Util.runtimeException("Invalid token: " + s);
   }
 
+  static HashCons hashCons(Object opts) {
+    if (opts instanceof IPersistentMap) return (HashCons) ((IPersistentMap)opts).valAt(OPT_HASH_CONS);
+    return null;
+  }
+
+  static boolean hashing(Object opts) {
+    return opts instanceof IPersistentMap && RT.booleanCast(((IPersistentMap)opts).valAt(OPT_HASH));
+  }
+
+  static InternTable internTable(Object opts) {
+    if (opts instanceof IPersistentMap) return (InternTable) ((IPersistentMap)opts).valAt(OPT_INTERN);
+    return null;
+  }
+
+  static private Object interpretToken(char[] c, int len, InternTable table) {
+    if (tokenEquals(c, len, "nil")) {
+      return null;
+    } else if (tokenEquals(c, len, "true")) {
+      return RT.T;
+    } else if (tokenEquals(c, len, "false")) {
+      return RT.F;
+    }
+
+    Object ret = scanSymbol(c, len, table);
+    if (ret != FALLBACK) return ret;
+
+    String s = new String(c, 0, len);
+    ret = matchSymbol(s);
+    if (ret != null) return ret;
+
+    throw Util.runtimeException("Invalid token: " + s);
+  }
+
+  static private boolean tokenEquals(char[] c, int len, String s) {
+    if (len != s.length()) return false;
+    for (int i = 0; i < len; i++) {
+      if (c[i] != s.charAt(i)) return false;
+    }
+    return true;
+  }
+
+  // Returned by the scanners when a token has to be interpreted by the general, regex based path
+  static final Object FALLBACK = new Object();
+
+  static private boolean isDigit(char c) { return c >= '0' && c <= '9'; }
+
+  /**
+   * Interprets a token as a symbol or keyword in one pass, without building a regex matcher.
+   * This accepts exactly what symbolPat and the checks in matchSymbol accept.
+   * Anything unusual (auto-resolved keywords, non-ASCII characters, and all invalid tokens)
+   * returns FALLBACK, so the result always agrees with matchSymbol.
+   * When an intern table is provided, names that have been seen before are not allocated again.
+   */
+  static Object scanSymbol(char[] c, int len, InternTable table) {
+    if (len == 0) return FALLBACK;
+    int lastSlash = -1;
+    for (int i = 0; i < len; i++) {
+      char ch = c[i];
+      if (ch >= 0x80) return FALLBACK;
+      if (ch == '/') lastSlash = i;
+      else if (ch == ':' && i > 0 && i + 1 < len && c[i + 1] == ':') return FALLBACK;
+    }
+    boolean isKeyword = c[0] == ':';
+    if (isKeyword && len > 1 && c[1] == ':') return FALLBACK;
 
-  private static Object matchSymbol(String s){
+    // [:]? is greedy, so the leading colon is only part of the name if the rest fails to match
+    int nsEnd = isKeyword ? symbolNsEnd(c, 1, len, lastSlash) : -2;
+    if (nsEnd == -2) nsEnd = symbolNsEnd(c, 0, len, lastSlash);
+    if (nsEnd == -2) return FALLBACK;
+
+    if (nsEnd >= 2 && c[nsEnd - 1] == '/' && c[nsEnd - 2] == ':') return FALLBACK;
+    if (c[len - 1] == ':') return FALLBACK;
+
+    if (table != null) return isKeyword ? table.keyword(c, 1, len - 1) : table.symbol(c, 0, len);
+    if (isKeyword) return Keyword.intern(Symbol.intern(new String(c, 1, len - 1)));
+    return Symbol.intern(new String(c, 0, len));
+  }
+
+  /**
+   * Matches the characters from off to len against the namespace and name groups of symbolPat.
+   * Returns the end of the namespace group (including its slash), -1 for no namespace,
+   * or -2 when the characters do not match.
+   */
+  static private int symbolNsEnd(char[] c, int off, int len, int lastSlash) {
+    int n = len - off;
+    if (n == 0) return -2;
+    char first = c[off];
+    if (lastSlash < off) return isDigit(first) ? -2 : -1;
+    if (n == 1) return -1; // just "/"
+    if (first == '/' || isDigit(first)) return -2;
+    if (lastSlash == len - 1) {
+      // the name is "/" so the namespace must also end with a slash
+      return (n >= 3 && c[len - 2] == '/') ? len - 1 : -2;
+    }
+    if (lastSlash == off || isDigit(c[lastSlash + 1])) return -2;
+    return lastSlash + 1;
+  }
+
+  /**
+   * Converts the common forms of number in one pass: decimal, octal and hex integers that fit in a long,
+   * decimals and BigDecimals. Radix integers, ratios, very long integers and invalid numbers
+   * return FALLBACK to be handled by matchNumber, so the result always agrees with it.
+   */
+  static Object scanNumber(char[] c, int len) {
+    int i = 0;
+    boolean negate = false;
+    if (len > 0 && (c[0] == '-' || c[0] == '+')) {
+      negate = c[0] == '-';
+      i = 1;
+    }
+    if (i >= len || !isDigit(c[i])) return FALLBACK;
+
+    if (c[i] == '0' && i + 1 < len && (c[i + 1] == 'x' || c[i + 1] == 'X')) {
+      int digitEnd = c[len - 1] == 'N' ? len - 1 : len;
+      int count = digitEnd - (i + 2);
+      if (count < 1 || count > 15) return FALLBACK;
+      long v = 0;
+      for (int j = i + 2; j < digitEnd; j++) {
+        int d = c[j] < 0x80 ? Character.digit(c[j], 16) : -1;
+        if (d == -1) return FALLBACK;
+        v = (v << 4) + d;
+      }
+      return integer(negate ? -v : v, digitEnd < len);
+    }
+
+    int digitStart = i;
+    while (i < len && isDigit(c[i])) i++;
+    int digitEnd = i;
+
+    if (i == len || (c[i] == 'N' && i == len - 1)) {
+      boolean big = i < len;
+      int count = digitEnd - digitStart;
+      long v = 0;
+      if (c[digitStart] == '0') {
+        if (count == 1) return big ? BigInt.ZERO : Numbers.num(0);
+        if (count > 21) return FALLBACK;
+        for (int j = digitStart + 1; j < digitEnd; j++) {
+          if (c[j] > '7') return FALLBACK;
+          v = (v << 3) + (c[j] - '0');
+        }
+      } else {
+        if (count > 18) return FALLBACK;
+        for (int j = digitStart; j < digitEnd; j++) v = v * 10 + (c[j] - '0');
+      }
+      return integer(negate ? -v : v, big);
+    }
+
+    if (c[i] == '.') {
+      i++;
+      while (i < len && isDigit(c[i])) i++;
+    }
+    if (i < len && (c[i] == 'e' || c[i] == 'E')) {
+      i++;
+      if (i < len && (c[i] == '-' || c[i] == '+')) i++;
+      int expStart = i;
+      while (i < len && isDigit(c[i])) i++;
+      if (i == expStart) return FALLBACK;
+    }
+    if (i == len) return Double.parseDouble(new String(c, 0, len));
+    if (c[i] == 'M' && i == len - 1) return new BigDecimal(c, 0, len - 1);
+    return FALLBACK;
+  }
+
+  static private Object integer(long v, boolean big) {
+    return big ? BigInt.fromLong(v) : Numbers.num(v);
+  }
+
+  /**
+   * Reads a number from a string, using the scanner for common forms and matchNumber for the rest.
+   */
+  static public Object parseNumber(String s) {
+    char[] c = s.toCharArray();
+    Object n = scanNumber(c, c.length);
+    return n == FALLBACK ? matchNumber(s) : n;
+  }
+
+  /**
+   * Reads a symbol or keyword from a string, using the scanner for common forms and matchSymbol for the rest.
+   */
+  static public Object parseSymbol(String s) {
+    char[] c = s.toCharArray();
+    Object n = scanSymbol(c, c.length, null);
+    return n == FALLBACK ? matchSymbol(s) : n;
+  }
+
+  static public Object matchSymbol(String s){
     Matcher m = symbolPat.matcher(s);
     if (m.matches()) {
       int gc = m.groupCount();
@@ -409,7 +668,7 @@ public class LispReader {
   }
 
 
-  private static Object matchNumber(String s){
+  static public Object matchNumber(String s){
     Matcher m = intPat.matcher(s);
     if (m.matches()) {
       if (m.group(2) != null) {
@@ -457,11 +716,11 @@ public class LispReader {
     return null;
   }
 
-  static private boolean isMacro(int ch){
+  static boolean isMacro(int ch){
   return (ch < macros.length && macros[ch] != null);
 }
 
-  static private boolean isTerminatingMacro(int ch){
+  static boolean isTerminatingMacro(int ch){
   return (ch != '#' && ch != '\'' && ch != '%' && isMacro(ch));
 }
 
@@ -492,7 +751,8 @@ public class LispReader {
 
   public static class StringReader extends AFn {
     public Object invoke(Object reader, Object doublequote, Object opts, Object pendingForms) {
-      StringBuilder sb = new StringBuilder();
+      TokenBuffer sb = TokenBuffer.get();
+      sb.length = 0;
       Reader r = (Reader)reader;
 
       for (int ch = read1(r); ch != '"'; ch = read1(r)) {
@@ -542,7 +802,8 @@ public class LispReader {
         }
         sb.append((char)ch);
       }
-      return sb.toString();
+      InternTable table = internTable(opts);
+      return (table != null) ? table.string(sb.chars, 0, sb.length) : sb.toString();
     }
   }
 
@@ -741,8 +1002,9 @@ public class LispReader {
       }
 
       if (form instanceof IObj && RT.meta(form) != null) {
-        //filter line and column numbers
-        IPersistentMap newMeta = ((IObj)form).meta().without(LINE_KEY).without(COLUMN_KEY);
+        //filter line and column numbers, and structural hashes
+        IPersistentMap newMeta = ((IObj)form).meta().without(LINE_KEY).without(COLUMN_KEY)
+            .without(StructuralHash.HASH_KEY);
         if (newMeta.count() > 0) return RT.list(WITH_META, ret, syntaxQuote(((IObj)form).meta()));
       }
       return ret;
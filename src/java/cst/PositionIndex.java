@@ -0,0 +1,138 @@
+package cst;
+
+import java.util.Arrays;
+
+/**
+ * The character offsets of every node read for a form.
+ * Nodes are held in the order they start, with each parent before its children, so
+ * finding the node at an offset, or the nodes in a range, is a binary search.
+ * Offsets are relative to the start of the form, so an index stays valid when the
+ * form is moved by an edit elsewhere in the file.
+ */
+public class PositionIndex {
+
+  final int[] starts;
+  final int[] ends;
+  final int[] parents;
+  final Object[] nodes;
+
+  PositionIndex(int[] starts, int[] ends, int[] parents, Object[] nodes) {
+    this.starts = starts;
+    this.ends = ends;
+    this.parents = parents;
+    this.nodes = nodes;
+  }
+
+  public int size() { return nodes.length; }
+
+  public Object node(int i) { return nodes[i]; }
+
+  public int start(int i) { return starts[i]; }
+
+  public int end(int i) { return ends[i]; }
+
+  /** The index of the parent of a node, or -1 for the form itself. */
+  public int parent(int i) { return parents[i]; }
+
+  public int depth(int i) {
+    int d = 0;
+    for (int p = parents[i]; p >= 0; p = parents[p]) d++;
+    return d;
+  }
+
+  /** Finds the first node that starts at or after an offset. */
+  public int firstFrom(int offset) {
+    int lo = 0;
+    int hi = starts.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (starts[mid] < offset) lo = mid + 1;
+      else hi = mid;
+    }
+    return lo;
+  }
+
+  /**
+   * Finds the innermost node containing an offset.
+   * @return The index of the node, or -1 if the offset is outside the form.
+   */
+  public int indexAt(int offset) {
+    int i = firstFrom(offset + 1) - 1;
+    while (i >= 0 && ends[i] <= offset) i = parents[i];
+    return i;
+  }
+
+  /**
+   * Finds the nodes that lie entirely within a range, in the order they start.
+   * @return The indexes of the nodes.
+   */
+  public int[] indexesIn(int from, int to) {
+    int[] found = new int[8];
+    int n = 0;
+    for (int i = firstFrom(from); i < starts.length && starts[i] < to; i++) {
+      if (ends[i] <= to) {
+        if (n == found.length) found = Arrays.copyOf(found, n * 2);
+        found[n++] = i;
+      }
+    }
+    return Arrays.copyOf(found, n);
+  }
+
+  /**
+   * Collects the positions of the nodes as a reader reads them.
+   * A node is opened when its first character is read, and closed once the whole node has been read,
+   * so parents are opened before their children.
+   */
+  public static class Builder {
+    private int[] starts = new int[64];
+    private int[] ends = new int[64];
+    private int[] parents = new int[64];
+    private Object[] nodes = new Object[64];
+    private int size = 0;
+    private int open = -1;
+
+    public int open(int start) {
+      if (size == starts.length) {
+        int capacity = size * 2;
+        starts = Arrays.copyOf(starts, capacity);
+        ends = Arrays.copyOf(ends, capacity);
+        parents = Arrays.copyOf(parents, capacity);
+        nodes = Arrays.copyOf(nodes, capacity);
+      }
+      starts[size] = start;
+      parents[size] = open;
+      open = size;
+      return size++;
+    }
+
+    public void close(int i, int end, Object node) {
+      ends[i] = end;
+      nodes[i] = node;
+      open = parents[i];
+    }
+
+    /** Drops a node that turned out not to be a form, along with anything opened inside it. */
+    public void cancel(int i) {
+      open = parents[i];
+      Arrays.fill(nodes, i, size, null);
+      size = i;
+    }
+
+    /**
+     * Returns an index of the nodes collected since the last call, with offsets relative to base.
+     */
+    public PositionIndex take(int base) {
+      int[] s = new int[size];
+      int[] e = new int[size];
+      for (int i = 0; i < size; i++) {
+        s[i] = starts[i] - base;
+        e[i] = ends[i] - base;
+      }
+      PositionIndex index = new PositionIndex(s, e, Arrays.copyOf(parents, size), Arrays.copyOf(nodes, size));
+      Arrays.fill(nodes, 0, size, null);
+      size = 0;
+      open = -1;
+      return index;
+    }
+  }
+}
@@ -0,0 +1,55 @@
+package cst;
+
+import clojure.lang.IPersistentMap;
+
+import java.io.PushbackReader;
+import java.util.LinkedList;
+
+/**
+ * Reads a series of forms from one reader with the same options.
+ * LispReader.read resolves the EOF handling, eval policy and platform features on every call.
+ * A session resolves them once, so reading each form only allocates the form itself.
+ * The eval policy is checked when the session is created, so *read-eval* applies as it was bound then.
+ */
+public class ReaderSession {
+
+  final PushbackReader reader;
+  final Object opts;
+  final boolean eofIsError;
+  final Object eofValue;
+
+  // reader conditionals never splice forms into the top level, so this stays empty and can be shared
+  final LinkedList pendingForms = new LinkedList();
+
+  public ReaderSession(PushbackReader reader, Object opts) {
+    LispReader.checkReadEval();
+    boolean eofIsError = true;
+    Object eofValue = null;
+    if (opts instanceof IPersistentMap) {
+      Object eof = ((IPersistentMap)opts).valAt(LispReader.OPT_EOF, LispReader.EOFTHROW);
+      if (!LispReader.EOFTHROW.equals(eof)) {
+        eofIsError = false;
+        eofValue = eof;
+      }
+    }
+    this.reader = reader;
+    this.opts = LispReader.installPlatformFeature(opts);
+    this.eofIsError = eofIsError;
+    this.eofValue = eofValue;
+  }
+
+  /**
+   * Reads the next form.
+   * @return The form, or the :eof value from the options once the reader is exhausted.
+   */
+  public Object read() {
+    return LispReader.readInstalled(reader, eofIsError, eofValue, opts, pendingForms);
+  }
+
+  public PushbackReader reader() { return reader; }
+
+  /** The options used for each read, including the platform features. */
+  public Object opts() { return opts; }
+
+  public Object eofValue() { return eofValue; }
+}
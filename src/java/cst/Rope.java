@@ -0,0 +1,173 @@
+package cst;
+
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An immutable sequence of characters kept as a tree of pieces of other character sequences.
+ * Replacing a range makes a new rope that shares every piece outside the range with the old one,
+ * so an edit costs time in the depth of the tree and the length of the replacement, rather than
+ * in the length of the text. The sequences that pieces refer to must not change.
+ */
+public final class Rope implements CharSequence {
+
+  // pieces that together are no longer than this are copied into one when they are joined
+  static final int SHORT = 64;
+  // a rope that is deeper than this after an edit is rebuilt as a balanced tree
+  static final int MAX_DEPTH = 48;
+
+  public static final Rope EMPTY = new Rope("", 0, 0);
+
+  // a leaf holds the characters from start to start + length of text, a branch holds left and right
+  private final CharSequence text;
+  private final int start;
+  private final Rope left;
+  private final Rope right;
+  private final int length;
+  private final int depth;
+
+  private Rope(CharSequence text, int start, int length) {
+    this.text = text;
+    this.start = start;
+    this.length = length;
+    this.left = null;
+    this.right = null;
+    this.depth = 0;
+  }
+
+  private Rope(Rope left, Rope right) {
+    this.text = null;
+    this.start = 0;
+    this.left = left;
+    this.right = right;
+    this.length = left.length + right.length;
+    this.depth = 1 + Math.max(left.depth, right.depth);
+  }
+
+  /** A rope of the characters of s, which is used in place. */
+  public static Rope of(CharSequence s) {
+    if (s instanceof Rope) return (Rope) s;
+    return s.length() == 0 ? EMPTY : new Rope(s, 0, s.length());
+  }
+
+  private boolean isLeaf() { return text != null; }
+
+  public int length() { return length; }
+
+  public char charAt(int index) {
+    if (index < 0 || index >= length) throw new IndexOutOfBoundsException(String.valueOf(index));
+    Rope r = this;
+    while (!r.isLeaf()) {
+      if (index < r.left.length) {
+        r = r.left;
+      } else {
+        index -= r.left.length;
+        r = r.right;
+      }
+    }
+    return r.text.charAt(r.start + index);
+  }
+
+  /** The depth of the tree of pieces. */
+  public int depth() { return depth; }
+
+  public Rope subSequence(int from, int to) {
+    if (from < 0 || to > length || from > to) {
+      throw new IndexOutOfBoundsException("Invalid range [" + from + ", " + to + ") for length " + length);
+    }
+    return slice(from, to);
+  }
+
+  private Rope slice(int from, int to) {
+    if (from == 0 && to == length) return this;
+    if (from == to) return EMPTY;
+    if (isLeaf()) return new Rope(text, start + from, to - from);
+    int split = left.length;
+    if (to <= split) return left.slice(from, to);
+    if (from >= split) return right.slice(from - split, to - split);
+    return join(left.slice(from, split), right.slice(0, to - split));
+  }
+
+  /**
+   * Returns a rope with the characters in [from, to) replaced by the replacement.
+   */
+  public Rope replace(int from, int to, CharSequence replacement) {
+    Rope r = join(join(subSequence(0, from), of(replacement)), slice(to, length));
+    return r.depth > MAX_DEPTH ? r.balance() : r;
+  }
+
+  private static Rope join(Rope a, Rope b) {
+    if (a.length == 0) return b;
+    if (b.length == 0) return a;
+    if (a.length + b.length <= SHORT) return flat(a, b);
+    // typing one character after another leaves short pieces next to each other, so those are joined
+    if (!a.isLeaf() && a.right.length + b.length <= SHORT) return new Rope(a.left, flat(a.right, b));
+    if (!b.isLeaf() && a.length + b.left.length <= SHORT) return new Rope(flat(a, b.left), b.right);
+    return new Rope(a, b);
+  }
+
+  private static Rope flat(Rope a, Rope b) {
+    char[] chars = new char[a.length + b.length];
+    a.getChars(0, a.length, chars, 0);
+    b.getChars(0, b.length, chars, a.length);
+    return new Rope(new String(chars), 0, chars.length);
+  }
+
+  private Rope balance() {
+    List<Rope> leaves = new ArrayList<Rope>();
+    collectLeaves(leaves);
+    return build(leaves, 0, leaves.size());
+  }
+
+  private void collectLeaves(List<Rope> leaves) {
+    if (isLeaf()) {
+      leaves.add(this);
+    } else {
+      left.collectLeaves(leaves);
+      right.collectLeaves(leaves);
+    }
+  }
+
+  private static Rope build(List<Rope> leaves, int from, int to) {
+    if (to - from == 1) return leaves.get(from);
+    int mid = (from + to) >>> 1;
+    return new Rope(build(leaves, from, mid), build(leaves, mid, to));
+  }
+
+  /**
+   * Copies the characters in [from, to) into an array, as String.getChars does.
+   */
+  public void getChars(int from, int to, char[] dst, int dstBegin) {
+    if (from < 0 || to > length || from > to) {
+      throw new IndexOutOfBoundsException("Invalid range [" + from + ", " + to + ") for length " + length);
+    }
+    copy(from, to, dst, dstBegin);
+  }
+
+  private void copy(int from, int to, char[] dst, int dstBegin) {
+    if (from == to) return;
+    if (isLeaf()) {
+      int s = start + from, e = start + to;
+      if (text instanceof String) {
+        ((String) text).getChars(s, e, dst, dstBegin);
+      } else if (text instanceof CharBuffer) {
+        CharBuffer b = ((CharBuffer) text).duplicate();
+        b.position(b.position() + s);
+        b.get(dst, dstBegin, e - s);
+      } else {
+        for (int i = s; i < e; i++) dst[dstBegin++] = text.charAt(i);
+      }
+      return;
+    }
+    int split = left.length;
+    if (from < split) left.copy(from, Math.min(to, split), dst, dstBegin);
+    if (to > split) right.copy(Math.max(from - split, 0), to - split, dst, dstBegin + Math.max(split - from, 0));
+  }
+
+  public String toString() {
+    char[] chars = new char[length];
+    copy(0, length, chars, 0);
+    return new String(chars);
+  }
+}
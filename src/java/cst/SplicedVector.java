@@ -0,0 +1,187 @@
+package cst;
+
+import clojure.lang.APersistentVector;
+import clojure.lang.IPersistentCollection;
+import clojure.lang.IPersistentStack;
+import clojure.lang.IPersistentVector;
+import clojure.lang.LazilyPersistentVector;
+import clojure.lang.PersistentVector;
+import clojure.lang.RT;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An immutable vector kept as a tree of ranges of other vectors. Replacing a range makes a new
+ * vector that shares every range outside it with the old one, so it costs time in the depth of the
+ * tree and the length of the replacement, rather than in the length of the vector.
+ * The elements after a replacement can be moved by an offset, for vectors of [start end] spans.
+ * The offset is kept on the nodes of the tree and added as elements are read, so moving the
+ * spans after an edit does not visit them.
+ */
+public final class SplicedVector extends APersistentVector {
+  private static final long serialVersionUID = 1L;
+
+  // ranges that together are no longer than this are copied into one when they are joined
+  static final int SHORT = 32;
+  // a vector that is deeper than this after a replacement is rebuilt as a balanced tree
+  static final int MAX_DEPTH = 48;
+
+  static final SplicedVector EMPTY = new SplicedVector(PersistentVector.EMPTY, 0, 0, 0);
+
+  // a leaf holds the elements from start to start + count of v, a branch holds left and right
+  private final IPersistentVector v;
+  private final int start;
+  private final SplicedVector left;
+  private final SplicedVector right;
+  private final int count;
+  private final int depth;
+  // added to the start and end of every span below this node
+  private final long shift;
+
+  private SplicedVector(IPersistentVector v, int start, int count, long shift) {
+    this.v = v;
+    this.start = start;
+    this.count = count;
+    this.shift = shift;
+    this.left = null;
+    this.right = null;
+    this.depth = 0;
+  }
+
+  private SplicedVector(SplicedVector left, SplicedVector right, long shift) {
+    this.v = null;
+    this.start = 0;
+    this.left = left;
+    this.right = right;
+    this.count = left.count + right.count;
+    this.depth = 1 + Math.max(left.depth, right.depth);
+    this.shift = shift;
+  }
+
+  /** A spliced vector of the elements of v, which is used in place. */
+  public static SplicedVector of(IPersistentVector v) {
+    if (v instanceof SplicedVector) return (SplicedVector) v;
+    return v.count() == 0 ? EMPTY : new SplicedVector(v, 0, v.count(), 0);
+  }
+
+  private boolean isLeaf() { return v != null; }
+
+  /** The depth of the tree of ranges. */
+  public int depth() { return depth; }
+
+  public int count() { return count; }
+
+  public Object nth(int i) {
+    if (i < 0 || i >= count) throw new IndexOutOfBoundsException(String.valueOf(i));
+    SplicedVector n = this;
+    long s = 0;
+    while (!n.isLeaf()) {
+      s += n.shift;
+      if (i < n.left.count) {
+        n = n.left;
+      } else {
+        i -= n.left.count;
+        n = n.right;
+      }
+    }
+    return moved(n.v.nth(n.start + i), s + n.shift);
+  }
+
+  private static Object moved(Object span, long shift) {
+    if (shift == 0) return span;
+    IPersistentVector s = (IPersistentVector) span;
+    return RT.vector(((Number) s.nth(0)).longValue() + shift, ((Number) s.nth(1)).longValue() + shift);
+  }
+
+  private SplicedVector shifted(long by) {
+    if (by == 0 || count == 0) return this;
+    return isLeaf() ? new SplicedVector(v, start, count, shift + by) : new SplicedVector(left, right, shift + by);
+  }
+
+  private SplicedVector slice(int from, int to) {
+    if (from == 0 && to == count) return this;
+    if (from == to) return EMPTY;
+    if (isLeaf()) return new SplicedVector(v, start + from, to - from, shift);
+    int split = left.count;
+    SplicedVector r;
+    if (to <= split) {
+      r = left.slice(from, to);
+    } else if (from >= split) {
+      r = right.slice(from - split, to - split);
+    } else {
+      r = join(left.slice(from, split), right.slice(0, to - split));
+    }
+    return r.shifted(shift);
+  }
+
+  /**
+   * Returns a vector with the elements in [from, to) replaced by the elements of replacement,
+   * and the spans after them moved by shift.
+   */
+  public SplicedVector splice(int from, int to, IPersistentVector replacement, long shift) {
+    if (from < 0 || to > count || from > to) {
+      throw new IndexOutOfBoundsException("Invalid range [" + from + ", " + to + ") for count " + count);
+    }
+    SplicedVector r = join(join(slice(0, from), of(replacement)), slice(to, count).shifted(shift));
+    return r.depth > MAX_DEPTH ? r.balance() : r;
+  }
+
+  private static SplicedVector join(SplicedVector a, SplicedVector b) {
+    if (a.count == 0) return b;
+    if (b.count == 0) return a;
+    if (a.count + b.count <= SHORT) return flat(a, b);
+    // edits near each other leave short ranges next to each other, so those are joined
+    if (!a.isLeaf() && a.right.count + b.count <= SHORT) {
+      return new SplicedVector(a.left.shifted(a.shift), flat(a.right.shifted(a.shift), b), 0);
+    }
+    if (!b.isLeaf() && a.count + b.left.count <= SHORT) {
+      return new SplicedVector(flat(a, b.left.shifted(b.shift)), b.right.shifted(b.shift), 0);
+    }
+    return new SplicedVector(a, b, 0);
+  }
+
+  private static SplicedVector flat(SplicedVector a, SplicedVector b) {
+    Object[] elements = new Object[a.count + b.count];
+    for (int i = 0; i < a.count; i++) elements[i] = a.nth(i);
+    for (int i = 0; i < b.count; i++) elements[a.count + i] = b.nth(i);
+    return new SplicedVector(LazilyPersistentVector.createOwning(elements), 0, elements.length, 0);
+  }
+
+  private SplicedVector balance() {
+    List<SplicedVector> leaves = new ArrayList<SplicedVector>();
+    collectLeaves(leaves, 0);
+    return build(leaves, 0, leaves.size());
+  }
+
+  private void collectLeaves(List<SplicedVector> leaves, long by) {
+    if (isLeaf()) {
+      leaves.add(shifted(by));
+    } else {
+      left.collectLeaves(leaves, by + shift);
+      right.collectLeaves(leaves, by + shift);
+    }
+  }
+
+  private static SplicedVector build(List<SplicedVector> leaves, int from, int to) {
+    if (to - from == 1) return leaves.get(from);
+    int mid = (from + to) >>> 1;
+    return new SplicedVector(build(leaves, from, mid), build(leaves, mid, to), 0);
+  }
+
+  public IPersistentVector cons(Object o) {
+    return splice(count, count, RT.vector(o), 0);
+  }
+
+  public IPersistentVector assocN(int i, Object val) {
+    if (i == count) return cons(val);
+    if (i < 0 || i > count) throw new IndexOutOfBoundsException(String.valueOf(i));
+    return splice(i, i + 1, RT.vector(val), 0);
+  }
+
+  public IPersistentStack pop() {
+    if (count == 0) throw new IllegalStateException("Can't pop empty vector");
+    return slice(0, count - 1);
+  }
+
+  public IPersistentCollection empty() { return PersistentVector.EMPTY; }
+}
@@ -0,0 +1,178 @@
+package cst;
+
+import clojure.lang.BigInt;
+import clojure.lang.IObj;
+import clojure.lang.IPersistentList;
+import clojure.lang.IPersistentMap;
+import clojure.lang.IPersistentSet;
+import clojure.lang.IPersistentVector;
+import clojure.lang.ISeq;
+import clojure.lang.Keyword;
+import clojure.lang.PersistentArrayMap;
+import clojure.lang.RT;
+import clojure.lang.Ratio;
+import clojure.lang.Symbol;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.regex.Pattern;
+
+/**
+ * A 64 bit hash of the structure of a form, built from the hashes of the forms inside it, so that
+ * forms with the same hash can be taken to be the same without looking inside them.
+ * Forms that are the same, by SyntaxElement.same, have the same hash.
+ *
+ * The hash depends only on the text of the form, and not on Java hash codes or the order of
+ * enum constants, so it is the same in every JVM and can be stored.
+ *
+ * The hash of an element of syntax is kept in the element. The hash of a list or vector is kept
+ * in its metadata, under :cst/hash, when it was read with the :hash option. Other forms have their
+ * hash worked out each time it is asked for.
+ */
+public class StructuralHash {
+
+  public static final Keyword HASH_KEY = Keyword.intern("cst", "hash");
+
+  // tags that start the hash of each kind of form
+  static final long NIL = 0x6E696CL;
+  static final long TRUE = 0x74727565L;
+  static final long FALSE = 0x66616C7365L;
+  static final long LONG = 1;
+  static final long DOUBLE = 2;
+  static final long STRING = 3;
+  static final long SYMBOL = 4;
+  static final long KEYWORD = 5;
+  static final long CHAR = 6;
+  static final long BIGINT = 7;
+  static final long BIGDEC = 8;
+  static final long RATIO = 9;
+  static final long PATTERN = 10;
+  static final long SEQ = 11;
+  static final long VECTOR = 12;
+  static final long MAP = 13;
+  static final long SET = 14;
+  static final long ELEMENT = 15;
+  static final long OTHER = 16;
+
+  static final long K = 0x9E3779B97F4A7C15L;
+
+  /** The finalizer of MurmurHash3, which spreads every bit of the input over the output. */
+  static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xFF51AFD7ED558CCDL;
+    h ^= h >>> 33;
+    h *= 0xC4CEB93FE53F4A63L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /** Adds a value to a hash, so that the order values are added in changes the result. */
+  static long add(long h, long v) {
+    return Long.rotateLeft(h ^ mix(v), 27) * K + 0x52DCE729L;
+  }
+
+  static long chars(long h, String s) {
+    if (s == null) return add(h, -1);
+    long acc = s.length();
+    int i = 0;
+    for (; i + 3 < s.length(); i += 4) {
+      acc = add(acc, ((long) s.charAt(i) << 48) | ((long) s.charAt(i + 1) << 32) |
+                     ((long) s.charAt(i + 2) << 16) | s.charAt(i + 3));
+    }
+    for (; i < s.length(); i++) acc = add(acc, s.charAt(i));
+    return add(h, acc);
+  }
+
+  static long finish(long h, long count) {
+    return mix(h ^ count);
+  }
+
+  /** Returns the hash of a form, using the hashes already kept in it when there are any. */
+  public static long of(Object o) {
+    if (o instanceof SyntaxElement) return ((SyntaxElement) o).structuralHash();
+    if ((o instanceof IPersistentList || o instanceof IPersistentVector) && o instanceof IObj) {
+      IPersistentMap meta = ((IObj) o).meta();
+      if (meta != null) {
+        Object h = meta.valAt(HASH_KEY);
+        if (h != null) return (Long) h;
+      }
+    }
+    return compute(o);
+  }
+
+  /** Works out the hash of a form from the hashes of the forms inside it. */
+  static long compute(Object o) {
+    if (o == null) return mix(NIL);
+    if (o instanceof Boolean) return mix((Boolean) o ? TRUE : FALSE);
+    if (o instanceof Long) return finish(add(LONG, (Long) o), 1);
+    if (o instanceof Double) return finish(add(DOUBLE, Double.doubleToLongBits((Double) o)), 1);
+    if (o instanceof String) return finish(chars(STRING, (String) o), 1);
+    if (o instanceof Symbol) {
+      Symbol s = (Symbol) o;
+      return finish(chars(chars(SYMBOL, s.getNamespace()), s.getName()), 2);
+    }
+    if (o instanceof Keyword) {
+      Keyword k = (Keyword) o;
+      return finish(chars(chars(KEYWORD, k.getNamespace()), k.getName()), 2);
+    }
+    if (o instanceof Character) return finish(add(CHAR, (Character) o), 1);
+    if (o instanceof BigInt) return finish(chars(BIGINT, o.toString()), 1);
+    if (o instanceof BigDecimal) return finish(chars(BIGDEC, o.toString()), 1);
+    if (o instanceof Ratio) return finish(chars(RATIO, o.toString()), 1);
+    if (o instanceof Pattern) return finish(chars(PATTERN, ((Pattern) o).pattern()), 1);
+    if (o instanceof SyntaxElement) {
+      SyntaxElement e = (SyntaxElement) o;
+      Object data = e.data;
+      // a file is hashed by its forms, and not by where it was read from
+      if (e.type == SyntaxElement.Type.FILE && data instanceof IPersistentMap) {
+        data = ((IPersistentMap) data).valAt(SyntaxElement.DATA_KEY);
+      }
+      return finish(add(chars(ELEMENT, e.type.name()), of(data)), 2);
+    }
+    if (o instanceof Map) {
+      // maps are only used for the parts of an element, and are hashed without regard to order
+      long sum = 0;
+      for (Object x: ((Map) o).entrySet()) {
+        Map.Entry entry = (Map.Entry) x;
+        sum += add(of(entry.getKey()), of(entry.getValue()));
+      }
+      return finish(add(MAP, sum), ((Map) o).size());
+    }
+    if (o instanceof IPersistentSet) {
+      long sum = 0;
+      for (Object x: (Iterable) o) sum += of(x);
+      return finish(add(SET, sum), ((IPersistentSet) o).count());
+    }
+    if (o instanceof List || o instanceof ISeq) {
+      long h = (o instanceof IPersistentVector) ? VECTOR : SEQ;
+      if (o instanceof List && o instanceof RandomAccess) {
+        List l = (List) o;
+        for (int i = 0; i < l.size(); i++) h = add(h, of(l.get(i)));
+        return finish(h, l.size());
+      }
+      long n = 0;
+      for (ISeq s = RT.seq(o); s != null; s = s.next(), n++) h = add(h, of(s.first()));
+      return finish(h, n);
+    }
+    return finish(chars(OTHER, RT.printString(o)), 1);
+  }
+
+  /**
+   * Works out the hash of a form that has just been read, and keeps it in the form. The forms
+   * inside it should already have their hashes, so this only looks at its immediate children.
+   * Returns the form, which is a copy with new metadata when it is a list or vector.
+   */
+  public static Object attach(Object o) {
+    if (o instanceof SyntaxElement) {
+      ((SyntaxElement) o).structuralHash();
+    } else if ((o instanceof IPersistentList || o instanceof IPersistentVector) && o instanceof IObj) {
+      IObj obj = (IObj) o;
+      IPersistentMap meta = obj.meta();
+      Object h = compute(o);
+      return obj.withMeta(meta == null ? PersistentArrayMap.EMPTY.assoc(HASH_KEY, h) : meta.assoc(HASH_KEY, h));
+    }
+    return o;
+  }
+}
@@ -4,8 +4,11 @@ import clojure.lang.*;
 
 import java.io.IOException;
 import java.io.StringWriter;
+import java.io.Writer;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Indicates an element of syntax, without an exact corollory in the AST structure.
@@ -20,127 +23,169 @@ public class SyntaxElement {
   final static Keyword OBJECT_KEY = Keyword.intern(null, "object");
   final static Keyword SPLICE_KEY = Keyword.intern(null, "splice");
   final static Keyword FORM_KEY = Keyword.intern(null, "form");
+  final static Keyword DATA_KEY = Keyword.intern(null, "data");
+  final static Keyword SOURCE_KEY = Keyword.intern(null, "source");
+  final static Keyword SPANS_KEY = Keyword.intern(null, "spans");
+  final static Keyword INDEXES_KEY = Keyword.intern(null, "indexes");
 
   static final SyntaxElement COMMA_SYNTAX = new SyntaxElement(SyntaxElement.Type.COMMA);
 
-  static private String join(String separator, Collection c) {
-    StringBuffer sb = new StringBuffer();
+  static private void join(String separator, Collection c, Writer w) throws IOException {
     boolean first = true;
     for (Object o: c) {
       if (first) first = false;
-      else if (o != COMMA_SYNTAX) sb.append(separator);
-      sb.append(emit(o));
+      else if (o != COMMA_SYNTAX) w.write(separator);
+      emit(o, w);
     }
-    return sb.toString();
   }
-  static private String spaceJoin(Collection c) {
-    return join(" ", c);
+  /**
+   * Joins the elements of a reducible that is not a collection, writing each as it is reached.
+   * The accumulator is true until the first element has been written.
+   */
+  static private void join(final String separator, IReduceInit r, final Writer w) {
+    r.reduce(new AFn() {
+      public Object invoke(Object first, Object o) {
+        try {
+          if (first != Boolean.TRUE && o != COMMA_SYNTAX) w.write(separator);
+          emit(o, w);
+        } catch (IOException e) {
+          throw Util.sneakyThrow(e);
+        }
+        return Boolean.FALSE;
+      }
+    }, Boolean.TRUE);
+  }
+
+  static private void spaceJoin(Collection c, Writer w) throws IOException {
+    join(" ", c, w);
+  }
+
+  static private void wrap(String prefix, Object e, Writer w) throws IOException {
+    w.write(prefix);
+    emit(e, w);
+  }
+
+  static private void delimit(String open, Object e, String close, Writer w) throws IOException {
+    w.write(open);
+    spaceJoin((List) e, w);
+    w.write(close);
   }
 
   public enum Type {
     SET {
-      public String str(Object e) { return "#{" + spaceJoin((List) e) + "}"; }
+      public void write(Object e, Writer w) throws IOException { delimit("#{", e, "}", w); }
     },
     COMMA {
-      public String str(Object e) { return ","; }
+      public void write(Object e, Writer w) throws IOException { w.write(','); }
       public boolean skippable() { return true; }
     },
     COMMENT {
-      public String str(Object e) { return ";" + e + "\n"; }
+      public void write(Object e, Writer w) throws IOException {
+        w.write(';');
+        w.write(String.valueOf(e));
+        w.write('\n');
+      }
       public boolean skippable() { return true; }
     },
     QUOTE{
-      public String str(Object e) { return "'" + emit(e); }
+      public void write(Object e, Writer w) throws IOException { wrap("'", e, w); }
     },
     DEREF {
-      public String str(Object e) { return "@" + emit(e); }
+      public void write(Object e, Writer w) throws IOException { wrap("@", e, w); }
     },
     META{
-      public String str(Object e) {
+      public void write(Object e, Writer w) throws IOException {
         Object form = ((IPersistentMap)e).valAt(OBJECT_KEY);
         IPersistentMap meta = (IPersistentMap)((IPersistentMap)e).valAt(META_KEY);
 
-        Object tag = meta.valAt(TAG_KEY);
-        if (tag != null) return "^" + emit(tag) + " " + emit(form);
-
-        Keyword keyword = (Keyword)meta.valAt(KEYWORD_KEY);
-        if (keyword != null) return "^" + keyword + " " + emit(form);
+        Object m = meta.valAt(TAG_KEY);
+        if (m == null) m = meta.valAt(KEYWORD_KEY);
+        if (m == null) m = meta.valAt(MAP_KEY);
+        if (m == null) throw new IllegalStateException("Structure for Meta is unknown: " + e);
 
-        IPersistentMap map = (IPersistentMap)meta.valAt(MAP_KEY);
-        if (map != null) return "^" + emit(map) + " " + emit(form);
-
-        throw new IllegalStateException("Structure for Meta is unknown: " + e); }
+        wrap("^", m, w);
+        w.write(' ');
+        emit(form, w);
+      }
     },
     SYNTAX_QUOTE {
-      public String str(Object e) { return "`" + emit(e); }
+      public void write(Object e, Writer w) throws IOException { wrap("`", e, w); }
     },
     UNQUOTE {
-      public String str(Object e) { return "~" + emit(e); }
+      public void write(Object e, Writer w) throws IOException { wrap("~", e, w); }
     },
     UNQUOTE_SPLICING {
-      public String str(Object e) { return "~@" + emit(e); }
+      public void write(Object e, Writer w) throws IOException { wrap("~@", e, w); }
     },
     CHAR {
-      public String str(Object e) {
-        String d = (String) e;
-        if (d.length() == 1) {
-          switch (d.charAt(0)) {
-            case '\n': return "\\newline";
-            case ' ': return "\\space";
-            case '\t': return "\\tab";
-            case '\b': return "\\backspace";
-            case '\f': return "\\formfeed";
-            case '\r': return "\\return";
-            default: return d;
-          }
-        } else {
-          return (d.length() == 3) ? "o" + d : "u" + d;
-        }
+      public void write(Object e, Writer w) throws IOException {
+        // the reader holds a Character, but older data may hold a single character String
+        char c = (e instanceof Character) ? (Character) e : ((String) e).charAt(0);
+        AtomWriter.writeChar(c, w);
       }
     },
     ARG{
-      public String str(Object e) {
-        if (null == e) return "%";
-        else return emit(e);
+      public void write(Object e, Writer w) throws IOException {
+        if (null == e) w.write('%');
+        else emit(e, w);
       }
     },
     EVAL {
-      public String str(Object e) { return "#=" + emit(e);}
+      public void write(Object e, Writer w) throws IOException { wrap("#=", e, w); }
     },
     VAR {
-      public String str(Object e) { return "#'" + emit(e); }
+      public void write(Object e, Writer w) throws IOException { wrap("#'", e, w); }
     },
     FN {
-      public String str(Object e) { return "#" + emit(e); }
+      public void write(Object e, Writer w) throws IOException { wrap("#", e, w); }
     },
     M_COMMENT {
-      public String str(Object e) { return "#!" + emit(e); }
+      public void write(Object e, Writer w) throws IOException { wrap("#!", e, w); }
       public boolean skippable() { return true; }
     },
     DISCARD {
-      public String str(Object e) { return "#_" + emit(e); }
+      public void write(Object e, Writer w) throws IOException { wrap("#_", e, w); }
       public boolean skippable() { return true; }
     },
     CONDITIONAL {
-      public String str(Object e) {
+      public void write(Object e, Writer w) throws IOException {
         Object form = ((IPersistentMap)e).valAt(FORM_KEY);
         Boolean splicing = (Boolean)((IPersistentMap)e).valAt(SPLICE_KEY);
-        return "#?" + (splicing ? "@" : "") + emit(form);
+        wrap(splicing ? "#?@" : "#?", form, w);
       }
     },
     VECTOR {
-      public String str(Object e) { return "[" + spaceJoin((List) e) + "]"; }
+      public void write(Object e, Writer w) throws IOException { delimit("[", e, "]", w); }
     },
     LIST {
-      public String str(Object e) { return "(" + spaceJoin((List) e) + ")"; }
+      public void write(Object e, Writer w) throws IOException { delimit("(", e, ")", w); }
     },
     MAP {
-      public String str(Object e) { return "{" + spaceJoin((List) e) + "}"; }
+      public void write(Object e, Writer w) throws IOException { delimit("{", e, "}", w); }
     },
     FILE {
-      public String str(Object e) { return join("\n", (Collection)e); }
+      public void write(Object e, Writer w) throws IOException {
+        // files from the reader hold their forms in a map, along with the location
+        if (e instanceof IPersistentMap) e = ((IPersistentMap)e).valAt(DATA_KEY);
+        // the forms of a lazily read file are a reducible, which reads each form as it is reached
+        if (!(e instanceof Collection) && e instanceof IReduceInit) join("\n", (IReduceInit)e, w);
+        else join("\n", (Collection)e, w);
+      }
     };
-    public abstract String str(Object e);
+
+    /** Writes the text of an element of this type, with the given data. */
+    public abstract void write(Object e, Writer w) throws IOException;
+
+    public String str(Object e) {
+      StringWriter w = new StringWriter();
+      try {
+        write(e, w);
+      } catch (IOException ex) {
+        throw new ExceptionInfo("Error in string output", RT.map(), ex);
+      }
+      return w.toString();
+    }
+
     public boolean skippable() { return false; };
     public final Keyword id;
     Type() { id = Keyword.intern("cst", name().toLowerCase()); }
@@ -159,8 +204,94 @@ public class SyntaxElement {
     this.data = data;
   }
 
+  // cached by hashCode, as the data is never changed once the element is built
+  private int hash;
+  // cached by structuralHash, with 0 for not yet worked out
+  private volatile long structuralHash;
+
   public Keyword id() { return type.id; }
 
+  /**
+   * Compares two elements of syntax by their structure. Unlike Clojure equality, a list is never the
+   * same as a vector, and numbers are only the same when they have the same class, so elements that
+   * are the same always emit the same text. Regexes are only the same when they are the same object.
+   * Vectors of different classes may be the same, as may lists and seqs, such as a lazy seq and a list.
+   */
+  public static boolean same(Object a, Object b) {
+    if (a == b) return true;
+    if (a == null || b == null) return false;
+    if (a.getClass() != b.getClass() && !sameKind(a, b)) return false;
+    if (a instanceof SyntaxElement) return a.equals(b);
+    if (a instanceof Map) {
+      Map ma = (Map) a;
+      Map mb = (Map) b;
+      if (ma.size() != mb.size()) return false;
+      for (Object o: ma.entrySet()) {
+        Map.Entry e = (Map.Entry) o;
+        if (!mb.containsKey(e.getKey()) || !same(e.getValue(), mb.get(e.getKey()))) return false;
+      }
+      return true;
+    }
+    if (a instanceof List) {
+      List la = (List) a;
+      List lb = (List) b;
+      if (la.size() != lb.size()) return false;
+      Iterator ia = la.iterator();
+      Iterator ib = lb.iterator();
+      while (ia.hasNext()) {
+        if (!same(ia.next(), ib.next())) return false;
+      }
+      return true;
+    }
+    return a.equals(b);
+  }
+
+  /** Whether two objects of different classes are both vectors, or are both lists or seqs. */
+  private static boolean sameKind(Object a, Object b) {
+    if (a instanceof IPersistentVector) return b instanceof IPersistentVector;
+    return a instanceof Sequential && b instanceof Sequential && !(b instanceof IPersistentVector);
+  }
+
+  /**
+   * The data that the element is compared and hashed by. A file leaves out its source text and
+   * the positions of its forms, which describe where it was read from rather than what it holds.
+   */
+  private Object content() {
+    if (type == Type.FILE && data instanceof IPersistentMap) {
+      return ((IPersistentMap) data).without(SOURCE_KEY).without(SPANS_KEY).without(INDEXES_KEY);
+    }
+    return data;
+  }
+
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (!(o instanceof SyntaxElement)) return false;
+    SyntaxElement e = (SyntaxElement) o;
+    return type == e.type && (hash == 0 || e.hash == 0 || hash == e.hash) && same(content(), e.content());
+  }
+
+  public int hashCode() {
+    int h = hash;
+    if (h == 0) {
+      Object content = content();
+      h = 31 * type.name().hashCode() + (content == null ? 0 : content.hashCode());
+      if (h == 0) h = 1;
+      hash = h;
+    }
+    return h;
+  }
+
+  /** The stable hash of the structure of this element. See StructuralHash. */
+  public long structuralHash() {
+    long h = structuralHash;
+    if (h == 0) {
+      h = StructuralHash.compute(this);
+      if (h == 0) h = 1;
+      structuralHash = h;
+    }
+    return h;
+  }
+
   public boolean skippable() {
     return type.skippable();
   }
@@ -169,20 +300,57 @@ public class SyntaxElement {
     return type.str(data);
   }
 
+  /** Writes the text of this element to a writer, without building any intermediate strings. */
+  public void emit(Writer w) throws IOException {
+    type.write(data, w);
+  }
+
+  public void emit(Appendable a) throws IOException {
+    type.write(data, writer(a));
+  }
+
   public static String emit(Object o) {
-    if (o instanceof IPersistentVector) return Type.VECTOR.str(o);
-    if (o instanceof IPersistentList) return Type.LIST.str(o);
-    if (o instanceof IPersistentSet) return Type.SET.str(o);
-    if (o instanceof SyntaxElement) return ((SyntaxElement)o).emit();
     StringWriter w = new StringWriter();
     try {
-      clojure.lang.RT.print(o, w);
+      emit(o, w);
     } catch (IOException e) {
       throw new ExceptionInfo("Error in string output", RT.map(), e);
     }
     return w.toString();
   }
 
+  /** Writes the text of any form read by the reader to a writer. */
+  public static void emit(Object o, Writer w) throws IOException {
+    if (o instanceof SyntaxElement) ((SyntaxElement)o).emit(w);
+    else if (o instanceof IPersistentVector) Type.VECTOR.write(o, w);
+    else if (o instanceof IPersistentList) Type.LIST.write(o, w);
+    else if (o instanceof IPersistentSet) Type.SET.write(o, w);
+    else if (!AtomWriter.write(o, w)) RT.print(o, w);
+  }
+
+  public static void emit(Object o, Appendable a) throws IOException {
+    emit(o, writer(a));
+  }
+
+  /** Presents an Appendable, such as a StringBuilder, as a Writer. Writers are returned as they are. */
+  public static Writer writer(final Appendable a) {
+    if (a instanceof Writer) return (Writer) a;
+    return new Writer() {
+      public void write(int c) throws IOException { a.append((char) c); }
+      public void write(String s) throws IOException { a.append(s); }
+      public void write(String s, int off, int len) throws IOException { a.append(s, off, off + len); }
+      public void write(char[] cbuf, int off, int len) throws IOException {
+        for (int i = off; i < off + len; i++) a.append(cbuf[i]);
+      }
+      public Writer append(CharSequence cs) throws IOException {
+        a.append(cs);
+        return this;
+      }
+      public void flush() { }
+      public void close() { }
+    };
+  }
+
   public String toString() {
     return "<" + type.name() + ": " + data + ">";
   }
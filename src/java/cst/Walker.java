@@ -0,0 +1,212 @@
+package cst;
+
+import clojure.lang.IPersistentMap;
+import clojure.lang.ISeq;
+import clojure.lang.RT;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Walks the nodes of a form in pre-order, calling a visitor as each node is entered and left.
+ * The walk keeps its own stack, rather than recursing, and steps through lists by their seqs and
+ * through vectors by index, so walking allocates nothing per node. A walker can be reused for
+ * many walks, but not for two at the same time.
+ *
+ * The children of a node are the forms inside it, as they appear in the text:
+ *   lists, vectors and seqs: their elements
+ *   MAP, SET and FILE elements: the forms they contain
+ *   META elements: the metadata, then the form it applies to
+ *   CONDITIONAL elements: the list of features and forms
+ *   COMMA, COMMENT, M_COMMENT, CHAR and ARG elements: none
+ *   any other element: the form it wraps
+ */
+public class Walker {
+
+  /** Receives each node of a walk. */
+  public interface Visitor {
+    /**
+     * Called when a node is reached, before its children.
+     * @return CONTINUE to walk the children, SKIP to leave them out, or STOP to end the walk.
+     */
+    int enter(Object node, int depth);
+
+    /**
+     * Called after the children of a node, or straight after enter when there are none or they were skipped.
+     * @return CONTINUE, or STOP to end the walk.
+     */
+    int leave(Object node, int depth);
+  }
+
+  public static final int CONTINUE = 0;
+  public static final int SKIP = 1;
+  public static final int STOP = 2;
+
+  // how the children of a node on the stack are found
+  static final int INDEXED = 1;
+  static final int SEQ = 2;
+  static final int ONE = 3;
+  static final int META = 4;
+
+  static final Object END = new Object();
+
+  private Object[] nodes = new Object[32];
+  private Object[] sources = new Object[32];
+  private int[] modes = new int[32];
+  private int[] positions = new int[32];
+  private int top = -1;
+
+  /** Walks a form with a new walker. */
+  public static boolean walk(Object form, Visitor v) {
+    return new Walker().run(form, v);
+  }
+
+  /**
+   * Walks a form.
+   * @return true if the walk finished, or false if the visitor stopped it.
+   */
+  public boolean run(Object form, Visitor v) {
+    top = -1;
+    try {
+      int r = v.enter(form, 0);
+      if (r == STOP) return false;
+      if (r == SKIP || !push(form)) return v.leave(form, 0) != STOP;
+
+      while (top >= 0) {
+        Object child = next();
+        if (child == END) {
+          Object node = nodes[top];
+          int depth = top;
+          nodes[top] = null;
+          sources[top] = null;
+          top--;
+          if (v.leave(node, depth) == STOP) return false;
+          continue;
+        }
+        int depth = top + 1;
+        r = v.enter(child, depth);
+        if (r == STOP) return false;
+        if (r == SKIP || !push(child)) {
+          if (v.leave(child, depth) == STOP) return false;
+        }
+      }
+      return true;
+    } finally {
+      Arrays.fill(nodes, 0, Math.max(top + 1, 0), null);
+      Arrays.fill(sources, 0, Math.max(top + 1, 0), null);
+      top = -1;
+    }
+  }
+
+  /** Returns the children of a node, in the order a walk visits them. */
+  public static List children(Object node) {
+    Walker w = new Walker();
+    ArrayList c = new ArrayList();
+    if (w.push(node)) {
+      for (Object child = w.next(); child != END; child = w.next()) c.add(child);
+    }
+    return c;
+  }
+
+  /** The number of nodes between the node being visited and the form being walked. */
+  public int depth() { return top + 1; }
+
+  /**
+   * Puts a node on the stack, when it has children.
+   * @return false if the node has no children to walk.
+   */
+  private boolean push(Object node) {
+    int mode;
+    Object source;
+    if (node instanceof SyntaxElement) {
+      SyntaxElement e = (SyntaxElement) node;
+      switch (e.type) {
+        case COMMA: case COMMENT: case M_COMMENT: case CHAR: case ARG:
+          return false;
+        case META:
+          mode = META;
+          source = e.data;
+          break;
+        case CONDITIONAL:
+          mode = ONE;
+          source = ((IPersistentMap) e.data).valAt(SyntaxElement.FORM_KEY);
+          break;
+        case MAP: case SET:
+          return pushCollection(node, e.data);
+        case FILE:
+          return pushCollection(node, (e.data instanceof IPersistentMap) ?
+              ((IPersistentMap) e.data).valAt(SyntaxElement.DATA_KEY) : e.data);
+        default:
+          mode = ONE;
+          source = e.data;
+      }
+    } else {
+      return pushCollection(node, node);
+    }
+    frame(node, mode, source);
+    return true;
+  }
+
+  private boolean pushCollection(Object node, Object c) {
+    if (c instanceof List && c instanceof RandomAccess) {
+      if (((List) c).isEmpty()) return false;
+      frame(node, INDEXED, c);
+    } else if (c instanceof ISeq || c instanceof List) {
+      ISeq s = RT.seq(c);
+      if (s == null) return false;
+      frame(node, SEQ, s);
+    } else {
+      return false;
+    }
+    return true;
+  }
+
+  private void frame(Object node, int mode, Object source) {
+    if (++top == nodes.length) {
+      int capacity = top * 2;
+      nodes = Arrays.copyOf(nodes, capacity);
+      sources = Arrays.copyOf(sources, capacity);
+      modes = Arrays.copyOf(modes, capacity);
+      positions = Arrays.copyOf(positions, capacity);
+    }
+    nodes[top] = node;
+    sources[top] = source;
+    modes[top] = mode;
+    positions[top] = 0;
+  }
+
+  /** Returns the next child of the node on top of the stack, or END when there are no more. */
+  private Object next() {
+    int i = positions[top]++;
+    Object source = sources[top];
+    switch (modes[top]) {
+      case INDEXED: {
+        List l = (List) source;
+        return (i < l.size()) ? l.get(i) : END;
+      }
+      case SEQ: {
+        if (source == null) return END;
+        ISeq s = (ISeq) source;
+        sources[top] = s.next();
+        return s.first();
+      }
+      case ONE:
+        return (i == 0) ? source : END;
+      case META: {
+        IPersistentMap m = (IPersistentMap) source;
+        if (i == 0) {
+          IPersistentMap meta = (IPersistentMap) m.valAt(SyntaxElement.META_KEY);
+          Object value = meta.valAt(SyntaxElement.TAG_KEY);
+          if (value == null) value = meta.valAt(SyntaxElement.KEYWORD_KEY);
+          if (value == null) value = meta.valAt(SyntaxElement.MAP_KEY);
+          return value;
+        }
+        return (i == 1) ? m.valAt(SyntaxElement.OBJECT_KEY) : END;
+      }
+      default:
+        return END;
+    }
+  }
+}
@@ -0,0 +1,386 @@
+(ns cst.bench
+  "Benchmarks for the reader. These are run by hand from a REPL, and are not tests:
+   (require 'cst.bench) (cst.bench/parallel-read-scaling)"
+  (:require [cst.database :as cdb]
+            [cst.diff :as diff]
+            [cst.reader :as reader]
+            [datomic.api :as d])
+  (:import [cst CharBufferReader]
+           [java.io PushbackReader StringReader]))
+
+(defn- time-ms
+  "Runs f the given number of times after warming up, and returns the fastest time in milliseconds"
+  [runs f]
+  (dotimes [_ 3] (f))
+  (apply min (for [_ (range runs)]
+               (let [start (System/nanoTime)]
+                 (f)
+                 (/ (- (System/nanoTime) start) 1e6)))))
+
+(defn generated-source
+  "Creates the text of a large generated namespace, with n definitions of data and functions,
+   numbered from start"
+  ([n] (generated-source n 0))
+  ([n start]
+  (let [sb (StringBuilder. (str "(ns cst.generated-" start "\n  (:require [clojure.string :as str]))\n\n"))]
+    (doseq [i (range start (+ start n))]
+      (.append sb (str ";; entry " i "\n"
+                       "(def ^:private data-" i " {:id " i " :name \"item (" i ")\" :tags #{:a :b} :ratio " i "/7})\n"
+                       "(defn f-" i " [x & more]\n  (let [y (* x " i ")]\n    (str/join \",\" [y \\( #\"[a-z]+\" 'q])))\n\n")))
+    (str sb))))
+
+(defn parallel-read-scaling
+  "Reads a generated file with cst-read-all, and with cst-read-all-parallel on increasing numbers
+   of threads. Prints and returns the fastest time for each, and the speedup over the sequential read."
+  ([] (parallel-read-scaling 20000 [1 2 4 8] 5))
+  ([n thread-counts runs]
+   (let [text (generated-source n)
+         sequential (time-ms runs #(reader/cst-read-all (CharBufferReader. ^String text) nil nil))
+         results (cons {:threads :sequential :ms sequential :speedup 1.0}
+                       (for [t thread-counts]
+                         (let [ms (time-ms runs #(reader/cst-read-all-parallel (CharBufferReader. ^String text)
+                                                                               nil nil {:parallelism t}))]
+                           {:threads t :ms ms :speedup (/ sequential ms)})))]
+     (println (count text) "characters")
+     (doseq [{:keys [threads ms speedup]} results]
+       (println (format "%12s %10.1f ms %6.2fx" threads ms speedup)))
+     results)))
+
+(defn emit-time
+  "Times emitting a generated file to a StringBuilder. Prints and returns the fastest time in milliseconds."
+  ([] (emit-time 20000 5))
+  ([n runs]
+   (let [file (reader/cst-read-all (CharBufferReader. ^String (generated-source n)) nil nil)
+         ms (time-ms runs #(reader/emit-to file (StringBuilder.)))]
+     (println (format "emit %d definitions: %.1f ms" n ms))
+     ms)))
+
+(defn- used-heap []
+  (let [rt (Runtime/getRuntime)]
+    (dotimes [_ 4] (System/gc) (Thread/sleep 100))
+    (- (.totalMemory rt) (.freeMemory rt))))
+
+(defn workspace-heap
+  "Reads a workspace of generated namespaces, each with different definitions written in the same
+   idioms, and measures the heap held by the parsed files: without sharing, with sharing while the
+   hash cons table is kept for later reads, and with sharing once the table has been dropped.
+   Prints and returns the bytes held by each."
+  ([] (workspace-heap 200 100))
+  ([files defs]
+   (let [texts (mapv #(generated-source defs (* % defs)) (range files))
+         table (atom nil)
+         measure (fn [opts]
+                   (let [before (used-heap)
+                         parsed (mapv #(with-open [io (PushbackReader. (StringReader. %))]
+                                         (reader/cst-read-all io nil opts))
+                                      texts)
+                         held (- (used-heap) before)
+                         stats (some-> @table reader/hash-cons-stats)
+                         _ (reset! table nil)
+                         held-alone (- (used-heap) before)]
+                     (count parsed)
+                     [held held-alone stats]))
+         [plain] (measure nil)
+         _ (reset! table (reader/hash-cons-table))
+         [shared shared-alone stats] (measure {:hash-cons @table})
+         mb #(/ % 1048576.0)]
+     (println (format "%d files: %.1f MB unshared, %.1f MB shared with the table, %.1f MB shared without it (%.2fx)"
+                      files (mb plain) (mb shared) (mb shared-alone) (/ (double plain) shared-alone)))
+     {:unshared plain :shared shared :shared-without-table shared-alone :table stats})))
+
+(defn cache-load-time
+  "Times reading a generated file by parsing it, and by loading it from a parse cache, both when
+   only the first form is used and when every form is used. Prints and returns the fastest times."
+  ([] (cache-load-time 20000 5))
+  ([n runs]
+   (let [text (generated-source n)
+         dir (doto (java.io.File/createTempFile "cst-cache" "") (.delete) (.mkdirs))
+         read-with #(reader/cst-read-all (CharBufferReader. ^String text) nil %)]
+     (try
+       (read-with {:cache dir})
+       (let [parse (time-ms runs #(read-with nil))
+             first-form (time-ms runs #(first (:data (.data ^cst.SyntaxElement (read-with {:cache dir})))))
+             all-forms (time-ms runs #(dorun (:data (.data ^cst.SyntaxElement (read-with {:cache dir})))))]
+         (println (format "parse %.1f ms, cached first form %.1f ms, cached all forms %.1f ms"
+                          parse first-form all-forms))
+         {:parse parse :cached-first-form first-form :cached-all-forms all-forms})
+       (finally
+         (doseq [^java.io.File f (.listFiles dir)] (.delete f))
+         (.delete dir))))))
+
+(defn walk-time
+  "Times counting the symbols in a generated file, with tree-seq and with cst-nodes.
+   Prints and returns the fastest time for each in milliseconds."
+  ([] (walk-time 20000 5))
+  ([n runs]
+   (let [file (reader/cst-read-all (CharBufferReader. ^String (generated-source n)) nil nil)
+         branch? #(or (sequential? %) (instance? java.util.List %) (instance? cst.SyntaxElement %))
+         children #(if (instance? cst.SyntaxElement %) (let [d (.data ^cst.SyntaxElement %)]
+                                                         (if (map? d) (vals d) [d]))
+                     (seq %))
+         count-symbols (fn [nodes] (transduce (filter symbol?) (completing (fn [n _] (inc n))) 0 nodes))
+         seq-ms (time-ms runs #(count-symbols (tree-seq branch? children file)))
+         walk-ms (time-ms runs #(count-symbols (reader/cst-nodes file)))]
+     (println (format "tree-seq %.1f ms, cst-nodes %.1f ms" seq-ms walk-ms))
+     {:tree-seq seq-ms :cst-nodes walk-ms})))
+
+(defn reparse-time
+  "Times typing a character into the middle of a generated file, with cst-reparse and with
+   cst-read-all of the edited text, for files of increasing size. Prints and returns the fastest
+   time for each in milliseconds."
+  ([] (reparse-time [1000 10000 50000] 20))
+  ([sizes runs]
+   (vec
+    (for [n sizes]
+      (let [text (generated-source n)
+            opts {:editable true}
+            file (reader/cst-read-all (CharBufferReader. ^String text) nil opts)
+            at (.indexOf ^String text "(* x " (quot (count text) 2))
+            edited (str (subs text 0 at) " " (subs text at))
+            reparse-ms (time-ms runs #(reader/cst-reparse file at at " " opts))
+            read-ms (time-ms runs #(reader/cst-read-all (CharBufferReader. ^String edited) nil opts))]
+        (println (format "%d definitions: reparse %.3f ms, read all %.1f ms" n reparse-ms read-ms))
+        {:definitions n :reparse reparse-ms :read-all read-ms})))))
+
+(defn diff-time
+  "Times diffing a generated file against a copy with one definition changed, with the structural
+   hashes kept from the read, and the edits found. Prints and returns the fastest time in milliseconds."
+  ([] (diff-time 20000 5))
+  ([n runs]
+   (let [text (generated-source n)
+         edited (.replace ^String text "(* x 7)" "(* x -7)")
+         read-hashed #(reader/cst-read-all (CharBufferReader. ^String %) nil {:hash true})
+         old (read-hashed text)
+         new (read-hashed edited)
+         ms (time-ms runs #(diff/diff old new))]
+     (println (format "diff %d definitions: %.1f ms, %s" n ms (pr-str (diff/diff old new))))
+     ms)))
+
+(defn storable-source
+  "Creates the text of a generated namespace with n definitions, using only the forms that
+   cst.database can store, numbered from start"
+  ([n] (storable-source n 0))
+  ([n start]
+   (apply str "(ns cst.stored (:require [clojure.string :as str]))"
+          (for [i (range start (+ start n))]
+            (str "\n(defn f-" i " [x & more] (let [y (* x " i ")] {:id " i " :tags #{:a :b} :v [y \"s\" (str/join more)]}))")))))
+
+(defn- linked-element
+  "Finds the value of the nth element of a collection stored as a linked list, by walking the list"
+  [db coll n]
+  (loop [e coll i 0]
+    (if (= i n)
+      (cdb/value-fn (d/pull db '[*] e))
+      (recur (:v (first (d/datoms db :eavt e :cst/rest))) (inc i)))))
+
+(defn storage-comparison
+  "Stores a generated file in the linked and the indexed encodings, and measures the datoms written,
+   the time to transact them, the time to read the file back with get-cst, and the time to read its
+   last form on its own. Prints and returns the measurements for each; a get-cst time of NaN means
+   the read overflowed the stack."
+  ([] (storage-comparison 2000 3))
+  ([n runs]
+   (let [file (reader/cst-read-all-string (storable-source n) "bench" nil)
+         measure (fn [storage]
+                   (let [uri (str "datomic:mem://bench-" (name storage))
+                         conn (cdb/database uri)]
+                     (try
+                       (let [tx (doall (cdb/tx-data file {:storage storage}))
+                             start (System/nanoTime)
+                             report @(d/transact conn tx)
+                             transact-ms (/ (- (System/nanoTime) start) 1e6)
+                             db (:db-after report)
+                             eid (:db/id (d/entity db [:cst/location (java.net.URI. "file:bench")]))
+                             last-form (if (= storage :indexed)
+                                         #(cdb/element-at db eid n)
+                                         #(linked-element db eid n))]
+                         {:storage storage
+                          :datoms (count (:tx-data report))
+                          :transact-ms transact-ms
+                          ;; pulling a long linked list recurses once for each element
+                          :get-cst-ms (try
+                                        (time-ms runs #(.emit ^cst.SyntaxElement (cdb/get-cst db "bench")))
+                                        (catch StackOverflowError _ Double/NaN))
+                          :last-form-ms (time-ms runs last-form)})
+                       (finally
+                         (d/release conn)
+                         (d/delete-database uri)))))
+         results [(measure :linked) (measure :indexed)]]
+     (doseq [{:keys [storage datoms transact-ms get-cst-ms last-form-ms]} results]
+       (println (format "%8s %8d datoms, transact %8.1f ms, get-cst %8.1f ms, last form %6.2f ms"
+                        (name storage) datoms transact-ms get-cst-ms last-form-ms)))
+     results)))
+
+(defn reconstruct-time
+  "Stores a generated file, and times reading it back with d/pull and reconstruct, and with
+   read-entity over the datoms. Prints and returns the fastest time for each in milliseconds."
+  ([] (reconstruct-time 300 5))
+  ([n runs]
+   (let [uri "datomic:mem://bench-reconstruct"
+         conn (cdb/database uri)]
+     (try
+       @(d/transact conn (cdb/tx-data (reader/cst-read-all-string (storable-source n) "bench" nil)))
+       (let [db (d/db conn)
+             pull-ms (time-ms runs #(cdb/get-cst db "bench" {:via :pull}))
+             datoms-ms (time-ms runs #(cdb/get-cst db "bench" {:via :datoms}))]
+         (println (format "pull %.1f ms, datoms %.1f ms" pull-ms datoms-ms))
+         {:pull pull-ms :datoms datoms-ms})
+       (finally
+         (d/release conn)
+         (d/delete-database uri))))))
+
+(defn resave-size
+  "Stores a generated file, then stores a copy with one definition changed, both whole with tx-data
+   and with save-cst. Prints and returns the datoms of each transaction, and the time to save."
+  ([] (resave-size 2000))
+  ([n]
+   (let [uri "datomic:mem://bench-resave"
+         conn (cdb/database uri)
+         text (storable-source n)
+         edited (.replace ^String text "(* x 7)" "(* x -7)")
+         store (fn [text location opts]
+                 (let [file (reader/cst-read-all-string text location nil)
+                       start (System/nanoTime)
+                       report (if (= opts :save)
+                                (cdb/save-cst conn file)
+                                @(d/transact conn (cdb/tx-data file opts)))]
+                   {:datoms (count (:tx-data report)) :ms (/ (- (System/nanoTime) start) 1e6)}))]
+     (try
+       (store text "whole" {:storage :indexed})
+       (store text "saved" :save)
+       (let [results {:whole (store edited "whole-edited" {:storage :indexed})
+                      :save (store edited "saved" :save)}]
+         (doseq [[k {:keys [datoms ms]}] results]
+           (println (format "%6s %8d datoms, %8.1f ms" (name k) datoms ms)))
+         results)
+       (finally
+         (d/release conn)
+         (d/delete-database uri))))))
+
+(defn dedup-savings
+  "Stores a workspace of generated namespaces, each with different definitions written in the same
+   idioms, a file to a transaction, with indexed storage and with shared storage. Prints and returns
+   the maps of transaction data submitted, the datoms stored and the time taken for each."
+  ([] (dedup-savings 100 50))
+  ([files defs]
+   (let [texts (mapv #(storable-source defs (* % defs)) (range files))
+         measure (fn [storage]
+                   (let [uri (str "datomic:mem://bench-dedup-" (name storage))
+                         conn (cdb/database uri)]
+                     (try
+                       (let [start (System/nanoTime)
+                             totals (reduce (fn [totals [i text]]
+                                              (let [file (reader/cst-read-all-string text (str "f" i) nil)
+                                                    tx (cdb/tx-data file {:storage storage :db (d/db conn)})
+                                                    report @(d/transact conn tx)]
+                                                (-> totals
+                                                    (update :tx-maps + (count tx))
+                                                    (update :datoms + (count (:tx-data report))))))
+                                            {:tx-maps 0 :datoms 0} (map-indexed vector texts))]
+                         (assoc totals :storage storage :ms (/ (- (System/nanoTime) start) 1e6)))
+                       (finally
+                         (d/release conn)
+                         (d/delete-database uri)))))
+         [indexed shared :as results] [(measure :indexed) (measure :shared)]]
+     (doseq [{:keys [storage tx-maps datoms ms]} results]
+       (println (format "%8s %9d maps %9d datoms %9.1f ms" (name storage) tx-maps datoms ms)))
+     (println (format "shared storage writes %.2fx fewer maps and %.2fx fewer datoms"
+                      (/ (double (:tx-maps indexed)) (:tx-maps shared))
+                      (/ (double (:datoms indexed)) (:datoms shared))))
+     results)))
+
+(defn xref-time
+  "Stores a workspace of generated namespaces with their cross references, and times finding the
+   uses of one of the functions defined in them with find-usages, and with a fulltext query for
+   the symbol. Prints and returns the fastest time for each in milliseconds."
+  ([] (xref-time 200 50 5))
+  ([files defs runs]
+   (let [uri "datomic:mem://bench-xref"
+         conn (cdb/database uri)
+         target (quot (* files defs) 2)]
+     (try
+       (doseq [i (range files)]
+         @(d/transact conn (cdb/tx-data (reader/cst-read-all-string (storable-source defs (* i defs)) (str "f" i) nil)
+                                        {:storage :indexed :xref true})))
+       (let [db (d/db conn)
+             sym (symbol "cst.stored" (str "f-" target))
+             xref-ms (time-ms runs #(doall (cdb/find-usages db sym)))
+             fulltext-ms (time-ms runs #(doall (d/q '[:find ?e :in $ ?s :where
+                                                      [(fulltext $ :cst.value/symbol ?s) [[?e]]]]
+                                                    db (name sym))))]
+         (println (format "find-usages %.2f ms, fulltext %.2f ms" xref-ms fulltext-ms))
+         {:find-usages xref-ms :fulltext fulltext-ms})
+       (finally
+         (d/release conn)
+         (d/delete-database uri))))))
+
+(defn cache-time
+  "Stores a generated file, and times reading it with get-cst, and with get-cst through a cache once
+   the tree is cached. Prints and returns the fastest time for each in milliseconds."
+  ([] (cache-time 300 5))
+  ([n runs]
+   (let [uri "datomic:mem://bench-cache"
+         conn (cdb/database uri)
+         cache (cdb/cst-cache conn)]
+     (try
+       @(d/transact conn (cdb/tx-data (reader/cst-read-all-string (storable-source n) "bench" nil)))
+       (let [db (d/db conn)
+             read-ms (time-ms runs #(cdb/get-cst db "bench"))
+             cached-ms (time-ms runs #(cdb/get-cst db "bench" {:cache cache}))]
+         (println (format "get-cst %.2f ms, cached %.4f ms, %s" read-ms cached-ms (pr-str (cdb/cache-stats cache))))
+         {:get-cst read-ms :cached cached-ms})
+       (finally
+         (cdb/close-cache cache)
+         (d/release conn)
+         (d/delete-database uri))))))
+
+(defn lazy-open-time
+  "Stores a generated file, and times emitting one form from the middle of it after reading the file
+   with get-cst, and after reading it lazily. Prints and returns the fastest time for each in
+   milliseconds."
+  ([] (lazy-open-time 10000 5))
+  ([n runs]
+   (let [uri "datomic:mem://bench-lazy"
+         conn (cdb/database uri)]
+     (try
+       @(d/transact conn (cdb/tx-data (reader/cst-read-all-string (storable-source n) "bench" nil) {:storage :indexed}))
+       (let [db (d/db conn)
+             open (fn [via] (.emit ^cst.SyntaxElement (nth (.data ^cst.SyntaxElement (cdb/get-cst db "bench" {:via via})) (quot n 2))))
+             read-ms (time-ms runs #(open :datoms))
+             lazy-ms (time-ms runs #(open :lazy))]
+         (println (format "one form of %d: get-cst %.2f ms, lazy %.2f ms" n read-ms lazy-ms))
+         {:get-cst read-ms :lazy lazy-ms})
+       (finally
+         (d/release conn)
+         (d/delete-database uri))))))
+
+(defn- data-source
+  "Creates the text of a generated data-heavy namespace with n tables of numbers, keywords and strings"
+  [n]
+  (apply str "(ns cst.data)"
+         (for [i (range n)]
+           (str "\n(def table-" i " {:id " i " :cols [:a :b :c :d :e :f :g :h] :names #{\"x" i "\" \"y\" \"z\"}"
+                " :rows [" (apply str (interpose " " (for [r (range 8)] (str "[" (apply str (interpose " " (range (* r i) (+ (* r i) 8)))) "]")))) "]})"))))
+
+(defn compact-savings
+  "Stores a generated data-heavy namespace with each storage, with and without the compact encoding
+   of collections of scalars. Prints and returns the datoms stored and the fastest time to transact
+   the file for each."
+  ([] (compact-savings 500 5))
+  ([n runs]
+   (let [file (reader/cst-read-all-string (data-source n) "bench" nil)
+         measure (fn [storage compact]
+                   (let [uri (str "datomic:mem://bench-compact-" (name storage) (when compact "-compact"))
+                         conn (cdb/database uri {:compact compact})
+                         opts {:storage storage :compact compact}]
+                     (try
+                       (let [datoms (count (:tx-data @(d/transact conn (cdb/tx-data file opts))))
+                             ms (time-ms runs #(deref (d/transact conn (cdb/tx-data file opts))))]
+                         {:storage storage :compact (boolean compact) :datoms datoms :ms ms})
+                       (finally
+                         (d/release conn)
+                         (d/delete-database uri)))))
+         results (for [storage [:linked :indexed :shared] compact [false true]] (measure storage compact))]
+     (doseq [{:keys [storage compact datoms ms]} results]
+       (println (format "%8s %8s %9d datoms %9.1f ms" (name storage) (if compact "compact" "") datoms ms)))
+     (vec results))))
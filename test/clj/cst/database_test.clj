@@ -6,8 +6,10 @@
         [cst.reader]
         [datomic.api :refer [q] :as d])
   (:require [clojure.string :as str]
+            [cst.diff :as diff]
             [cst.path :as path])
-  (:import [datomic.db DbId]
+  (:import [cst CharBufferReader SyntaxElement]
+           [datomic.db DbId]
            [datomic.query EntityMap]
            (java.util Map)))
 
@@ -122,3 +124,419 @@
           reloaded (get-cst db location)]
       (is (= hello-program (.emit reloaded))))))
 
+
+(deftest lazy-tx-data
+  (let [src "(ns cst.lazy)\n(def x [1 2])\n(println x)"
+        eager (tx-data (cst-read-all-string src))
+        lazy (into [] (tx-data (cst-read-all-lazy (CharBufferReader. src))))
+        location (first (keep :cst/location lazy))]
+    (is (= (set (map blankify-nodes eager)) (set (map blankify-nodes lazy))))
+    (with-connection [c "datomic:mem://lazy"]
+      @(d/transact c lazy)
+      (is (= src (.emit (get-cst (d/db c) location))))
+      (doseq [[location opts] [["indexed" {:storage :indexed}] ["shared" {:storage :shared}] ["empty" {:storage :indexed}]]
+              :let [text (if (= "empty" location) "" src)]]
+        @(d/transact c (into [] (tx-data (cst-read-all-lazy (CharBufferReader. text) location) opts)))
+        (is (= text (.emit (get-cst (d/db c) location))) location))
+      (is (thrown? clojure.lang.ExceptionInfo (tx-data (cst-read-all-lazy (CharBufferReader. src)) {:xref true})))))
+  (testing "forms are read as the transaction data is reduced"
+    (let [tx (tx-data (cst-read-all-lazy (CharBufferReader. "(a [1]) (b) )")))]
+      (is (= 1 (:cst.value/long (reduce (fn [_ m] (when (:cst.value/long m) (reduced m))) nil tx))))
+      (is (thrown? RuntimeException (into [] tx))))))
+
+(deftest chunked-transactions
+  (let [src (str/join "\n" (cons "(ns cst.chunked)"
+                                 (for [i (range 40)] (str "(defn f" i " [x] (let [y (* x " i ")] [:y y :v (list x :q)]))"))))
+        tx (tx-data (cst-read-all-string src "chunked"))
+        chunks (chunk-tx-data tx 25)]
+    (is (< 1 (count chunks)))
+    (is (= (frequencies tx) (frequencies (apply concat chunks))))
+    (is (every? #(<= (count %) 25) chunks))
+    (with-connection [c "datomic:mem://chunked"]
+      (let [{:keys [db-after tempids] :as stats} (transact-chunked c tx {:chunk-size 25 :in-flight 3})
+            file-id (:db/id (first (filter :cst/location tx)))]
+        (is (= (count chunks) (count (:chunks stats))))
+        (is (every? #(and (pos? (:size %)) (not (neg? (:ms %)))) (:chunks stats)))
+        (is (pos? (:maps-per-sec stats)))
+        (is (= src (.emit (get-cst db-after "chunked"))))
+        (is (nil? (d/entid db-after :cst/link)))
+        (is (= (count (filter :cst/type tx)) (count (seq (d/datoms db-after :aevt :cst/type)))))
+        (is (= (tempids file-id) (q '[:find ?e . :where [?e :cst/location]] db-after)))
+        (is (= (count (distinct (mapcat #(filter (fn [v] (instance? DbId v)) (vals %)) tx)))
+               (count (distinct (vals tempids)))))))))
+
+(deftest failed-chunks
+  (let [src (str/join "\n" (cons "(ns cst.failed)" (for [i (range 10)] (str "(def v" i " [" i " :k])"))))
+        tx (vec (tx-data (cst-read-all-string src "failed")))
+        bad {:db/id (node) :cst/index "not a long"}
+        tx (vec (concat (take 30 tx) [bad] (drop 30 tx)))]
+    (with-connection [c "datomic:mem://failed-chunks"]
+      (let [e (try (transact-chunked c tx {:chunk-size 10 :in-flight 10}) nil
+                   (catch clojure.lang.ExceptionInfo e e))
+            {:keys [failed committed tempids]} (ex-data e)
+            chunks (chunk-tx-data tx 10)
+            bad-chunk (first (keep-indexed #(when (some #{bad} %2) %1) chunks))]
+        (is (= bad-chunk failed))
+        (is (= (vec (range bad-chunk)) (vec (take bad-chunk committed))))
+        (is (not-any? #{bad-chunk} committed))
+        (is (pos? (count (q '[:find ?e :where [?e :cst/type]] (d/db c)))))
+        @(d/transact c (for [id (distinct (vals tempids))] [:db.fn/retractEntity id]))
+        (is (empty? (q '[:find ?e :where [?e :cst/type]] (d/db c))))))))
+
+(def indexed-program "(ns cst.indexed)\n(def m {:a [1 2] :b #{3}})\n(def e [() [] {}])\n(println (f m) 'x)")
+
+(deftest indexed-storage
+  (let [tx (tx-data (cst-read-all-string "[1 2]") {:storage :indexed})
+        btx (map #(if (map? %) (blankify-nodes %) (map (fn [x] (if (instance? DbId x) :blank x)) %)) tx)]
+    (is (= [{:db/id :blank :cst/type :file}
+            {:db/id :blank :cst/type :vector}
+            {:db/id :blank :cst.value/long 1}
+            {:db/id :blank :cst.value/long 2}
+            [:db/add :blank :cst/position]]
+           (map #(if (map? %) (dissoc % :cst/key :cst/position) (take 3 %)) btx)))
+    (let [[file vector one two] tx]
+      (is (not= (:cst/key file) (:cst/key vector)))
+      (is (= [(position (:cst/key vector) 0) (position (:cst/key vector) 1024) (position (:cst/key file) 0)]
+             [(:cst/position one) (:cst/position two) (nth (last tx) 3)]))))
+  (with-connection [c "datomic:mem://indexed"]
+    @(d/transact c (tx-data (cst-read-all-string indexed-program "indexed") {:storage :indexed}))
+    (let [db (d/db c)
+          file (:db/id (d/entity db [:cst/location (path/to-uri "indexed")]))]
+      (is (= indexed-program (.emit (get-cst db "indexed"))))
+      (is (empty? (q '[:find ?e :where [?e :cst/rest]] db)))
+      (is (= "(println (f m) 'x)" (.emit ^cst.SyntaxElement (element-at db file 3))) "positional access")
+      (is (nil? (element-at db file 4)))
+      (testing "retracting the file retracts its elements, which are not components"
+        @(d/transact c (retract-file-tx db "indexed"))
+        (is (empty? (seq (d/datoms (d/db c) :aevt :cst/position))))
+        (is (empty? (seq (d/datoms (d/db c) :aevt :cst/type))))
+        (is (nil? (retract-file-tx (d/db c) "indexed")))))))
+
+(deftest migrate-linked-to-indexed
+  (with-connection [c "datomic:mem://migrate"]
+    @(d/transact c (tx-data (cst-read-all-string indexed-program "migrated")))
+    (let [before (d/db c)
+          file (:db/id (d/entity before [:cst/location (path/to-uri "migrated")]))]
+      (is (seq (q '[:find ?e :where [?e :cst/rest]] before)))
+      (is (= 1 (migrate-to-indexed c)))
+      (let [after (d/db c)]
+        (is (empty? (q '[:find ?e :where [?e :cst/rest]] after)))
+        (is (= file (:db/id (d/entity after [:cst/location (path/to-uri "migrated")]))))
+        (is (= indexed-program (.emit (get-cst after "migrated"))))
+        (is (= 0 (migrate-to-indexed c)))))))
+
+(deftest index-gaps
+  (is (= 512 (index-between 0 1024)))
+  (is (= -1024 (index-between nil 0)))
+  (is (= 2048 (index-between 1024 nil)))
+  (is (nil? (index-between 3 4))))
+
+(deftest read-from-datoms
+  (with-connection [c "datomic:mem://datoms"]
+    (let [programs {"linked" [indexed-program nil]
+                    "indexed" [indexed-program {:storage :indexed}]
+                    "hello" [hello-program nil]
+                    "empty" ["" nil]
+                    "cond" ["#?(:clj (f 1) :cljs [g])" {:storage :indexed}]}]
+      (doseq [[location [text opts]] programs]
+        @(d/transact c (tx-data (cst-read-all-string text location {:read-cond :preserve}) opts)))
+      (let [db (d/db c)]
+        (doseq [[location [text]] programs]
+          (is (= text (.emit (get-cst db location))) location))
+        (doseq [location ["linked" "indexed" "hello"]]
+          (is (= (.emit (get-cst db location {:via :pull})) (.emit (get-cst db location {:via :datoms}))) location))))
+    (testing "long files"
+      (let [text (str/join "\n" (for [i (range 3000)] (str "(def v" i " [" i "])")))]
+        @(d/transact c (tx-data (cst-read-all-string text "long")))
+        (is (= text (.emit (get-cst (d/db c) "long"))))))))
+
+(deftest qualified-symbols
+  (with-connection [c "datomic:mem://symbols"]
+    (let [text "(s/join clojure.core/str x)\n'my.app/y"]
+      (doseq [[location storage] [["linked" :linked] ["indexed" :indexed] ["shared" :shared]]]
+        @(d/transact c (tx-data (cst-read-all-string text location) {:storage storage})))
+      (let [db (d/db c)]
+        (is (= #{"join" "str" "x" "y"} (set (q '[:find [?v ...] :where [_ :cst.value/symbol ?v]] db)))
+            "the name of a symbol is stored without its namespace")
+        (doseq [location ["linked" "indexed" "shared"]]
+          (is (= text (.emit (get-cst db location))) location))
+        (is (= text (.emit (get-cst db "linked" {:via :pull})))))
+      (migrate-to-indexed c)
+      (is (= text (.emit (get-cst (d/db c) "linked"))))
+      (save-cst c (cst-read-all-string (str/replace text "s/join" "t/join") "indexed"))
+      (is (= "(t/join clojure.core/str x)\n'my.app/y" (.emit (get-cst (d/db c) "indexed")))))))
+
+(deftest incremental-saves
+  (with-connection [c "datomic:mem://resave"]
+    (let [read #(cst-read-all-string % "resaved" {:read-cond :preserve})
+          program (str indexed-program "\n#?(:clj (f 1) :cljs [g])")
+          stored-as #(.emit (get-cst (d/db c) "resaved"))
+          form-entity #(first (q '[:find [?f ...] :in $ ?l :where
+                                   [?file :cst/location ?l] [?file :cst/key ?k]
+                                   [(cst.database/position ?k 0) ?p] [?f :cst/position ?p]]
+                                 (d/db c) (path/to-uri "resaved")))]
+      (save-cst c (read program))
+      (is (= program (stored-as)))
+      (let [first-form (form-entity)]
+        (testing "an unchanged file"
+          (is (= [] (update-tx (d/db c) (read program))))
+          (is (= 1 (count (:tx-data (save-cst c (read program)))))))
+        (testing "a changed symbol is retracted and asserted"
+          (let [text (str/replace program "(f m)" "(g m)")
+                report (save-cst c (read text))]
+            (is (= text (stored-as)))
+            (is (= 3 (count (:tx-data report))))
+            (is (= first-form (form-entity)))))
+        (doseq [[from to] [["[1 2]" "[1 2 3]"]
+                           ["'x" ":k"]
+                           ["(def e" "(def d 0)\n(def e"]
+                           ["(ns cst.indexed)\n" ""]
+                           ["(def m {:a [1 2] :b #{3}})\n(def e [() [] {}])" "(def e [() [] {}])\n(def m {:a [1 2] :b #{3}})"]
+                           ["(f 1)" "[f 1]"]
+                           ["#?(" "#?@("]
+                           ["[1 2" (str "[1 " (str/join " " (range 2000)) " 2")]]]
+          (let [text (str/replace (stored-as) from to)]
+            (save-cst c (read text))
+            (is (= text (stored-as)) (str from " to " to))))))
+    (testing "linked files are migrated"
+      @(d/transact c (tx-data (cst-read-all-string indexed-program "linked")))
+      (let [text (str/replace indexed-program "1 2" "2 1")]
+        (save-cst c (cst-read-all-string text "linked"))
+        (is (= text (.emit (get-cst (d/db c) "linked"))))))))
+
+(deftest shared-storage
+  (with-connection [c "datomic:mem://shared"]
+    (let [program (str indexed-program "\n(f m)\n#?(:clj (f 1) :cljs [g])")
+          read #(cst-read-all-string program % {:read-cond :preserve})
+          shared-count #(count (q '[:find ?e :where [?e :cst/content-hash]] (d/db c)))
+          stored-as #(.emit (get-cst (d/db c) %))]
+      @(d/transact c (tx-data (read "one") {:storage :shared}))
+      (is (= program (stored-as "one")))
+      (let [subtrees (shared-count)]
+        (testing "stored subtrees are referred to"
+          (let [tx (tx-data (read "two") {:storage :shared :db (d/db c)})]
+            (is (every? #(or (vector? %) (not (contains? % :cst/content-hash))) tx))
+            @(d/transact c tx)
+            (is (= program (stored-as "two")))))
+        (testing "subtrees written again are upserted"
+          @(d/transact c (tx-data (read "three") {:storage :shared}))
+          (is (= program (stored-as "three")))
+          (is (= subtrees (shared-count)))))
+      (testing "saving a file with shared subtrees leaves the others as they are"
+        (let [text (str/replace program "(f m)" "(g m)")]
+          (save-cst c (cst-read-all-string text "two" {:read-cond :preserve}) {:storage :shared})
+          (is (= text (stored-as "two")))
+          (is (= program (stored-as "one")))
+          (is (= program (stored-as "three")))))
+      (testing "a subtree used in several places is read once"
+        @(d/transact c (tx-data (cst-read-all-string "(a [5 6])\n(b [5 6])" "twice") {:storage :shared}))
+        (let [[a b] (.data ^cst.SyntaxElement (get-cst (d/db c) "twice"))
+              vector-of #(second (.data ^cst.SyntaxElement %))]
+          (is (= "[5 6]" (.emit ^cst.SyntaxElement (vector-of a))))
+          (is (identical? (vector-of a) (vector-of b)))))
+      (testing "subtrees that nothing refers to are retracted"
+        (let [before (shared-count)
+              text "(ns cst.solo)\n(only-here [7 8])"]
+          @(d/transact c (tx-data (cst-read-all-string text "solo") {:storage :shared :db (d/db c)}))
+          (let [stored (shared-count)]
+            (save-cst c (cst-read-all-string (str/replace text "[7 8]" "[7 9]") "solo") {:storage :shared})
+            (is (= stored (shared-count)))
+            (is (empty? (collect-shared-tx (d/db c)))))
+          @(d/transact c (retract-file-tx (d/db c) "solo"))
+          (let [tx (collect-shared-tx (d/db c))]
+            (is (seq tx))
+            @(d/transact c tx))
+          (is (= before (shared-count)))
+          (is (= program (stored-as "one")))
+          (is (= program (stored-as "three"))))))))
+
+(def xref-program
+  (str/join "\n" ["(ns my.app (:require [clojure.string :as s] [my.util :refer [helper]]) (:refer-clojure :exclude [map]))"
+                  "(defn f [x] (s/join (helper x)))"
+                  "(def map {:a 1})"
+                  "(defn g [] (f (map 1) (inc 2)))"]))
+
+(deftest symbol-cross-references
+  (with-connection [c "datomic:mem://xref"]
+    (doseq [[location storage] [["linked" :linked] ["indexed" :indexed] ["shared" :shared]]]
+      @(d/transact c (tx-data (cst-read-all-string xref-program location) {:storage storage :xref true})))
+    (let [db (d/db c)
+          form-text #(.emit ^cst.SyntaxElement (read-entity db (:form %)))
+          node-value #(value-fn (d/entity db (:node %)))
+          files #(set (map (comp str :location) %))]
+      (is (= #{"file:linked" "file:indexed" "file:shared"} (files (find-usages db 'clojure.string/join))))
+      (is (= 3 (count (find-usages db 'clojure.string/join))))
+      (is (= #{'s/join} (set (map node-value (find-usages db 'clojure.string/join)))) "the nodes hold the symbol")
+      (is (= 6 (count (find-usages db 'my.util/helper))) "the ns form refers to it")
+      (is (= #{'helper} (set (map node-value (find-usages db 'my.util/helper)))))
+      (is (= 3 (count (find-usages db 'clojure.core/inc))))
+      (is (empty? (find-usages db 'clojure.core/map)) "excluded from clojure.core")
+      (is (= "(def map {:a 1})" (form-text (find-definition db 'my.app/map))))
+      (is (= "(defn g [] (f (map 1) (inc 2)))" (form-text (find-definition db 'my.app/g))))
+      (is (nil? (find-definition db 'my.app/h))))
+    (testing "saving a file keeps its cross references"
+      (let [changed (str/replace xref-program "(s/join (helper x))" "(str x)")]
+        (doseq [location ["indexed" "shared"]]
+          (save-cst c (cst-read-all-string changed location) {:storage (keyword location)})
+          (save-cst c (cst-read-all-string (str/replace changed "\n(defn g [] (f (map 1) (inc 2)))" "") location)
+                    {:storage (keyword location)})))
+      (let [db (d/db c)
+            node-value #(value-fn (d/entity db (:node %)))
+            files #(set (map (comp str :location) %))]
+        (is (= #{"file:linked"} (files (find-usages db 'clojure.string/join))))
+        (is (= #{"file:linked"} (files (find-usages db 'clojure.core/inc))))
+        (is (= #{"file:indexed" "file:shared"} (files (find-usages db 'clojure.core/str))))
+        (is (= #{'str} (set (map node-value (find-usages db 'clojure.core/str)))))
+        (is (= 4 (count (find-usages db 'my.util/helper))) "the kept ns forms still refer to it")
+        (is (= 1 (count (find-usages db 'my.app/g))))
+        (is (= "file:linked" (str (:location (find-definition db 'my.app/g)))))))))
+
+(deftest cached-reads
+  (with-connection [c "datomic:mem://cache"]
+    (doseq [location ["one" "two"]]
+      @(d/transact c (tx-data (cst-read-all-string indexed-program location) {:storage :indexed})))
+    (let [cache (cst-cache c)
+          old-db (d/db c)]
+      (try
+        (let [tree (get-cst old-db "one" {:cache cache})]
+          (is (= indexed-program (.emit tree)))
+          (is (identical? tree (get-cst (d/db c) "one" {:cache cache})))
+          (is (= {:hits 1 :misses 1} (select-keys (cache-stats cache) [:hits :misses]))))
+        (get-cst old-db "two" {:cache cache})
+        (testing "a transaction evicts only the files it touches"
+          (let [text (str/replace indexed-program "[1 2]" "[3]")]
+            (save-cst c (cst-read-all-string text "two"))
+            @(d/transact c (tx-data (cst-read-all-string "(other)" "three")))
+            (let [db (d/db c)
+                  hits (:hits (cache-stats cache))]
+              (is (= indexed-program (.emit (get-cst db "one" {:cache cache}))))
+              (is (= (inc hits) (:hits (cache-stats cache))))
+              (is (= text (.emit (get-cst db "two" {:cache cache}))))
+              (is (= text (.emit (get-cst db "two" {:cache cache}))))
+              (is (= 1 (:invalidations (cache-stats cache)))))))
+        (testing "older databases"
+          (is (= indexed-program (.emit (get-cst old-db "two" {:cache cache}))))
+          (is (= indexed-program (.emit (get-cst (d/as-of (d/db c) (d/basis-t old-db)) "two" {:cache cache})))))
+        (is (nil? (get-cst (d/db c) "unknown" {:cache cache})))
+        (is (= 2 (:entries (cache-stats cache))))
+        (finally
+          (close-cache cache))))
+    (testing "caches that share a connection each see every transaction"
+      (let [a (cst-cache c)
+            b (cst-cache c)
+            text (str/replace indexed-program "[() [] {}]" "[1]")]
+        (doseq [cache [a b]]
+          (get-cst (d/db c) "one" {:cache cache}))
+        (save-cst c (cst-read-all-string text "one"))
+        (is (= text (.emit (get-cst (d/db c) "one" {:cache a}))))
+        @(d/transact c (tx-data (cst-read-all-string "(other)" "four")))
+        (is (= text (.emit (get-cst (d/db c) "one" {:cache b}))))
+        (is (= 1 (:invalidations (cache-stats a)) (:invalidations (cache-stats b))))
+        (close-cache a)
+        (is (zero? (:entries (cache-stats a))))
+        (is (= text (.emit (get-cst (d/db c) "one" {:cache b}))))
+        (is (= 1 (:hits (cache-stats b))))))
+    (testing "speculative databases are neither cached nor served from the cache"
+      (let [cache (cst-cache c)
+            current (.emit (get-cst (d/db c) "one" {:cache cache}))
+            db (d/db c)
+            speculative (str current "\n(speculative)")
+            saved (str current "\n(saved)")]
+        (is (= speculative (.emit (get-cst (:db-after (d/with db (update-tx db (cst-read-all-string speculative "one"))))
+                                           "one" {:cache cache}))))
+        (is (= current (.emit (get-cst (d/db c) "one" {:cache cache}))))
+        (save-cst c (cst-read-all-string saved "one"))
+        (is (= saved (.emit (get-cst (d/db c) "one" {:cache cache}))))
+        (close-cache cache)))
+    (testing "the size of the cache is bounded"
+      (let [cache (cst-cache c {:max-size 40})]
+        (try
+          (doseq [location ["one" "two" "three"]]
+            (get-cst (d/db c) location {:cache cache}))
+          (let [{:keys [entries size evictions]} (cache-stats cache)]
+            (is (<= size 40))
+            (is (pos? evictions))
+            (is (< entries 3)))
+          (finally
+            (close-cache cache)))))))
+
+(deftest lazy-reads
+  (with-connection [c "datomic:mem://lazy"]
+    (let [programs {"linked" [indexed-program nil]
+                    "indexed" [indexed-program {:storage :indexed}]
+                    "shared" [indexed-program {:storage :shared :db (d/db c)}]
+                    "empty" ["" nil]
+                    "cond" ["#?(:clj (f 1) :cljs [g])" {:storage :indexed}]}]
+      (doseq [[location [text opts]] programs]
+        @(d/transact c (tx-data (cst-read-all-string text location {:read-cond :preserve}) opts)))
+      (let [db (d/db c)]
+        (doseq [[location [text]] programs]
+          (is (= text (.emit (get-cst db location {:via :lazy}))) location))
+        (doseq [location (keys programs)]
+          (let [eager (get-cst db location)
+                lazy (get-cst db location {:via :lazy})]
+            (is (= [] (diff/diff eager lazy)) location)
+            (is (= eager lazy) location)
+            (is (= (.structuralHash ^SyntaxElement eager) (.structuralHash ^SyntaxElement lazy)) location)))))
+    (testing "collections are read when they are used"
+      (let [text (str/join "\n" (for [i (range 100)] (str "(def v" i " [" i "])")))]
+        @(d/transact c (tx-data (cst-read-all-string text "long") {:storage :indexed}))
+        (let [^SyntaxElement file (get-cst (d/db c) "long" {:via :lazy})
+              forms (.data file)]
+          (is (not (realized? forms)))
+          (let [^SyntaxElement form (nth forms 4)]
+            (is (not-any? #(realized? (.data ^SyntaxElement %)) forms))
+            (is (= "(def v4 [4])" (.emit form)))
+            (is (identical? form (nth (.data file) 4))))
+          (is (= text (.emit file))))))))
+
+(def compact-program
+  (str/join "\n" ["(ns cst.compact)"
+                  "(def table [[1 2 3] [4.5 \"s\" :k/w sym true] [-0.5 \"\\\"q\\\"\" x/y]])"
+                  "(def m {:a 1 :b \"two\"})"
+                  "(def s #{1 2})"
+                  "(f '(x y) [1 'q] ())"]))
+
+(deftest compact-scalars
+  (is (= "[1 :a \"b\" c true 2.5]" (scalar-run '(1 :a "b" c true 2.5))))
+  (is (nil? (scalar-run [])))
+  (is (nil? (scalar-run [1 nil])))
+  (is (nil? (scalar-run [1 1/2])))
+  (is (nil? (scalar-run [Double/NaN])))
+  (with-connection [c "datomic:mem://compact"]
+    (is (thrown? Exception @(d/transact c (tx-data (cst-read-all-string compact-program "early") {:compact true}))))
+    @(load-schema c {:compact true})
+    (let [datoms (fn [location opts]
+                   (count (:tx-data @(d/transact c (tx-data (cst-read-all-string compact-program location) opts)))))
+          ;; stored the same way without runs, in a database that is not kept
+          plain (fn [location opts]
+                  (count (:tx-data (d/with (d/db c) (tx-data (cst-read-all-string compact-program location)
+                                                             (dissoc opts :compact))))))
+          runs #(count (q '[:find ?e :where [?e :cst/scalars]] (d/db c)))]
+      (datoms "plain" {:storage :indexed})
+      (is (zero? (runs)))
+      (doseq [[location opts] [["linked" {:compact true}]
+                               ["indexed" {:storage :indexed :compact true}]
+                               ["shared" {:storage :shared :compact true}]]]
+        (let [without-runs (plain location opts)]
+          (is (< (datoms location opts) without-runs) location)))
+      (let [db (d/db c)]
+        (is (pos? (runs)))
+        (doseq [location ["linked" "indexed" "shared"]]
+          (is (= compact-program (.emit (get-cst db location))) location)
+          (is (= compact-program (.emit (get-cst db location {:via :lazy}))) location))
+        (doseq [location ["linked" "indexed"]]
+          (is (= compact-program (.emit (get-cst db location {:via :pull}))) location))))
+    (testing "saving changes to runs"
+      (doseq [[location opts] [["indexed" {:compact true}] ["shared" {:storage :shared :compact true}] ["plain" nil]]]
+        (reduce (fn [text [from to]]
+                  (let [text (str/replace text from to)]
+                    (save-cst c (cst-read-all-string text location) opts)
+                    (is (= text (.emit (get-cst (d/db c) location))) [location to])
+                    text))
+                compact-program
+                [["[1 2 3]" "[1 2 3 4]"]
+                 ["[1 2 3 4]" "[1 [2] 3]"]
+                 ["#{1 2}" "#{1 :x}"]
+                 ["\"two\"" "two"]]))
+      (is (= compact-program (.emit (get-cst (d/db c) "linked")))))))
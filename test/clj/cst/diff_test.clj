@@ -0,0 +1,71 @@
+(ns cst.diff-test
+  (:use [clojure.test]
+        [cst.diff]
+        [cst.reader])
+  (:require [clojure.string :as str])
+  (:import [cst SyntaxElement]))
+
+(defn- read-file [text] (cst-read-all-string text nil {:hash true}))
+
+(def program
+  (str/join "\n" ["(ns cst.diffed (:require [clojure.string :as str]))"
+                  "(def limit 10)"
+                  "(defn f [x] (inc x))"
+                  "(defn g [x y] #{x y})"
+                  ";; the end"
+                  "(defn h [m] {:a 1 :b (f m)})"]))
+
+(defn- edited [& replacements]
+  (read-file (reduce (fn [s [from to]] (str/replace s from to)) program (partition 2 replacements))))
+
+(defn- emits-as [^SyntaxElement file edits ^SyntaxElement expected]
+  (= (.emit expected) (.emit ^SyntaxElement (patch file edits))))
+
+(deftest unchanged
+  (is (= [] (diff (read-file program) (read-file program))))
+  (is (= [] (diff (read-file program) (cst-read-all-string program)))))
+
+(deftest single-edits
+  (let [old (read-file program)]
+    (testing "a changed leaf"
+      (let [new (edited "limit 10" "limit 20")
+            edits (diff old new)]
+        (is (= [{:op :update :old-path [1 2] :path [1 2] :old 10 :new 20}] edits))
+        (is (emits-as old edits new))))
+    (testing "an inserted form"
+      (let [new (edited "(def limit 10)" "(def limit 10)\n(def floor 0)")
+            edits (diff old new)]
+        (is (= [{:op :insert :path [2]}] (map #(dissoc % :node) edits)))
+        (is (emits-as old edits new))))
+    (testing "a deleted form"
+      (let [new (edited "(defn g [x y] #{x y})\n" "")
+            edits (diff old new)]
+        (is (= #{:delete} (set (map :op edits))))
+        (is (emits-as old edits new))))
+    (testing "moved forms"
+      (let [new (edited "(defn f [x] (inc x))" "(defn g [x y] #{x y})"
+                        "(defn g [x y] #{x y})\n;;" "(defn f [x] (inc x))\n;;")
+            edits (diff old new)]
+        (is (= [:move] (map :op edits)))
+        (is (emits-as old edits new))))
+    (testing "an edit inside a set"
+      (let [new (edited "#{x y}" "#{x y :z}")
+            edits (diff old new)]
+        (is (= [{:op :insert :path [3 3 2] :node :z}] (map #(dissoc % :old-path) edits)))
+        (is (emits-as old edits new))))
+    (testing "a change of kind"
+      (let [new (edited "(inc x)" "[inc x]")
+            edits (diff old new)]
+        (is (= [:update] (map :op edits)))
+        (is (emits-as old edits new))))))
+
+(deftest many-edits
+  (let [old (read-file program)]
+    (doseq [replacements [["(ns cst.diffed" "(ns cst.renamed" ";; the end" ";; more" "{:a 1" "{:a 2"]
+                          ["(defn f [x] (inc x))\n" "" "(defn h" "(defn f [x] (dec x))\n(defn h"]
+                          ["[clojure.string :as str]" "[clojure.set :as set] [clojure.string :as str]"]
+                          ["(def limit 10)" "(def ^:private limit ^long x)"]
+                          [program "(x)"]]]
+      (let [new (apply edited replacements)]
+        (is (emits-as old (diff old new) new) (str replacements))
+        (is (emits-as new (diff new old) old) (str replacements))))))
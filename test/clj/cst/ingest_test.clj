@@ -0,0 +1,111 @@
+(ns cst.ingest-test
+  (:use [clojure.test]
+        [cst.ingest])
+  (:require [clojure.java.io :as io]
+            [cst.database :as cdb]
+            [datomic.api :as d])
+  (:import [java.io File]
+           [java.nio.file Files]
+           [java.nio.file.attribute FileAttribute]
+           [java.util.jar JarEntry JarOutputStream]))
+
+(def sources {"a/core.clj" "(ns a.core)\n(defn f [x] (inc x))"
+              "a/util.cljc" "(ns a.util)\n(def v [1 2 3])"
+              "b/data.clj" "(ns b.data)\n(def k :v)"})
+
+(defn- temp-dir []
+  (.toFile (Files/createTempDirectory "ingest" (make-array FileAttribute 0))))
+
+(defn- write-tree [^File dir]
+  (doseq [[n text] sources]
+    (let [f (io/file dir n)]
+      (io/make-parents f)
+      (spit f text)))
+  (spit (io/file dir "README.md") "not source"))
+
+(defn- write-jar [^File f]
+  (with-open [out (JarOutputStream. (io/output-stream f))]
+    (doseq [[n text] sources]
+      (.putNextEntry out (JarEntry. ^String n))
+      (.write out (.getBytes ^String text "UTF-8"))
+      (.closeEntry out))))
+
+(defn- delete-tree [^File f]
+  (doseq [^File c (reverse (file-seq f))] (.delete c)))
+
+(defn- stored-text [conn]
+  (let [db (d/db conn)]
+    (set (map #(.emit (cdb/get-cst db %)) (cdb/get-filenames db)))))
+
+(deftest ingest-directory
+  (let [dir (temp-dir)
+        uri "datomic:mem://ingest-dir"
+        conn (cdb/database uri)]
+    (try
+      (write-tree dir)
+      (let [reports (atom 0)
+            stats (ingest conn dir {:parallelism 2 :queue-size 1 :report (fn [_] (swap! reports inc))})]
+        (is (= 3 (:files stats)))
+        (is (= (reduce + (map count (vals sources))) (:bytes stats)))
+        (is (empty? (:errors stats)))
+        (is (pos? (:files-per-sec stats)))
+        (is (= 3 @reports))
+        (is (pos? (get-in stats [:intern :hits])))
+        (is (= (set (vals sources)) (stored-text conn))))
+      (finally
+        (d/delete-database uri)
+        (delete-tree dir)))))
+
+(deftest ingest-jar
+  (let [dir (temp-dir)
+        jar (io/file dir "src.jar")
+        uri "datomic:mem://ingest-jar"
+        conn (cdb/database uri)]
+    (try
+      (write-jar jar)
+      (let [stats (ingest conn jar {:parallelism 3})]
+        (is (= 3 (:files stats)))
+        (is (= (set (vals sources)) (stored-text conn)))
+        (is (every? #(.startsWith (str %) "jar:file:") (cdb/get-filenames (d/db conn)))))
+      (finally
+        (d/delete-database uri)
+        (delete-tree dir)))))
+
+(deftest ingest-errors
+  (let [uri "datomic:mem://ingest-errors"
+        conn (cdb/database uri)]
+    (try
+      (let [bad {:location (java.net.URI. "file:/bad.clj") :size 1 :read (fn [_] (throw (Exception. "unreadable")))}
+            stats (ingest-sources conn [bad] {:parallelism 1})]
+        (is (zero? (:files stats)))
+        (is (= [(:location bad)] (map :location (:errors stats)))))
+      (finally
+        (d/delete-database uri)))))
+
+(deftest ingest-chunked
+  (let [dir (temp-dir)
+        uri "datomic:mem://ingest-chunked"
+        conn (cdb/database uri)]
+    (try
+      (write-tree dir)
+      (let [stats (ingest conn dir {:parallelism 2 :chunk-size 3 :in-flight 2})]
+        (is (= 3 (:files stats)))
+        (is (empty? (:errors stats)))
+        (is (= (set (vals sources)) (stored-text conn))))
+      (finally
+        (d/delete-database uri)
+        (delete-tree dir)))))
+
+(deftest ingest-shared
+  (let [dir (temp-dir)
+        uri "datomic:mem://ingest-shared"
+        conn (cdb/database uri)]
+    (try
+      (write-tree dir)
+      (let [stats (ingest conn dir {:parallelism 2 :storage :shared})]
+        (is (= 3 (:files stats)))
+        (is (empty? (:errors stats)))
+        (is (= (set (vals sources)) (stored-text conn))))
+      (finally
+        (d/delete-database uri)
+        (delete-tree dir)))))
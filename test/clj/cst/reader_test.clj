@@ -1,7 +1,10 @@
 (ns cst.reader-test
   (:use [clojure.test]
         [cst.reader])
-  (:import [cst SyntaxElement]))
+  (:import [cst CharBufferReader LispReader Rope SyntaxElement]
+           [clojure.lang LineNumberingPushbackReader]
+           [java.io File PushbackReader StringReader]
+           [java.util.regex Pattern]))
 
 (defn roundtrip
   [s]
@@ -24,10 +27,415 @@
   (roundtrip "#\"a\\(\"")
   (roundtrip "(.toString [1 2])")
   (roundtrip "#(= 5 %)")
-  (roundtrip "#(= %1 %2)"))
+  (roundtrip "#(= %1 %2)")
+  (roundtrip "\\a")
+  (roundtrip "[\\newline \\space \\tab \\( \\\\]"))
 
 (deftest nested-roundtrip
   (roundtrip "[[1] [2]]")
   (roundtrip "[{:a 1 :b 2} {:a 1 :c 3}]")
   (roundtrip "[{:a 1 :b 2} '(1 3)]")
   (roundtrip "(let [^String x (.toString y)] x)"))
+
+(defn cst=
+  "Structural comparison of CST data, as SyntaxElement and Pattern do not define equality"
+  [a b]
+  (cond
+    (instance? SyntaxElement a) (and (instance? SyntaxElement b)
+                                     (= (.type ^SyntaxElement a) (.type ^SyntaxElement b))
+                                     (cst= (.data ^SyntaxElement a) (.data ^SyntaxElement b)))
+    (instance? Pattern a) (and (instance? Pattern b) (= (str a) (str b)))
+    (map? a) (and (map? b) (= (set (keys a)) (set (keys b))) (every? #(cst= (a %) (b %)) (keys a)))
+    (instance? java.util.List a) (and (instance? java.util.List b)
+                         (= (vector? a) (vector? b))
+                         (= (count a) (count b))
+                         (every? true? (map cst= a b)))
+    :default (and (= (class a) (class b)) (= a b))))
+
+(def sample-program
+  "(ns cst.sample\n  (:require [clojure.string :as str]))\n; comment\n(defn f [& args] #{1 2} {:a 1, :b \"x\\\"y\"} #\"a\\(b\" 'q @r `(s ~t ~@u) #(+ % 1) -12 3.5 22/7 0x1F 1e3 8M 99N)\n#_ignored #?(:clj 1 :cljs 2) ^:private [x/y :k/w]")
+
+(defn pushback-read-all
+  [s]
+  (with-open [io (PushbackReader. (StringReader. s))]
+    (cst-read-all io nil {:read-cond :allow})))
+
+(deftest char-buffer-read
+  (let [expected (pushback-read-all sample-program)]
+    (is (cst= (:data (.data expected))
+              (:data (.data (cst-read-all-string sample-program nil {:read-cond :allow})))))
+    (let [f (File/createTempFile "sample" ".clj")]
+      (try
+        (spit f sample-program)
+        (let [from-file (cst-read-all-file f nil {:read-cond :allow})]
+          (is (cst= (:data (.data expected)) (:data (.data from-file))))
+          (is (= (.toURI f) (:location (.data from-file)))))
+        (finally (.delete f))))))
+
+(defn- outcome
+  "Returns the result of a parse with its class, or the class of the exception thrown"
+  [f s]
+  (try
+    (let [r (f s)] [(class r) r])
+    (catch Exception e [:error (class e)])))
+
+(defn- same-outcome [reference fast s]
+  (is (= (outcome reference s) (outcome fast s)) (str "Mismatch for " (pr-str s))))
+
+(defn- tokens
+  "All strings up to length n over an alphabet"
+  [alphabet n]
+  (mapcat (fn [len] (map #(apply str %) (reduce (fn [acc _] (for [a acc c alphabet] (conj a c))) [[]] (range len))))
+          (range 1 (inc n))))
+
+(def number-samples ["0" "-0" "+0" "0N" "-0N" "00" "07" "08" "08M" "08.5" "010N" "0x1F" "-0X1fN" "0x" "0xG" "0x7fffffffffffffff"
+                     "123456789012345678" "1234567890123456789" "9223372036854775808" "-9223372036854775808"
+                     "1.5" "1." "-1.5e10" "1e" "1e+5" "1E-5M" "1.5M" "2r101" "36rZZ" "-8r17N" "22/7" "-1/3" "+4/2"
+                     "01234567012345670123456" "1N2" "1M2" "1e400" "1\u0661" "0x\uff11"])
+
+(def symbol-samples ["a" "a/b" "a/b/c" "/" "a//" "a/" "//" "/a" "a:/b" "a/b:" ":a" ":a/b" "::a" "::a/b" ":" ":/" ":1" ":/a"
+                     "a::b" "a:b" "1a" "a/1" "ns.name/sym" "clojure.core//" ":a//" "a:/" ".foo" "foo#" "%" "%1" "%&" "x'"
+                     "λ" "a\u0085b" ":a/b/c" "+" "-" "->x" "*ns*"])
+
+(deftest differential-number-scan
+  (doseq [s (concat number-samples (tokens "019+-.xeEMNr/ab" 4))]
+    (same-outcome #(LispReader/matchNumber %) #(LispReader/parseNumber %) s)))
+
+(deftest differential-symbol-scan
+  (doseq [s (concat symbol-samples (tokens ":/a1.#" 5))]
+    (same-outcome #(LispReader/matchSymbol %) #(LispReader/parseSymbol %) s)))
+
+(defn- edit [^String s start end replacement]
+  (str (subs s 0 start) replacement (subs s end)))
+
+(deftest incremental-reparse
+  (let [src "(ns a.b)\n\n(def x 1)\n; note\n(defn f [y] (+ x y))\n[1 2 3]  {:k \"v\"}\n"
+        original (cst-read-all-string src nil {:editable true})
+        check (fn [start end replacement]
+                (let [expected-src (edit src start end replacement)
+                      expected (.data (cst-read-all-string expected-src nil {:editable true}))
+                      reparsed (.data (cst-reparse original start end replacement))]
+                  (is (cst= (:data expected) (:data reparsed)) (pr-str expected-src))
+                  (is (= (:spans expected) (:spans reparsed)) (pr-str expected-src))
+                  (is (= expected-src (str (:source reparsed))))
+                  reparsed))]
+    (is (= [[0 8] [10 19] [20 27] [27 47] [48 55] [57 65]] (:spans (.data original))))
+    (let [r (check 17 18 "42")
+          old-forms (:data (.data original))]
+      (is (identical? (nth old-forms 0) (nth (:data r) 0)))
+      (is (not (identical? (nth old-forms 1) (nth (:data r) 1))))
+      (is (every? true? (map identical? (drop 2 old-forms) (drop 2 (:data r))))))
+    (check 8 8 "x")
+    (check 9 9 "\n(def y 2)")
+    (check 0 0 "  ")
+    (check 20 26 "")
+    (check 10 10 "#_")
+    (check 19 19 " :k")
+    (check 10 19 "\"(def x 1)\n; note\n\"")
+    (check 26 27 " ")
+    (check 55 57 "")
+    (check 66 66 "(done)")
+    (check 0 (count src) "[]")))
+
+(deftest reparse-edit-sequence
+  (let [opts {:read-cond :allow :editable true}
+        rnd (java.util.Random. 42)
+        pieces ["(a)" "(" ")" " " "x" "[1 2]" "\"" "\"s\"" ";c\n" "\n" "#_" ""]]
+    (loop [src sample-program
+           file (cst-read-all-string src nil opts)
+           n 300]
+      (if (pos? n)
+        (let [start (.nextInt rnd (inc (count src)))
+              end (min (count src) (+ start (.nextInt rnd 4)))
+              replacement (pieces (.nextInt rnd (count pieces)))
+              edited (edit src start end replacement)
+              expected (try (.data (cst-read-all-string edited nil opts)) (catch Exception _ nil))]
+          (if expected
+            (let [reparsed (cst-reparse file start end replacement opts)]
+              (is (cst= (:data expected) (:data (.data reparsed))) (pr-str [start end replacement]))
+              (is (= (:spans expected) (:spans (.data reparsed))))
+              (is (= edited (str (:source (.data reparsed)))))
+              (recur edited reparsed (dec n)))
+            (do
+              (is (thrown? Exception (cst-reparse file start end replacement opts)))
+              (recur src file (dec n)))))
+        (is (<= (.depth ^Rope (:source (.data file))) 48))))))
+
+(deftest lazy-read
+  (let [src "(a 1) [b] c \"d\" :e (f (g))"
+        eager (:data (.data (cst-read-all-string src)))]
+    (is (cst= eager (vec (cst-read-seq (CharBufferReader. src) nil 2))))
+    (is (cst= eager (into [] (cst-read-reducible (CharBufferReader. src)))))
+    (is (= "(a 1)\n[b]\nc\n\"d\"\n:e\n(f (g))" (.emit (cst-read-all-lazy (CharBufferReader. src))))))
+  (testing "forms are only read as they are consumed"
+    (let [src "(a) (b) (c) )"]
+      (is (cst= '((a) (b)) (take 2 (cst-read-seq (CharBufferReader. src) nil 2))))
+      (is (thrown? RuntimeException (doall (cst-read-seq (CharBufferReader. src) nil 2))))
+      (is (cst= '(a) (reduce (fn [_ x] (reduced x)) nil (cst-read-reducible (CharBufferReader. src)))))
+      (let [out (java.io.StringWriter.)]
+        (is (thrown? RuntimeException (emit-to (cst-read-all-lazy (CharBufferReader. src)) out)))
+        (is (= "(a)\n(b)\n(c)" (str out)) "the forms before the error are written as they are read")))))
+
+(deftest interned-tokens
+  (let [table (intern-table)
+        opts {:intern table :read-cond :allow}
+        plain (:data (.data (cst-read-all-string sample-program nil {:read-cond :allow})))
+        interned (:data (.data (cst-read-all-string sample-program nil opts)))
+        again (:data (.data (cst-read-all-string sample-program nil opts)))]
+    (is (cst= plain interned))
+    (is (cst= plain again))
+    (is (identical? (first (first again)) (first (first interned))))
+    (is (identical? (second (nth again 2)) (second (nth interned 2))))
+    (is (apply identical? (:data (.data (cst-read-all-string "\"abc\" \"abc\"" nil opts)))))
+    (let [{:keys [size lookups hits hit-rate]} (intern-stats table)]
+      (is (pos? size))
+      (is (<= (* 2 size) lookups))
+      (is (<= 0.5 hit-rate 1.0))
+      (is (= hits (- lookups size))))))
+
+(deftest positions
+  (let [src "(ns a)\n(defn f [x] (+ x 1))\n#{:a}"
+        file (cst-read-all-string src nil {:positions true})
+        node-text (fn [{:keys [start end]}] (subs src start end))]
+    (is (= "ns" (node-text (node-at file 1))))
+    (is (= "(ns a)" (node-text (node-at file 5))))
+    (is (= 0 (:depth (node-at file 5))))
+    (is (nil? (node-at file 6)))
+    (is (= "[x]" (node-text (node-at file 15))))
+    (is (= "+" (node-text (node-at file 20))))
+    (is (= 2 (:depth (node-at file 20))))
+    (is (= ":a" (node-text (node-at file 31))))
+    (is (= ["(+ x 1)" "+" "x" "1"] (map node-text (nodes-in-range file 19 26))))
+    (is (= ["a" "defn" "f" "[x]" "x"] (map node-text (nodes-in-range file 4 18))))
+    (is (= ["(ns a)" "ns" "a" "(defn f [x] (+ x 1))"] (take 4 (map node-text (nodes-in-range file 0 (count src))))))
+    (testing "files are equal by their forms, and not by their positions or source"
+      (let [uri (java.net.URI. "a.clj")
+            a (cst-read-all-string src uri {:editable true})
+            b (cst-read-all-string src uri {:editable true})
+            plain (cst-read-all-string src uri)]
+        (is (= a b plain))
+        (is (= (hash a) (hash b) (hash plain)))
+        (is (not= a (cst-read-all-string (str src " x") uri {:editable true})))))
+    (testing "positions are only kept when they are asked for"
+      (is (= #{:data :location} (set (keys (.data (cst-read-all-string src))))))
+      (is (= #{:data :location :spans :indexes} (set (keys (.data file)))))
+      (is (thrown? clojure.lang.ExceptionInfo (cst-reparse file 0 6 "(ns abc)")))
+      (is (= #{:data :location}
+             (set (keys (.data (cst-read-all-parallel (CharBufferReader. ^String src) nil nil {:min-chunk 4})))))))
+    (testing "positions are kept after an edit"
+      (let [file (cst-read-all-string src nil {:editable true})
+            edited (cst-reparse file 0 6 "(ns abc)")
+            src (edit src 0 6 "(ns abc)")
+            node-text (fn [{:keys [start end]}] (subs src start end))]
+        (is (= "abc" (node-text (node-at edited 5))))
+        (is (= "+" (node-text (node-at edited 22))))
+        (is (= ["(+ x 1)" "+" "x" "1"] (map node-text (nodes-in-range edited 21 28))))
+        (is (identical? (:node (node-at file 20)) (:node (node-at edited 22))))))))
+
+(deftest session-read
+  (let [opts {:read-cond :allow :eof ::eof}
+        expected (with-open [io (PushbackReader. (StringReader. sample-program))]
+                   (doall (take-while #(not= ::eof %) (repeatedly #(LispReader/read io opts)))))
+        session (reader-session (CharBufferReader. ^String sample-program) opts)
+        forms (doall (take-while #(not= ::eof %) (repeatedly #(.read session))))]
+    (is (cst= expected forms))
+    (is (= ::eof (.read session)))
+    (is (contains? (:features (.opts session)) :clj)))
+  (is (thrown? RuntimeException
+               (binding [*read-eval* :unknown]
+                 (reader-session (PushbackReader. (StringReader. "x")) nil)))))
+
+(def tricky-forms
+  ["(str \"a ( [ { ; \\\" \")" "; comment with ( and \"\n" "[\\( \\) \\; \\\" \\space \\u0041]" "#\"[(\\\"]\""
+   "^:private (def x 1)" "^String\n(defn g [])" "#_ (skipped ()) kept" "'(a b)" "`(~x ~@y)" "@a"
+   "#'v" "#inst \"2015-01-01T00:00:00Z\"" "#?(:clj 1 :cljs 2)" "#?@(:clj [1 2])" "{:a #{1 2}}" "12 -3 +4"
+   "#!shebang (\n" "sym#bol" "1.5M" "#(+ % %2)" "' ; quoted comment\n" "x,y" "#^String s"])
+
+(defn- index-positions [^cst.PositionIndex index]
+  (mapv (fn [i] [(.start index i) (.end index i) (.parent index i)]) (range (.size index))))
+
+(deftest parallel-read
+  (let [text (apply str (interpose "\n" (take 2000 (cycle tricky-forms))))
+        opts {:read-cond :allow :positions true}
+        expected (.data (cst-read-all (CharBufferReader. ^String text) nil opts))
+        actual (.data (cst-read-all-parallel (CharBufferReader. ^String text) nil opts {:parallelism 4 :min-chunk 256}))]
+    (is (= (map second (:spans expected))
+           (seq (cst.FormScanner/formEnds (CharBufferReader. ^String text)))))
+    (is (cst= (:data expected) (:data actual)))
+    (is (= (:spans expected) (:spans actual)))
+    (is (= (map index-positions (:indexes expected)) (map index-positions (:indexes actual)))))
+  (let [broken (apply str "(a)\n" (repeat 200 "(b [c])\n"))
+        broken (str broken "(d]" broken)]
+    (is (thrown? RuntimeException (cst-read-all-parallel (CharBufferReader. ^String broken) nil nil {:min-chunk 16})))))
+
+(deftest streaming-emit
+  (let [file (cst-read-all-string sample-program nil {:read-cond :allow})
+        expected (.emit ^SyntaxElement file)
+        sb (StringBuilder.)
+        f (File/createTempFile "emit" ".clj")]
+    (emit-to file sb)
+    (is (= expected (str sb)))
+    (try
+      (emit-to file f)
+      (is (= expected (slurp f)))
+      (finally (.delete f)))
+    (is (= "(a [b] \\c)" (with-out-str (emit-to (cst-read-string "(a [b] \\c)") *out*))))))
+
+(def atom-samples
+  [nil true false 0 -17 Long/MIN_VALUE 1.5 -0.0 1e300 Double/NaN Double/POSITIVE_INFINITY 22/7 -1/3
+   12345678901234567890N 0N 1.50M -3M "" "plain" "q\"uote\\ \n\t\r\f\b é" :k :ns/k 'sym 'ns/sym
+   (with-meta 'm {:type :special}) \a \newline \space \tab \backspace \formfeed \return \"
+   #"a\(b" #"q\"" #"\Qa\"b\E\"" #"\\" #"[\"]"])
+
+(deftest atom-writers
+  (doseq [a atom-samples]
+    (is (= (pr-str a) (SyntaxElement/emit a)) (pr-str a))
+    (is (= (binding [*print-readably* nil] (print-str a))
+           (binding [*print-readably* nil] (SyntaxElement/emit a))))))
+
+(deftest structural-equality
+  (let [[a b] (map #(cst-read-string %) ["#{1 [x \\y]}" "#{1 [x \\y]}"])]
+    (is (not (identical? a b)))
+    (is (= a b))
+    (is (= (hash a) (hash b))))
+  (is (not= (cst-read-string "'(a)") (cst-read-string "'[a]")))
+  (is (not= (cst-read-string "'(1)") (cst-read-string "'(1N)")))
+  (is (not= (cst-read-string "#{1 2}") (cst-read-string "#{2 1}"))))
+
+(deftest hash-consing
+  (let [table (hash-cons-table)
+        opts {:hash-cons table :read-cond :allow}
+        src "(defn f [& args] '(a b) {:k [& args]})\n(defn g [& args] '(a b))"
+        [f g] (:data (.data (cst-read-all-string src nil opts)))
+        [f2] (:data (.data (cst-read-all-string src nil opts)))]
+    (is (identical? (nth f 2) (nth g 2)))
+    (is (identical? (nth f 3) (nth g 3)))
+    (is (identical? f f2))
+    (is (not (identical? (nth f 1) (nth g 1))))
+    (is (= src (.emit ^SyntaxElement (cst-read-all-string src nil opts))))
+    (is (pos? (:hits (hash-cons-stats table)))))
+  (let [table (hash-cons-table)
+        [l v] (:data (.data (cst-read-all-string "(a) [a]" nil {:hash-cons table})))]
+    (is (list? l))
+    (is (vector? v)))
+  (let [table (hash-cons-table)
+        src "(ns a (:require b))\n\n(ns a (:require b))"
+        [f g] (:data (.data (cst-read-all (LineNumberingPushbackReader. (StringReader. src)) nil {:hash-cons table})))]
+    (is (= [1 3] [(:line (meta f)) (:line (meta g))]))
+    (is (= [1 3] [(:line (meta (nth f 2))) (:line (meta (nth g 2)))]))))
+
+(defn- temp-dir []
+  (doto (File/createTempFile "cst" "") (.delete) (.mkdirs)))
+
+(defn- delete-dir [^File d]
+  (doseq [^File f (.listFiles d)] (.delete f))
+  (.delete d))
+
+(deftest binary-format
+  (let [src (str sample-program "\n" (apply str (interpose "\n" tricky-forms))
+                 "\n[1.5 -7 22/7 1.50M 123456789012345678901234567890N \\a nil true false -0.0]")
+        file (cst-read-all-string src nil {:read-cond :allow :positions true})
+        f (File/createTempFile "cst" ".cst")]
+    (try
+      (write-binary file f)
+      (let [loaded (.data ^SyntaxElement (read-binary f nil))
+            expected (.data ^SyntaxElement file)]
+        (is (cst= (:data expected) (:data loaded)))
+        (is (= (:spans expected) (:spans loaded)))
+        (is (= (map index-positions (:indexes expected)) (map index-positions (:indexes loaded))))
+        ;; the tag and form of a tagged literal are indexed, but are not kept in the tree
+        (is (every? true? (for [[^cst.PositionIndex a ^cst.PositionIndex b] (map vector (:indexes expected) (:indexes loaded))
+                                i (range (.size a))]
+                            (or (cst= (.node a i) (.node b i)) (nil? (.node b i))))))
+        (is (= (.emit ^SyntaxElement file) (.emit ^SyntaxElement (read-binary f nil)))))
+      (finally (.delete f))))
+  (testing "collections with metadata"
+    (let [src "(ns a (:require b))\n[x ^:k y]\n(f '(g #{1}))"
+          file (cst-read-all (LineNumberingPushbackReader. (StringReader. src)) nil)
+          f (File/createTempFile "cst" ".cst")]
+      (try
+        (write-binary file f)
+        (let [expected (:data (.data ^SyntaxElement file))
+              loaded (:data (.data ^SyntaxElement (read-binary f nil)))]
+          (is (cst= expected loaded))
+          (is (= (map meta expected) (map meta loaded)))
+          (is (= (meta (nth (first expected) 2)) (meta (nth (first loaded) 2))))
+          (is (= src (.emit ^SyntaxElement (read-binary f nil)))))
+        (finally (.delete f))))))
+
+(deftest parse-cache
+  (let [dir (temp-dir)
+        opts {:read-cond :allow :cache dir}]
+    (try
+      (let [first-read (cst-read-all (CharBufferReader. ^String sample-program) nil opts)
+            io (CharBufferReader. ^String sample-program)
+            cached (cst-read-all io nil opts)]
+        (is (= 1 (count (.listFiles dir))))
+        (is (instance? cst.BinaryFile$LazyVector (:data (.data cached))))
+        (is (cst= (:data (.data first-read)) (:data (.data cached))))
+        (is (= (:spans (.data first-read)) (:spans (.data cached))))
+        (is (= (.length io) (.position io)))
+        (is (= (str (:source (.data first-read))) (str (:source (.data cached)))))
+        (cst-read-all (CharBufferReader. (str sample-program " x")) nil opts)
+        (cst-read-all (CharBufferReader. ^String sample-program) nil (assoc opts :read-cond :preserve))
+        (is (= 3 (count (.listFiles dir))))
+        (testing "keywords are resolved in the namespace of each read"
+          (let [src "[::k ::s/k]"
+                read-in (fn [ns-sym]
+                          (binding [*ns* (create-ns ns-sym)]
+                            (alias 's 'clojure.string)
+                            (:data (.data (cst-read-all (CharBufferReader. src) nil opts)))))]
+            (is (cst= [[:cst.a/k :clojure.string/k]] (read-in 'cst.a)))
+            (is (cst= [[:cst.b/k :clojure.string/k]] (read-in 'cst.b)))
+            (is (= 5 (count (.listFiles dir))))))
+        (testing "reads that the binary format cannot represent are not cached"
+          (let [hashed (cst-read-all (CharBufferReader. ^String sample-program) nil (assoc opts :hash true))]
+            (is (instance? clojure.lang.PersistentVector (:data (.data hashed))))
+            (is (= 5 (count (.listFiles dir)))))))
+      (finally (delete-dir dir)))))
+
+(deftest walking
+  (let [form (cst-read-string "(a [b ^:k c] #{d 'e} ; note\n @f)")
+        entered (atom [])
+        left (atom [])]
+    (is (walk-cst form
+                  (fn [node depth] (swap! entered conj [(SyntaxElement/emit node) depth]) nil)
+                  (fn [node depth] (swap! left conj (SyntaxElement/emit node)) nil)))
+    (is (= [["(a [b ^:k c] #{d 'e} ; note\n @f)" 0] ["a" 1] ["[b ^:k c]" 1] ["b" 2] ["^:k c" 2] [":k" 3] ["c" 3]
+            ["#{d 'e}" 1] ["d" 2] ["'e" 2] ["e" 3] ["; note\n" 1] ["@f" 1] ["f" 2]]
+           @entered))
+    (is (= ["a" "b" ":k" "c" "^:k c" "[b ^:k c]"] (take 6 @left)))
+    (testing "skipping and stopping"
+      (let [seen (atom [])]
+        (is (walk-cst form (fn [node _] (swap! seen conj node) (when (vector? node) :skip))))
+        (is (not-any? #{'b 'c} @seen))
+        (reset! seen [])
+        (is (not (walk-cst form (fn [node _] (swap! seen conj node) (when (= 'd node) :stop)))))
+        (is (= 'd (last @seen)))))
+    (testing "reducing over the nodes of a file"
+      (let [file (cst-read-all (CharBufferReader. ^String sample-program) nil {:read-cond :allow})
+            symbols (into [] (filter symbol?) (cst-nodes file))]
+        (is (seq symbols))
+        (is (= (count symbols) (transduce (filter symbol?) (completing (fn [n _] (inc n))) 0 (cst-nodes file))))
+        (is (= (first symbols) (reduce (fn [_ node] (if (symbol? node) (reduced node) nil)) nil (cst-nodes file))))
+        ;; the forms of a file are walked as the children of the FILE element
+        (is (= (rest (into [] (cst-nodes file))) (rest (into [] (cst-nodes (vec (:data (.data file))))))))))))
+
+(deftest structural-hashes
+  (let [text "(defn f [x] (let [y ^long x] #{y 'z} {:a 1/2 :b \\c} #\"re\" `(g ~x)))"
+        plain (cst-read-string text)
+        hashed (cst-read-string text {:hash true})
+        other (cst-read-string "(defn f [x] (let [y ^long x] #{y 'z} {:a 1/2 :b \\d} #\"re\" `(g ~x)))" {:hash true})]
+    (is (cst= plain hashed))
+    (is (integer? (:cst/hash (meta hashed))))
+    (is (= (structural-hash plain) (structural-hash hashed) (:cst/hash (meta hashed))))
+    (is (not= (structural-hash hashed) (structural-hash other)))
+    (testing "subtrees that did not change keep their hashes"
+      (is (= (map structural-hash (take 3 hashed)) (map structural-hash (take 3 other))))
+      (is (= (structural-hash (nth (nth hashed 3) 1)) (structural-hash (nth (nth other 3) 1)))))
+    (testing "kinds of form are told apart"
+      (is (apply distinct? (map structural-hash ['(1 2) [1 2] 1 1.0 "1" 'a :a \a nil false 1N]))))
+    (testing "the hash is stable between runs"
+      (is (= -6386165725056671912 (structural-hash '(a [1 "b" :c])))))
+    (is (= (emit-to hashed (StringBuilder.)) (emit-to plain (StringBuilder.))))
+    (is (= text (SyntaxElement/emit hashed)))))